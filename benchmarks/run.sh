@@ -0,0 +1,67 @@
+#!/bin/sh
+#
+# Build and run the JMH benchmarks, saving the results (text and JSON) to $OUT.
+#
+# Usage:
+#   benchmarks/run.sh                       full run; results in benchmarks/results/<date>
+#   QUICK=1 benchmarks/run.sh               short run (1 fork, 3 x 1s iterations)
+#   OUT=results/baseline benchmarks/run.sh  results in benchmarks/results/baseline
+#   THREADS="1 2 4 8" benchmarks/run.sh     thread counts for the rotating queue benchmarks
+#
+# Any other args are passed to JMH, e.g. "benchmarks/run.sh -p capacity=4096".
+#
+# To compare with a baseline, diff the .txt files (or load the .json files into
+# a JMH visualizer).  Only compare results from the same machine and JDK.
+#
+# Results aren't committed (benchmarks/results is ignored by git): numbers from one
+# machine say little about another, and QUICK runs or runs with fewer CPUs than
+# threads aren't meaningful at all.  To evaluate a change, run a full baseline on
+# the same multi-core machine before and after it.
+#
+
+set -e
+cd "$(dirname "$0")"
+
+OUT=${OUT:-results/$(date +%Y%m%d)}
+THREADS=${THREADS:-"1 2 4"}
+JVM_ARGS="-Xms1g -Xmx1g"
+
+if [ -n "$QUICK" ]; then
+    JMH_OPTS="-f 1 -wi 2 -w 1s -i 3 -r 1s"
+else
+    JMH_OPTS="-f 3 -wi 5 -w 2s -i 10 -r 2s"
+fi
+
+# Build rga78-utils, then the benchmarks against it.
+(cd .. && mvn -B -q -DskipTests install)
+mvn -B -q package
+
+CPUS=$(getconf _NPROCESSORS_ONLN)
+for t in $THREADS; do
+    if [ "$t" -gt "$CPUS" ]; then
+        echo "WARNING: $t threads on $CPUS cpus; the contended results won't be meaningful." >&2
+    fi
+done
+
+mkdir -p "$OUT"
+java -version > "$OUT/environment.txt" 2>&1
+echo "cpus: $CPUS" >> "$OUT/environment.txt"
+echo "jmh options: $JMH_OPTS -jvmArgs \"$JVM_ARGS\" $*" >> "$OUT/environment.txt"
+
+# Run JMH, saving the results as $OUT/<name>.json and the summary table as $OUT/<name>.txt.
+run_jmh() {
+    name=$1
+    shift
+    log="$OUT/$name.log"
+    java -jar target/benchmarks.jar $JMH_OPTS -jvmArgs "$JVM_ARGS" -rf json -rff "$OUT/$name.json" "$@" | tee "$log"
+    sed -n '/^Benchmark  /,$p' "$log" > "$OUT/$name.txt"
+    rm -f "$log"
+}
+
+# Single-threaded benchmarks.
+run_jmh benchmarks "$@" 'CawlsBenchmark|JSONTraceBenchmark|LoadStreamBenchmark|LogBenchmark|TaskArgsBenchmark'
+
+# The rotating queues, under 1..N threads.
+for t in $THREADS; do
+    run_jmh "rotating-queue-t$t" -t "$t" "$@" 'RotatingQueueBenchmark'
+done
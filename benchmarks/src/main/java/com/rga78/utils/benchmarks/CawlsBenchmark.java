@@ -0,0 +1,94 @@
+package com.rga78.utils.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.rga78.utils.coll.Cawls;
+import com.rga78.utils.coll.IndexedMapCollection;
+
+/**
+ * Cawls.findAll / containsAll over a collection of maps (e.g. query results),
+ * and IndexedMapCollection.findAll for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CawlsBenchmark {
+
+    @Param({ "10000" })
+    public int size;
+
+    private List<Map> collection;
+
+    private IndexedMapCollection indexedCollection;
+
+    /**
+     * Matches 1% of the collection.
+     */
+    private Map<String, Object> filter;
+
+    private Map<String, Object> nestedFilter;
+
+    @Setup
+    public void setup() {
+        collection = new ArrayList<Map>();
+        for (int i = 0; i < size; ++i) {
+            Map<String, Object> status = new HashMap<String, Object>();
+            status.put("state", (i % 3 == 0) ? "running" : "stopped");
+
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("id", i);
+            map.put("group", "group-" + (i % 100));
+            map.put("type", (i % 2 == 0) ? "a" : "b");
+            map.put("status", status);
+            collection.add(map);
+        }
+
+        filter = new HashMap<String, Object>();
+        filter.put("group", "group-42");
+        filter.put("type", "a");
+
+        Map<String, Object> status = new HashMap<String, Object>();
+        status.put("state", "running");
+        nestedFilter = new HashMap<String, Object>();
+        nestedFilter.put("status", status);
+
+        indexedCollection = new IndexedMapCollection(collection);
+        indexedCollection.findAll(filter);   // build the indexes
+    }
+
+    @Benchmark
+    public List<Map> findAll() {
+        return Cawls.findAll(collection, filter);
+    }
+
+    /**
+     * A Map-valued filter, which containsAll compares entry by entry.
+     */
+    @Benchmark
+    public List<Map> findAllNested() {
+        return Cawls.findAll(collection, nestedFilter);
+    }
+
+    @Benchmark
+    public List<Map> indexedFindAll() {
+        return indexedCollection.findAll(filter);
+    }
+
+    @Benchmark
+    public boolean containsAll() {
+        return Cawls.containsAll(collection.get(42), filter);
+    }
+}
@@ -0,0 +1,63 @@
+package com.rga78.utils.benchmarks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.rga78.utils.json.JSONTrace;
+
+/**
+ * JSONTrace.prettyPrint on a large document: a list of records, each with
+ * scalar fields, a nested object, and a nested array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JSONTraceBenchmark {
+
+    @Param({ "1000" })
+    public int recordCount;
+
+    private Map<String, Object> document;
+
+    @Setup
+    public void setup() {
+        List<Object> records = new ArrayList<Object>();
+        for (int i = 0; i < recordCount; ++i) {
+            Map<String, Object> address = new LinkedHashMap<String, Object>();
+            address.put("street", i + " Main St");
+            address.put("zip", 10000 + i);
+
+            List<Object> tags = new ArrayList<Object>();
+            tags.add("tag" + (i % 10));
+            tags.add("tag" + (i % 7));
+
+            Map<String, Object> record = new LinkedHashMap<String, Object>();
+            record.put("id", i);
+            record.put("name", "name-" + i);
+            record.put("active", (i % 2) == 0);
+            record.put("address", address);
+            record.put("tags", tags);
+            records.add(record);
+        }
+
+        document = new LinkedHashMap<String, Object>();
+        document.put("records", records);
+    }
+
+    @Benchmark
+    public String prettyPrint() {
+        return JSONTrace.prettyPrint(document);
+    }
+}
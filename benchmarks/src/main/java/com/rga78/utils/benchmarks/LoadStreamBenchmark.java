@@ -0,0 +1,104 @@
+package com.rga78.utils.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.rga78.utils.proc.ProcessHelper;
+
+/**
+ * ProcessHelper.loadStream line throughput: reading a process's output, splitting
+ * it into lines and keeping the tail.  The output is read from memory, so this
+ * measures ProcessHelper, not the pipe.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoadStreamBenchmark {
+
+    private static final int LINE_COUNT = 100000;
+
+    @Param({ "80" })
+    public int lineLength;
+
+    private byte[] output;
+
+    private BenchProcessHelper processHelper;
+
+    /**
+     * Exposes loadStream.
+     */
+    static class BenchProcessHelper extends ProcessHelper<BenchProcessHelper> {
+
+        BenchProcessHelper() {
+            super( new NullProcess() );
+        }
+
+        List<String> load(InputStream is) throws IOException {
+            return loadStream(Stream.STDOUT, is);
+        }
+    }
+
+    /**
+     * Stand-in for the process, which isn't needed to read the stream.
+     */
+    static class NullProcess extends Process {
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                public void write(int b) {}
+            };
+        }
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        public InputStream getErrorStream() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        public int waitFor() {
+            return 0;
+        }
+        public int exitValue() {
+            return 0;
+        }
+        public void destroy() {
+        }
+    }
+
+    @Setup
+    public void setup() {
+        char[] line = new char[lineLength];
+        Arrays.fill(line, 'x');
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINE_COUNT; ++i) {
+            sb.append(line).append('\n');
+        }
+        output = sb.toString().getBytes( Charset.forName("UTF-8") );
+
+        processHelper = new BenchProcessHelper();
+        processHelper.setCharset( Charset.forName("UTF-8") );
+    }
+
+    /**
+     * Score is lines per time unit.
+     */
+    @Benchmark
+    @OperationsPerInvocation(LINE_COUNT)
+    public List<String> loadStream() throws IOException {
+        return processHelper.load( new ByteArrayInputStream(output) );
+    }
+}
@@ -0,0 +1,52 @@
+package com.rga78.utils.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.rga78.utils.log.Log;
+
+/**
+ * Log calls: the cost of formatting the message (Log writes to System.out,
+ * which is redirected to a null stream for the benchmark).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LogBenchmark {
+
+    private PrintStream systemOut;
+
+    @Setup
+    public void setup() {
+        systemOut = System.out;
+        System.setOut( new PrintStream( new OutputStream() {
+            public void write(int b) {}
+            public void write(byte[] b, int off, int len) {}
+        }));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(systemOut);
+    }
+
+    @Benchmark
+    public void info() {
+        Log.info(this, "request handled in 42ms");
+    }
+
+    @Benchmark
+    public void trace() {
+        Log.trace("request handled in 42ms");
+    }
+}
@@ -0,0 +1,68 @@
+package com.rga78.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.rga78.utils.coll.SimpleRotatingQueue;
+import com.rga78.utils.coll.StripedRotatingQueue;
+
+/**
+ * SimpleRotatingQueue.add / toArray, plus StripedRotatingQueue.add for comparison.
+ *
+ * The queues are shared by all benchmark threads, so run with -t 1,2,4,... (see run.sh)
+ * to measure add under contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RotatingQueueBenchmark {
+
+    @Param({ "1024" })
+    public int capacity;
+
+    private SimpleRotatingQueue<Object> queue;
+
+    private StripedRotatingQueue<Object> stripedQueue;
+
+    private final Object element = new Object();
+
+    /**
+     * Per-thread target array for toArray.
+     */
+    @State(Scope.Thread)
+    public static class Snapshot {
+        Object[] arr;
+    }
+
+    @Setup
+    public void setup() {
+        queue = new SimpleRotatingQueue<Object>(new Object[capacity]);
+        stripedQueue = new StripedRotatingQueue<Object>(capacity / Runtime.getRuntime().availableProcessors() + 1);
+        for (int i = 0; i < capacity; ++i) {
+            queue.add(element);
+        }
+    }
+
+    @Benchmark
+    public boolean add() {
+        return queue.add(element);
+    }
+
+    @Benchmark
+    public boolean stripedAdd() {
+        return stripedQueue.add(element);
+    }
+
+    @Benchmark
+    public Object[] toArray(Snapshot snapshot) {
+        return snapshot.arr = queue.toArray( (snapshot.arr != null) ? snapshot.arr : new Object[0] );
+    }
+}
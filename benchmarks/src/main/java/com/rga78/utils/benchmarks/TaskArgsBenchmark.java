@@ -0,0 +1,36 @@
+package com.rga78.utils.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.rga78.utils.main.TaskArgs;
+
+/**
+ * TaskArgs parsing of a typical command line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TaskArgsBenchmark {
+
+    private final String[] args = new String[] { "deploy",
+                                                 "--host=example.com",
+                                                 "--port=8443",
+                                                 "--user=admin",
+                                                 "--timeout=30",
+                                                 "--verbose",
+                                                 "--file=/tmp/app.war",
+                                                 "--retries=3",
+                                                 "--dryRun" };
+
+    @Benchmark
+    public TaskArgs parse() {
+        return new TaskArgs(args);
+    }
+}
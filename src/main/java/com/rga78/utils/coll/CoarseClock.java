@@ -0,0 +1,96 @@
+package com.rga78.utils.coll;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Cheap, coarse System.nanoTime: a daemon thread samples System.nanoTime every
+ * resolution, and nanoTime() just returns the last sample (a volatile read).
+ *
+ * For stamping high-rate events where a millisecond or so of error doesn't
+ * matter (e.g. TimeWindowedQueue).
+ */
+public class CoarseClock implements LongSupplier {
+
+    /**
+     * Lazy holder for the default clock.
+     */
+    private static class DefaultHolder {
+        static final CoarseClock INSTANCE = new CoarseClock(1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The last sample of System.nanoTime.
+     */
+    private volatile long now;
+
+    private final long resolutionNanos;
+
+    private volatile boolean stopped = false;
+
+    /**
+     * CTOR.  Starts the ticker thread.
+     *
+     * @param resolution how often to sample System.nanoTime
+     */
+    public CoarseClock(long resolution, TimeUnit unit) {
+        this.resolutionNanos = unit.toNanos(resolution);
+        if (resolutionNanos <= 0) {
+            throw new IllegalArgumentException("resolution must be > 0");
+        }
+        this.now = System.nanoTime();
+
+        Thread ticker = new Thread("CoarseClock-ticker") {
+            public void run() {
+                while (!stopped) {
+                    LockSupport.parkNanos(resolutionNanos);
+                    now = System.nanoTime();
+                }
+            }
+        };
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * @return the shared clock, with 1ms resolution.
+     */
+    public static CoarseClock getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * @return System.nanoTime, as of the last tick.
+     */
+    public long nanoTime() {
+        return now;
+    }
+
+    /**
+     * @return nanoTime().
+     */
+    @Override
+    public long getAsLong() {
+        return now;
+    }
+
+    /**
+     * @return the resolution in nanos.
+     */
+    public long getResolutionNanos() {
+        return resolutionNanos;
+    }
+
+    /**
+     * Stop the ticker thread.  The clock stops advancing.
+     *
+     * @throws IllegalStateException if this is the shared default clock.
+     */
+    public void stop() {
+        if (this == getDefault()) {
+            throw new IllegalStateException("The default CoarseClock can't be stopped");
+        }
+        stopped = true;
+    }
+}
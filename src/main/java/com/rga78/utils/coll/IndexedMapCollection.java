@@ -0,0 +1,279 @@
+package com.rga78.utils.coll;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A collection of Maps (e.g. JSON documents) for running many filter queries
+ * against, with the same results as Cawls.findAll/findFirst, but without
+ * scanning the whole collection for every query.
+ *
+ * A hash index (field value -> positions of the documents with that value) is
+ * built for each field the first time it's used in a filter.  Each query uses
+ * the most selective index among its fields (i.e. the one with the fewest
+ * candidates), then checks the candidates against the full filter with
+ * Cawls.containsAll.  The results are in collection order, same as findAll.
+ *
+ * Filter values that are Maps are compared entry by entry by Cawls.containsAll
+ * (see Cawls.mapEquals), which a hash lookup can't do, so those fields aren't
+ * indexed.  Nor is a null field (key).  A query with no indexable field scans the
+ * collection.
+ *
+ * Queries are thread-safe.  add() blocks queries while it updates the indexes.
+ * The documents must not be modified once they're added (the indexes would be stale).
+ *
+ * Usage:
+ *      IndexedMapCollection docs = new IndexedMapCollection( loadDocuments() );
+ *      List<Map> running = docs.findAll( new MapBuilder().append("state", "running") );
+ */
+public class IndexedMapCollection extends AbstractCollection<Map> {
+
+    /**
+     * The documents.
+     */
+    private final List<Map> documents;
+
+    /**
+     * field -> index.  Built lazily.
+     */
+    private final Map<Object, Index> indexes = new ConcurrentHashMap<Object, Index>();
+
+    /**
+     * Queries hold the read lock; add holds the write lock.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * CTOR.  An empty collection.
+     */
+    public IndexedMapCollection() {
+        this.documents = new ArrayList<Map>();
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param documents - copied into the collection, in iteration order.
+     */
+    public IndexedMapCollection(Collection<Map> documents) {
+        this.documents = (documents != null) ? new ArrayList<Map>(documents) : new ArrayList<Map>();
+    }
+
+    /**
+     * Add the document to the end of the collection, and to the indexes built so far.
+     *
+     * @return true
+     */
+    @Override
+    public boolean add(Map document) {
+        if (document == null) {
+            throw new NullPointerException();
+        }
+        lock.writeLock().lock();
+        try {
+            int position = documents.size();
+            documents.add(document);
+            for (Index index : indexes.values()) {
+                index.add(document, position);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the documents that match the given filter (see Cawls.findAll), in collection order.
+     */
+    public List<Map> findAll(Map filter) {
+        return find(filter, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the first document that matches the given filter (see Cawls.findFirst), or null.
+     */
+    public Map findFirst(Map filter) {
+        List<Map> found = find(filter, 1);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * @return up to max documents that match the given filter, in collection order.
+     */
+    protected List<Map> find(Map filter, int max) {
+        List<Map> retMe = new ArrayList<Map>();
+
+        lock.readLock().lock();
+        try {
+            Postings candidates = selectCandidates(filter);
+            if (candidates == null) {
+                // No usable index.  Scan.
+                for (int i = 0; i < documents.size() && retMe.size() < max; ++i) {
+                    addIfMatch(retMe, documents.get(i), filter);
+                }
+            } else {
+                for (int i = 0; i < candidates.size && retMe.size() < max; ++i) {
+                    addIfMatch(retMe, documents.get( candidates.positions[i] ), filter);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return retMe;
+    }
+
+    private void addIfMatch(List<Map> results, Map document, Map filter) {
+        if (Cawls.containsAll(document, filter)) {
+            results.add(document);
+        }
+    }
+
+    /**
+     * Must be called under the read lock.
+     *
+     * @return the positions of the candidate documents for the filter, from the most
+     *         selective index among the filter's fields; or null if none of the fields
+     *         can be indexed.
+     */
+    private Postings selectCandidates(Map filter) {
+        Postings retMe = null;
+        for (Map.Entry entry : (Set<Map.Entry>) filter.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() instanceof Map) {
+                // Checked by containsAll.  (The index map can't hold a null key.)
+                continue;
+            }
+            Postings postings = getIndex( entry.getKey() ).get( entry.getValue() );
+            if (postings == null) {
+                return Postings.EMPTY;
+            }
+            if (retMe == null || postings.size < retMe.size) {
+                retMe = postings;
+            }
+        }
+        return retMe;
+    }
+
+    /**
+     * Must be called under the read lock (so add() can't run while the index is built).
+     *
+     * @return the index for the given field, building it if necessary.
+     */
+    private Index getIndex(Object field) {
+        Index retMe = indexes.get(field);
+        if (retMe == null) {
+            synchronized (indexes) {
+                retMe = indexes.get(field);
+                if (retMe == null) {
+                    retMe = new Index(field);
+                    for (int i = 0; i < documents.size(); ++i) {
+                        retMe.add(documents.get(i), i);
+                    }
+                    indexes.put(field, retMe);
+                }
+            }
+        }
+        return retMe;
+    }
+
+    /**
+     * @return the fields that have been indexed so far.
+     */
+    public Set<Object> getIndexedFields() {
+        return Collections.unmodifiableSet( indexes.keySet() );
+    }
+
+    /**
+     * Drop all indexes (e.g. to free the memory).  They're rebuilt as needed.
+     */
+    public void dropIndexes() {
+        lock.writeLock().lock();
+        try {
+            indexes.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of documents.
+     */
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a read-only iterator over the documents.  Not safe to use while
+     *         documents are being added.
+     */
+    @Override
+    public Iterator<Map> iterator() {
+        return Collections.unmodifiableList(documents).iterator();
+    }
+
+    /**
+     * Hash index on one field: field value -> positions of the documents
+     * with that value (null for documents that don't have the field, same as
+     * Map.get, which is what Cawls.containsAll compares).
+     */
+    private static class Index {
+
+        private final Object field;
+
+        private final Map<Object, Postings> postings = new HashMap<Object, Postings>();
+
+        Index(Object field) {
+            this.field = field;
+        }
+
+        void add(Map document, int position) {
+            Object value = document.get(field);
+            Postings p = postings.get(value);
+            if (p == null) {
+                p = new Postings();
+                postings.put(value, p);
+            }
+            p.add(position);
+        }
+
+        Postings get(Object value) {
+            return postings.get(value);
+        }
+    }
+
+    /**
+     * Positions of documents, in ascending (i.e. collection) order.
+     */
+    private static class Postings {
+
+        static final Postings EMPTY = new Postings();
+
+        int[] positions = new int[4];
+
+        int size = 0;
+
+        void add(int position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+    }
+}
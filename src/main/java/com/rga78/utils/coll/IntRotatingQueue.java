@@ -0,0 +1,88 @@
+package com.rga78.utils.coll;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Thread-safe, unsynchronized, bounded rotating queue of int values.
+ * Same as SimpleRotatingQueue, but the values are kept in an AtomicIntegerArray,
+ * so adding a value doesn't box it or allocate anything.
+ * 
+ * Optimized for fast writes (see SlotSequencer).  Reads copy the entire
+ * queue into a caller-provided array.
+ */
+public class IntRotatingQueue {
+
+    private final AtomicIntegerArray values;
+    private final SlotSequencer sequencer;
+
+    /**
+     * CTOR.
+     * 
+     * @param capacity - the size of the queue.
+     */
+    public IntRotatingQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        this.values = new AtomicIntegerArray(capacity);
+        this.sequencer = new SlotSequencer(capacity);
+    }
+
+    /**
+     * Add the value to the queue, overwriting the oldest value if the queue is full.
+     */
+    public void add(int value) {
+        long seq = sequencer.claim();
+        int slot = sequencer.slot(seq);
+        if (sequencer.beginWrite(seq, slot)) {
+            values.set(slot, value);
+            sequencer.endWrite(seq, slot);
+        }
+    }
+
+    /**
+     * Copy a consistent snapshot of the queue into the given array, in order from 
+     * head to tail (oldest first).  Slots that haven't been written yet (or whose 
+     * writes were lost) are skipped, so the values are packed at the start of the array.
+     * If writers keep lapping the copy, only the newest values are copied (see
+     * SlotSequencer.snapshot).
+     * 
+     * @param arr - the target array; must be at least as long as the capacity
+     * 
+     * @return the number of values copied into arr.
+     */
+    public int toArray(final int[] arr) {
+        if (arr.length < values.length()) {
+            throw new IllegalArgumentException("array length " + arr.length + " is less than the capacity " + values.length());
+        }
+
+        final int[] count = new int[1];
+        sequencer.snapshot( new SlotSequencer.SlotCopier() {
+            public void begin() {
+                count[0] = 0;
+            }
+            public void copy(int slot, int index) {
+                arr[count[0]++] = values.get(slot);
+            }
+            public void clear(int index) {
+                // Nothing there; skipped.  (A copy that fails validation fails the whole attempt, which starts over with begin.)
+            }
+        });
+
+        return count[0];
+    }
+
+    /**
+     * @return the capacity of the queue.
+     */
+    public int getCapacity() {
+        return values.length();
+    }
+
+    /**
+     * @return the number of values ever added to the queue.
+     */
+    public long getAddCount() {
+        return sequencer.tail();
+    }
+}
@@ -0,0 +1,399 @@
+package com.rga78.utils.coll;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Off-heap variant of SimpleRotatingQueue for variable-length binary records
+ * (e.g. encoded events): keeps the last capacity bytes' worth of records in a
+ * direct ByteBuffer or a memory-mapped file, so they don't live on the java heap.
+ *
+ * The buffer is a circular region of records.  Each record is a 16-byte header
+ * followed by the payload, padded to a multiple of 16 bytes:
+ *
+ *      long position   - the absolute position of the record (bytes written before it)
+ *      int length      - length of the payload (PADDING for the filler at the end of the region)
+ *      int crc         - CRC32 of the position, length and payload
+ *
+ * A record never wraps: if it doesn't fit before the end of the region, the rest
+ * of the region is filled with a padding record and the record starts at offset 0.
+ *
+ * Lock-free: appenders reserve space with a CAS on the tail position, then write
+ * their records concurrently.  Readers don't block appenders either - a record
+ * is only read back if its header names the position it was read from and
+ * the CRC matches the payload, so records that were overwritten (or were still
+ * being written) while they were read are skipped.
+ *
+ * Since every record is self-validating, the window can be recovered from a raw
+ * image of the region, with no other bookkeeping.  For a memory-mapped queue the
+ * file itself is that image, so the records survive a crash of the JVM:
+ *
+ *      OffHeapRotatingQueue recorder = OffHeapRotatingQueue.map( path, 8 * 1024 * 1024 );
+ *      recorder.add( encodedEvent );
+ *      ...
+ *      // after a crash
+ *      List<byte[]> events = OffHeapRotatingQueue.recover( path );
+ *
+ * For a direct buffer, use dumpTo to write the same image to a file.
+ */
+public class OffHeapRotatingQueue {
+
+    /**
+     * Records are aligned to (and the header is) this many bytes.
+     */
+    static final int ALIGNMENT = 16;
+
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * Record length of the padding record at the end of the region.
+     */
+    static final int PADDING = -1;
+
+    /**
+     * Identifies a dump/mapped file ("RGARING1").
+     */
+    static final long MAGIC = 0x52474152494e4731L;
+
+    /**
+     * Size of the dump/mapped file header: magic, capacity (the region follows).
+     */
+    static final int FILE_HEADER_SIZE = 64;
+
+    /**
+     * The circular region.
+     */
+    private final ByteBuffer region;
+
+    /**
+     * Size of the region.
+     */
+    private final int capacity;
+
+    /**
+     * The absolute position of the next record (i.e. the number of bytes reserved so far).
+     */
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * CTOR.
+     *
+     * @param region the circular region; its capacity must be a multiple of ALIGNMENT.
+     */
+    OffHeapRotatingQueue(ByteBuffer region) {
+        this.region = region;
+        this.capacity = region.capacity();
+    }
+
+    /**
+     * @param capacity the size of the region in bytes (rounded up to a multiple of 16)
+     *
+     * @return a queue backed by a direct ByteBuffer.
+     */
+    public static OffHeapRotatingQueue allocateDirect(int capacity) {
+        return new OffHeapRotatingQueue( ByteBuffer.allocateDirect( alignCapacity(capacity) ) );
+    }
+
+    /**
+     * The file is created (or truncated) and mapped.  It holds the records, in the
+     * same format as dumpTo, for as long as the OS keeps the mapping's pages (i.e.
+     * even if the JVM crashes).  Use recover to read them back.
+     *
+     * @param capacity the size of the region in bytes (rounded up to a multiple of 16)
+     *
+     * @return a queue backed by the memory-mapped file.
+     */
+    public static OffHeapRotatingQueue map(Path path, int capacity) throws IOException {
+        capacity = alignCapacity(capacity);
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open( path,
+                                                     StandardOpenOption.CREATE,
+                                                     StandardOpenOption.TRUNCATE_EXISTING,
+                                                     StandardOpenOption.READ,
+                                                     StandardOpenOption.WRITE )) {
+            buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, (long) FILE_HEADER_SIZE + capacity );
+        }
+        buffer.putLong(0, MAGIC);
+        buffer.putInt(8, capacity);
+        // Buffer methods are called via Buffer throughout: the covariant overrides
+        // in ByteBuffer (and MappedByteBuffer) are Java 9+.
+        ((Buffer) buffer).position(FILE_HEADER_SIZE);
+        return new OffHeapRotatingQueue( ((ByteBuffer) buffer).slice() );
+    }
+
+    /**
+     * @return the capacity rounded up to a multiple of ALIGNMENT.
+     */
+    private static int alignCapacity(int capacity) {
+        if (capacity < 2 * ALIGNMENT) {
+            throw new IllegalArgumentException("capacity must be >= " + (2 * ALIGNMENT));
+        }
+        return align(capacity);
+    }
+
+    /**
+     * @return the value rounded up to a multiple of ALIGNMENT.
+     */
+    private static int align(int value) {
+        return (value + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    /**
+     * @return the size of the region in bytes.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the total number of bytes (records plus headers and padding) added so far.
+     */
+    public long getBytesWritten() {
+        return tail.get();
+    }
+
+    /**
+     * @return the largest record that can be added.
+     */
+    public int getMaxRecordLength() {
+        return capacity / 2 - HEADER_SIZE;
+    }
+
+    /**
+     * Add a record.
+     *
+     * @return true
+     *
+     * @throws IllegalArgumentException if the record is larger than getMaxRecordLength.
+     */
+    public boolean add(byte[] record) {
+        return add(record, 0, record.length);
+    }
+
+    /**
+     * Add a record.
+     *
+     * @return true
+     *
+     * @throws IllegalArgumentException if the record is larger than getMaxRecordLength.
+     */
+    public boolean add(byte[] buf, int off, int len) {
+        return add( ByteBuffer.wrap(buf, off, len) );
+    }
+
+    /**
+     * Add the remaining bytes of the given buffer as a record.  The buffer's position
+     * is not changed.
+     *
+     * @return true
+     *
+     * @throws IllegalArgumentException if the record is larger than getMaxRecordLength.
+     */
+    public boolean add(ByteBuffer record) {
+        int len = record.remaining();
+        if (len > getMaxRecordLength()) {
+            throw new IllegalArgumentException("Record length " + len + " exceeds the max (" + getMaxRecordLength() + ")");
+        }
+
+        // Reserve space for the record, plus padding if it doesn't fit before the end of the region.
+        int size = align(HEADER_SIZE + len);
+        long pos;
+        int off;
+        int pad;
+        do {
+            pos = tail.get();
+            off = offset(pos);
+            pad = (off + size > capacity) ? capacity - off : 0;
+        } while (!tail.compareAndSet(pos, pos + pad + size));
+
+        if (pad > 0) {
+            writeHeader(off, pos, PADDING, 0);
+            pos += pad;
+            off = 0;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update( ByteBuffer.allocate(12).putLong(0, pos).putInt(8, len) );
+        crc.update( record.duplicate() );
+
+        // Invalidate the header first, so the record isn't mistaken for the one
+        // it's overwriting; then write the payload, and the header last.
+        region.putLong(off, -1);
+        ByteBuffer dest = region.duplicate();
+        ((Buffer) dest).position(off + HEADER_SIZE);
+        dest.put( record.duplicate() );
+        writeHeader(off, pos, len, (int) crc.getValue());
+        return true;
+    }
+
+    /**
+     * Write a record header.  The position is written last, since it's what
+     * validates the header.
+     */
+    private void writeHeader(int off, long pos, int len, int crc) {
+        region.putInt(off + 8, len);
+        region.putInt(off + 12, crc);
+        region.putLong(off, pos);
+    }
+
+    /**
+     * @return the offset in the region of the given absolute position.
+     */
+    private int offset(long pos) {
+        return (int) (pos % capacity);
+    }
+
+    /**
+     * @return a copy of the records in the queue, oldest first.  Records being
+     *         written (or overwritten) during the copy are left out.
+     */
+    public List<byte[]> toList() {
+        return parse( copyRegion(), capacity );
+    }
+
+    /**
+     * Write an image of the queue to the given file (created or truncated),
+     * in the same format as a memory-mapped queue.  Use recover to read it back.
+     */
+    public void dumpTo(Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putLong(0, MAGIC);
+        header.putInt(8, capacity);
+
+        try (FileChannel channel = FileChannel.open( path,
+                                                     StandardOpenOption.CREATE,
+                                                     StandardOpenOption.TRUNCATE_EXISTING,
+                                                     StandardOpenOption.WRITE )) {
+            ByteBuffer image = ByteBuffer.wrap( copyRegion() );
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (image.hasRemaining()) {
+                channel.write(image);
+            }
+        }
+    }
+
+    /**
+     * Read back the records from a memory-mapped queue's file or a dump (see dumpTo).
+     * Records that were incomplete or corrupt (e.g. being written when the JVM crashed)
+     * are left out.
+     *
+     * @return the records, oldest first.
+     *
+     * @throws IOException if the file can't be read or isn't a dump.
+     */
+    public static List<byte[]> recover(Path path) throws IOException {
+        byte[] image = Files.readAllBytes(path);
+        ByteBuffer header = ByteBuffer.wrap(image);
+        if (image.length < FILE_HEADER_SIZE || header.getLong(0) != MAGIC) {
+            throw new IOException("Not an OffHeapRotatingQueue dump: " + path);
+        }
+        int capacity = header.getInt(8);
+        if (capacity <= 0 || capacity % ALIGNMENT != 0 || image.length - FILE_HEADER_SIZE < capacity) {
+            throw new IOException("Truncated or corrupt OffHeapRotatingQueue dump: " + path);
+        }
+
+        byte[] region = new byte[capacity];
+        System.arraycopy(image, FILE_HEADER_SIZE, region, 0, capacity);
+        return parse(region, capacity);
+    }
+
+    /**
+     * @return a copy of the region's bytes.
+     */
+    private byte[] copyRegion() {
+        byte[] retMe = new byte[capacity];
+        ByteBuffer src = region.duplicate();
+        ((Buffer) src).clear();
+        src.get(retMe);
+        return retMe;
+    }
+
+    /**
+     * A record read back from an image of the region.
+     */
+    private static class Record {
+        final long position;
+        final byte[] payload;
+
+        Record(long position, byte[] payload) {
+            this.position = position;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Scan an image of the region for valid records.  Wherever there's no valid
+     * record, the scan resyncs at the next aligned offset.
+     *
+     * The records found can be from earlier trips around the region (that weren't
+     * overwritten), so only the records in the last window of capacity bytes are kept.
+     *
+     * @return the payloads of the records, oldest first.
+     */
+    static List<byte[]> parse(byte[] image, int capacity) {
+        ByteBuffer buffer = ByteBuffer.wrap(image);
+        List<Record> records = new ArrayList<Record>();
+        long end = 0;
+
+        int off = 0;
+        while (off + HEADER_SIZE <= capacity) {
+            long pos = buffer.getLong(off);
+            int len = buffer.getInt(off + 8);
+            if (pos < 0 || pos % capacity != off) {
+                off += ALIGNMENT;
+            } else if (len == PADDING) {
+                end = Math.max(end, pos + capacity - off);
+                off = capacity;
+            } else if (len < 0 || len > capacity - off - HEADER_SIZE || !checkCrc(image, off, len, buffer.getInt(off + 12))) {
+                off += ALIGNMENT;
+            } else {
+                byte[] payload = new byte[len];
+                System.arraycopy(image, off + HEADER_SIZE, payload, 0, len);
+                records.add( new Record(pos, payload) );
+
+                int size = align(HEADER_SIZE + len);
+                end = Math.max(end, pos + size);
+                off += size;
+            }
+        }
+
+        Collections.sort(records, new Comparator<Record>() {
+            public int compare(Record r1, Record r2) {
+                return Long.compare(r1.position, r2.position);
+            }
+        });
+
+        List<byte[]> retMe = new ArrayList<byte[]>(records.size());
+        for (Record record : records) {
+            if (record.position >= end - capacity) {
+                retMe.add(record.payload);
+            }
+        }
+        return retMe;
+    }
+
+    /**
+     * @return true if the CRC32 of the record's position, length and payload
+     *         is the given value.
+     */
+    private static boolean checkCrc(byte[] image, int off, int len, int expected) {
+        CRC32 crc = new CRC32();
+        crc.update(image, off, 12);
+        crc.update(image, off + HEADER_SIZE, len);
+        return (int) crc.getValue() == expected;
+    }
+}
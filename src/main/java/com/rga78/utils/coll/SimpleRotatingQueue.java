@@ -12,201 +12,526 @@
 package com.rga78.utils.coll;
 
 import java.lang.reflect.Array;
+import java.util.AbstractQueue;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.Queue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * 
  * Thread-safe, unsynchronized, simple bounded rotating queue.
- * Uses an AtomicInteger to handle concurrency.
+ * Lock-free: uses a 64-bit sequence and per-slot sequence stamps to handle 
+ * concurrency (see SlotSequencer).
  * 
- * Optimized for fast writes.
+ * Optimized for fast writes.  An add is one getAndIncrement of the sequence
+ * plus two uncontended CASes on the slot's stamp; it never waits for other writers.
+ * If a writer is lapped by a full trip around the queue while it's writing, the
+ * newer write to the same slot is dropped rather than waiting for it.
  * 
- * Reads are slow - the entire queue is copied and returned.
+ * When the queue is full, what happens depends on the WhenFull policy:
+ * OVERWRITE_OLDEST (the default) overwrites the oldest element, so writes never fail
+ * and never wait (a lossy handoff); REJECT fails the offer instead (add throws
+ * IllegalStateException), and the write claims its sequence with a CAS.
  * 
- * Implements Queue to make it easier to pass a reference to one
- * of these objects around from bundle to bundle without having
- * to share the impl.
+ * Can be used as a bounded MPMC handoff: any number of threads can offer, and
+ * any number can poll/peek/drainTo, all lock-free.  Elements that were overwritten
+ * before they were polled are skipped.  poll and peek return null if the oldest
+ * element is still being written, even if newer elements have been published.
+ * Polled slots aren't cleared, so up to capacity polled elements stay reachable
+ * until they're overwritten.
  * 
- * Only the Queue.add() and Queue.toArray() methods are implemented
- * (didn't bother with the others since this class is only used internally).
- * Writes are done using add(). Reads are done using toArray().
+ * toArray(T[]) is the history view of the queue: a consistent copy of the last
+ * capacity elements added (see toArray).  To tail the history incrementally,
+ * use a Cursor.  The iterator (and toArray()) are weakly consistent views of the
+ * unconsumed elements.
  */
-public class SimpleRotatingQueue<T> implements Queue<T> {
+public class SimpleRotatingQueue<T> extends AbstractQueue<T> {
 
-    private final T[] elements;
-    private final AtomicInteger tailIndex = new AtomicInteger(0);
+    /**
+     * What to do when the queue is full.
+     */
+    public enum WhenFull {
+
+        /**
+         * Overwrite the oldest element.
+         */
+        OVERWRITE_OLDEST,
+
+        /**
+         * Reject the new element.
+         */
+        REJECT
+    }
+
+    private final AtomicReferenceArray<T> elements;
+    private final SlotSequencer sequencer;
+    private final WhenFull whenFull;
+
+    /**
+     * The sequence of the next element to poll.  Elements before it have been
+     * consumed (or overwritten).
+     */
+    private final AtomicLong head = new AtomicLong(0);
 
     /**
      * CTOR.
      * 
-     * @param elements - the array that will contain the queue elements.
-     *            the size of the array determines the size of the queue.
+     * Note: only the length of the array is used.  The queue keeps its elements in 
+     * its own storage, so the array is neither read nor written (its contents are
+     * ignored, and it doesn't reflect the queue).  See SimpleRotatingQueue(int).
+     * 
+     * @param elements - the size of the array determines the size of the queue.
      */
     public SimpleRotatingQueue(T[] elements) {
+        this(elements, WhenFull.OVERWRITE_OLDEST);
+    }
+
+    /**
+     * CTOR.
+     * 
+     * Note: only the length of the array is used (see SimpleRotatingQueue(T[])).
+     * 
+     * @param elements - the size of the array determines the size of the queue.
+     * @param whenFull - what to do when the queue is full.
+     */
+    public SimpleRotatingQueue(T[] elements, WhenFull whenFull) {
+        this( lengthOf(elements), whenFull );
+    }
+
+    /**
+     * CTOR.
+     * 
+     * @param capacity - the size of the queue.
+     */
+    public SimpleRotatingQueue(int capacity) {
+        this(capacity, WhenFull.OVERWRITE_OLDEST);
+    }
+
+    /**
+     * CTOR.
+     * 
+     * @param capacity - the size of the queue.
+     * @param whenFull - what to do when the queue is full.
+     */
+    public SimpleRotatingQueue(int capacity, WhenFull whenFull) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+
+        this.elements = new AtomicReferenceArray<T>(capacity);
+        this.sequencer = new SlotSequencer(capacity);
+        this.whenFull = whenFull;
+    }
+
+    /**
+     * @return the length of the given elements array.
+     * 
+     * @throws IllegalArgumentException if the array is null or zero-length.
+     */
+    private static int lengthOf(Object[] elements) {
         if (elements == null || elements.length == 0) {
             throw new IllegalArgumentException("elements array must not be null or zero-length");
         }
-
-        this.elements = elements; // (T[]) Array.newInstance(clazz, size); // Need to do it this way bc of generic type.
+        return elements.length;
     }
 
     /**
      * @param element to be added to the queue
-     * @return true
+     * @return true, unless the WhenFull policy is REJECT and the queue is full (or the
+     *         element couldn't be written, see clear).
+     */
+    @Override
+    public boolean offer(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+
+        long seq = (whenFull == WhenFull.REJECT)
+                   ? sequencer.tryClaim( head.get() + elements.length() )
+                   : sequencer.claim();
+        if (seq < 0) {
+            return false;
+        }
+
+        int slot = sequencer.slot(seq);
+        if (sequencer.beginWrite(seq, slot)) {
+            elements.set(slot, element);
+            sequencer.endWrite(seq, slot);
+            return true;
+        }
+
+        // The write was dropped (a lapped writer still holds the slot).  Fine when
+        // overwriting, but REJECT never loses an element silently.  (In REJECT mode
+        // writers can only lap each other after clear() skips past writes in flight.)
+        return whenFull != WhenFull.REJECT;
+    }
+
+    /**
+     * @return the oldest element, removing it from the queue; or null if the queue
+     *         is empty (or the oldest element is still being written).
      */
     @Override
-    public boolean add(T element) {
-        elements[getAndUpdateTail()] = element;
-        return true;
+    public T poll() {
+        return next(true);
+    }
+
+    /**
+     * @return the oldest element; or null if the queue is empty (or the oldest
+     *         element is still being written).
+     */
+    @Override
+    public T peek() {
+        return next(false);
     }
 
     /**
-     * Atomically update and return the tailIndex.
+     * Find the oldest element, skipping (i.e. consuming) any that were lost or
+     * overwritten.
+     * 
+     * @param remove - whether to consume the element.
      * 
-     * Guarantees that two threads won't simultaneously update the same slot
-     * in the array.
+     * @return the oldest element, or null.
      */
-    private int getAndUpdateTail() {
-        int retMe;
+    private T next(boolean remove) {
+        for (;;) {
+            long h = head.get();
+            long tail = sequencer.tail();
+            if (h >= tail) {
+                return null;
+            }
+            if (h < tail - elements.length()) {
+                // Overwritten.  Skip to the oldest element still in the queue.
+                head.compareAndSet(h, tail - elements.length());
+                continue;
+            }
+
+            int slot = sequencer.slot(h);
+            long s = sequencer.stamp(slot);
+            if (s == SlotSequencer.encode(h, SlotSequencer.PUBLISHED)) {
+                T retMe = elements.get(slot);
+                if (sequencer.stamp(slot) != s) {
+                    continue;       // overwritten during the read.
+                }
+                if (!remove || head.compareAndSet(h, h + 1)) {
+                    return retMe;
+                }
+            } else if (SlotSequencer.seqOf(s) > h || SlotSequencer.stateOf(s) != SlotSequencer.WRITING) {
+                // Lost (the write was dropped) or already overwritten.
+                if (SlotSequencer.seqOf(s) >= h) {
+                    head.compareAndSet(h, h + 1);
+                    continue;
+                }
+                return null;        // claimed, but the writer hasn't started writing yet.
+            } else {
+                return null;        // still being written.
+            }
+        }
+    }
 
-        do {
-            retMe = tailIndex.get();
-        } while (tailIndex.compareAndSet(retMe, getNext(retMe)) == false);
+    /**
+     * Remove all available elements and add them to the given collection.
+     * 
+     * @return the number of elements transferred.
+     */
+    public int drainTo(Collection<? super T> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
 
+    /**
+     * Remove up to maxElements available elements and add them to the given collection.
+     * 
+     * @return the number of elements transferred.
+     */
+    public int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int retMe = 0;
+        T element;
+        while (retMe < maxElements && (element = poll()) != null) {
+            c.add(element);
+            ++retMe;
+        }
         return retMe;
     }
 
     /**
-     * @return the next index after the given one (wraps)
+     * @return a new cursor, positioned at the oldest element still in the queue's
+     *         history (i.e. the first read returns up to the last capacity elements added).
      */
-    private int getNext(int index) {
-        return (++index == elements.length) ? 0 : index;
+    public Cursor cursor() {
+        return new Cursor( Math.max(0, sequencer.tail() - elements.length()) );
     }
 
     /**
      * 
-     * @return an atomic copy of the queue. The elements in the returned array
-     *         are in order from head to tail so it can be iterated normally.
+     * @return a consistent copy of the last capacity elements added. The elements
+     *         in the returned array are in order from head to tail so it can be
+     *         iterated normally.  Slots that haven't been written yet, or whose
+     *         elements have already been polled, are null.  If writers keep lapping
+     *         the copy, the snapshot is narrowed to the newest elements and the older
+     *         slots are null (see SlotSequencer.snapshot).
      * 
      */
     @Override
-    public <T> T[] toArray(T[] arr) {
+    public <E> E[] toArray(E[] arr) {
 
         if (arr == null) {
             return null;
         }
 
-        T[] retMe = (arr.length >= elements.length)
+        final E[] retMe = (arr.length >= elements.length())
                         ? arr
-                        : (T[]) Array.newInstance(arr.getClass().getComponentType(), elements.length);
-
-        int currTailIndex;
-        do {
-            currTailIndex = tailIndex.get(); // start from the tailIndex (technically the first slot *after* the tail)
-
-            int firstCopyLen = elements.length - currTailIndex;
-
-            // copy from elements[currTailIndex -> <end>]  into  retMe[0 -> firstCopyLen]
-            System.arraycopy(elements, currTailIndex, retMe, 0, firstCopyLen);
-
-            // copy from elements[0 -> currTailIndex]  into retMe[firstCopyLen -> <end>]
-            System.arraycopy(elements, 0, retMe, firstCopyLen, currTailIndex);
-
-            // Make sure tailIndex wasn't updated by another thread during the copy
-        } while (tailIndex.compareAndSet(currTailIndex, currTailIndex) == false);
+                        : (E[]) Array.newInstance(arr.getClass().getComponentType(), elements.length());
+
+        long tail = sequencer.snapshot( new SlotSequencer.SlotCopier() {
+            public void begin() {}
+            public void copy(int slot, int index) {
+                retMe[index] = (E) elements.get(slot);
+            }
+            public void clear(int index) {
+                retMe[index] = null;
+            }
+        });
+
+        long h = head.get();
+        for (int i = 0; i < elements.length() && tail - elements.length() + i < h; ++i) {
+            retMe[i] = null;
+        }
 
         return retMe;
     }
 
     /**
-     * @return the capacity of the queue (NOT the number of elements in it)
-     * @see java.util.Collection#size()
+     * @return the number of elements in the queue, i.e. added and not yet polled or
+     *         overwritten (including any still being written, or lost by lapped writers).
      */
     @Override
     public int size() {
-        return elements.length;
+        long h = head.get();
+        long tail = sequencer.tail();
+        return (int) Math.max(0, Math.min(elements.length(), tail - h));
     }
 
     /**
-     * @return false
+     * @return the capacity of the queue.
      */
-    @Override
-    public boolean isEmpty() {
-        return false;
+    public int getCapacity() {
+        return elements.length();
     }
 
-    // NOT IMPLEMENTED
+    /**
+     * @return the WhenFull policy.
+     */
+    public WhenFull getWhenFull() {
+        return whenFull;
+    }
 
+    /**
+     * Consume all elements added so far.  Writes still in flight are consumed too;
+     * in REJECT mode, an offer that then laps one of them is rejected.
+     */
     @Override
-    public boolean contains(Object o) {
-        throw new UnsupportedOperationException();
+    public void clear() {
+        long h;
+        long tail = sequencer.tail();
+        while ((h = head.get()) < tail && !head.compareAndSet(h, tail)) {
+            // retry
+        }
     }
 
+    /**
+     * @return a weakly consistent iterator over the elements in the queue, oldest
+     *         first, as of when the iterator was created (elements polled or overwritten
+     *         since then may or may not be skipped).  Iterator.remove is not supported.
+     */
     @Override
     public Iterator<T> iterator() {
-        throw new UnsupportedOperationException();
+        return new Itr();
     }
 
-    @Override
-    public Object[] toArray() {
-        throw new UnsupportedOperationException();
-    }
+    /**
+     * Incremental reader: each read returns only the elements added since the
+     * previous read, so tailing the queue costs in proportion to the new elements
+     * rather than the capacity.  Reading doesn't consume the elements (see poll).
+     *
+     * Elements that were overwritten before the cursor got to them (or whose writes
+     * were dropped by lapped writers) are skipped and counted as lost.  A read stops
+     * at an element that's still being written; the next read picks it up.
+     *
+     * A cursor is meant to be used by one reader thread at a time.
+     *
+     * Usage:
+     *      SimpleRotatingQueue<Event>.Cursor cursor = queue.cursor();
+     *      Event[] batch = new Event[100];
+     *      int count = cursor.read(batch);     // every 100ms
+     *      long lost = cursor.getLostCount();
+     */
+    public class Cursor {
+
+        /**
+         * The sequence of the next element to read.
+         */
+        private long position;
+
+        /**
+         * Number of elements skipped because they were lost.
+         */
+        private long lostCount = 0;
+
+        /**
+         * CTOR.
+         */
+        Cursor(long position) {
+            this.position = position;
+        }
 
-    @Override
-    public boolean remove(Object o) {
-        throw new UnsupportedOperationException();
-    }
+        /**
+         * Copy the new elements into the given array, up to arr.length.
+         *
+         * @return the number of elements copied, into arr[0 .. retMe).
+         */
+        public int read(T[] arr) {
+            int retMe = 0;
+            T element;
+            while (retMe < arr.length && (element = readNext()) != null) {
+                arr[retMe++] = element;
+            }
+            return retMe;
+        }
 
-    @Override
-    public boolean containsAll(Collection<?> c) {
-        throw new UnsupportedOperationException();
-    }
+        /**
+         * Add the new elements to the given collection, up to maxElements.
+         *
+         * @return the number of elements added.
+         */
+        public int read(Collection<? super T> c, int maxElements) {
+            int retMe = 0;
+            T element;
+            while (retMe < maxElements && (element = readNext()) != null) {
+                c.add(element);
+                ++retMe;
+            }
+            return retMe;
+        }
 
-    @Override
-    public boolean addAll(Collection<? extends T> c) {
-        throw new UnsupportedOperationException();
-    }
+        /**
+         * @return the next element, or null if there's none (yet).
+         */
+        private T readNext() {
+            long tail = sequencer.tail();
+            if (position < tail - elements.length()) {
+                // Overwritten.  Skip to the oldest element still in the queue.
+                lostCount += tail - elements.length() - position;
+                position = tail - elements.length();
+            }
+
+            while (position < tail) {
+                int slot = sequencer.slot(position);
+                long s = sequencer.stamp(slot);
+                if (s == SlotSequencer.encode(position, SlotSequencer.PUBLISHED)) {
+                    T retMe = elements.get(slot);
+                    ++position;
+                    if (sequencer.stamp(slot) == s) {
+                        return retMe;
+                    }
+                    ++lostCount;        // overwritten during the read.
+                } else if (SlotSequencer.seqOf(s) > position
+                           || (SlotSequencer.seqOf(s) == position && SlotSequencer.stateOf(s) != SlotSequencer.WRITING)) {
+                    // Lost (the write was dropped) or already overwritten.
+                    ++position;
+                    ++lostCount;
+                } else {
+                    return null;        // still being written.
+                }
+            }
+            return null;
+        }
 
-    @Override
-    public boolean removeAll(Collection<?> c) {
-        throw new UnsupportedOperationException();
-    }
+        /**
+         * @return the sequence of the next element to read, i.e. the number of
+         *         elements added to the queue before it.
+         */
+        public long getPosition() {
+            return position;
+        }
 
-    @Override
-    public boolean retainAll(Collection<?> c) {
-        throw new UnsupportedOperationException();
-    }
+        /**
+         * @return the number of elements this cursor has skipped so far because
+         *         they were overwritten (or lost) before it read them.
+         */
+        public long getLostCount() {
+            return lostCount;
+        }
 
-    @Override
-    public void clear() {
-        throw new UnsupportedOperationException();
+        /**
+         * @return the number of elements added since the cursor's position (including
+         *         any that have already been overwritten).
+         */
+        public long getBacklog() {
+            return Math.max(0, sequencer.tail() - position);
+        }
     }
 
-    @Override
-    public boolean offer(T e) {
-        throw new UnsupportedOperationException();
-    }
+    /**
+     * Weakly consistent iterator.
+     */
+    private class Itr implements Iterator<T> {
 
-    @Override
-    public T remove() {
-        throw new UnsupportedOperationException();
-    }
+        /**
+         * The sequence to read next.
+         */
+        private long seq;
 
-    @Override
-    public T poll() {
-        throw new UnsupportedOperationException();
-    }
+        /**
+         * Don't read past here (the tail when the iterator was created).
+         */
+        private final long end;
 
-    @Override
-    public T element() {
-        throw new UnsupportedOperationException();
-    }
+        private T next;
 
-    @Override
-    public T peek() {
-        throw new UnsupportedOperationException();
+        Itr() {
+            end = sequencer.tail();
+            seq = Math.max( head.get(), end - elements.length() );
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && seq < end) {
+                // Skip elements that were consumed or overwritten meanwhile.
+                seq = Math.max( seq, Math.max( head.get(), sequencer.tail() - elements.length() ) );
+                if (seq >= end) {
+                    break;
+                }
+
+                int slot = sequencer.slot(seq);
+                long s = sequencer.stamp(slot);
+                if (s == SlotSequencer.encode(seq, SlotSequencer.PUBLISHED)) {
+                    T element = elements.get(slot);
+                    if (sequencer.stamp(slot) == s) {
+                        next = element;
+                    }
+                }
+                ++seq;
+            }
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T retMe = next;
+            next = null;
+            return retMe;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 }
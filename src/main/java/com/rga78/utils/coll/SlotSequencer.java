@@ -0,0 +1,292 @@
+package com.rga78.utils.coll;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sequencing for the lock-free rotating queues (SimpleRotatingQueue, LongRotatingQueue, etc).
+ *
+ * Each add claims the next value of a 64-bit sequence (which never wraps, so there's no ABA),
+ * and writes slot (seq % capacity).  Each slot has a stamp: the sequence of the last write
+ * to the slot, plus the state of that write:
+ *
+ *      WRITING    - the writer has exclusive access to the slot and is writing it
+ *      PUBLISHED  - the write is done; the slot holds the element for that sequence
+ *      ABANDONED  - the write for that sequence was dropped because an older writer
+ *                   (lapped by a full trip around the ring) is still writing the slot
+ *      LOST       - the write for that sequence was dropped; the slot holds nothing valid
+ *
+ * Only one writer at a time writes a slot's element, so an element is never torn
+ * or overwritten with a stale one.  Writers never wait for each other: a writer that
+ * finds its slot still held by an older (lapped) writer drops its own write.  Otherwise
+ * an add is one getAndIncrement plus two uncontended CASes.
+ *
+ * Readers validate each slot seqlock-style: stamp, element, stamp.  The element
+ * must be read with volatile semantics (e.g. AtomicReferenceArray.get), so it can't
+ * be reordered with the stamp reads.  Readers never block writers.
+ */
+class SlotSequencer {
+
+    static final int PUBLISHED = 0;
+    static final int WRITING = 1;
+    static final int ABANDONED = 2;
+    static final int LOST = 3;
+
+    /**
+     * Initial stamp of every slot: LOST, at sequence -1 (encodes to -1).
+     */
+    static final long EMPTY = encode(-1, LOST);
+
+    /**
+     * Attempts at a snapshot of the full window, before it's narrowed (see snapshot).
+     */
+    static final int FULL_SNAPSHOT_ATTEMPTS = 8;
+
+    /**
+     * Reads/clears one slot of a snapshot.
+     */
+    interface SlotCopier {
+
+        /**
+         * Called at the start of each attempt at the snapshot.
+         */
+        void begin();
+
+        /**
+         * Copy the element in the given slot to position index of the snapshot.
+         */
+        void copy(int slot, int index);
+
+        /**
+         * Clear position index of the snapshot (nothing valid there).
+         */
+        void clear(int index);
+    }
+
+    /**
+     * The number of slots.
+     */
+    private final int capacity;
+
+    /**
+     * capacity - 1, if capacity is a power of 2; else -1.
+     */
+    private final int mask;
+
+    /**
+     * The next sequence to claim.
+     */
+    private final AtomicLong sequence;
+
+    /**
+     * Per-slot stamps.
+     */
+    private final AtomicLongArray stamps;
+
+    /**
+     * CTOR.
+     */
+    SlotSequencer(int capacity) {
+        this(capacity, new AtomicLong(0));
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param sequence the sequence counter (e.g. a padded one, for StripedRotatingQueue)
+     */
+    SlotSequencer(int capacity, AtomicLong sequence) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        this.capacity = capacity;
+        this.sequence = sequence;
+        this.mask = (Integer.bitCount(capacity) == 1) ? capacity - 1 : -1;
+        this.stamps = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            stamps.set(i, EMPTY);
+        }
+    }
+
+    static long encode(long seq, int state) {
+        return (seq << 2) | state;
+    }
+
+    static long seqOf(long stamp) {
+        return stamp >> 2;
+    }
+
+    static int stateOf(long stamp) {
+        return (int) (stamp & 3);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the slot for the given sequence.
+     */
+    int slot(long seq) {
+        return (mask >= 0) ? (int) (seq & mask) : (int) (seq % capacity);
+    }
+
+    /**
+     * @return the next sequence to be claimed (i.e. the number of adds so far).
+     */
+    long tail() {
+        return sequence.get();
+    }
+
+    /**
+     * @return the stamp of the given slot.
+     */
+    long stamp(int slot) {
+        return stamps.get(slot);
+    }
+
+    /**
+     * @return the claimed sequence.
+     */
+    long claim() {
+        return sequence.getAndIncrement();
+    }
+
+    /**
+     * Claim the next sequence, but only if it's less than the given limit
+     * (e.g. to not overwrite elements that haven't been consumed yet).
+     *
+     * @return the claimed sequence, or -1 if the next sequence is >= limit.
+     */
+    long tryClaim(long limit) {
+        for (;;) {
+            long seq = sequence.get();
+            if (seq >= limit) {
+                return -1;
+            }
+            if (sequence.compareAndSet(seq, seq + 1)) {
+                return seq;
+            }
+        }
+    }
+
+    /**
+     * Try to get exclusive access to the slot, to write the element for the given sequence.
+     *
+     * @return true if the caller must write the element then call endWrite; false if the
+     *         write must be dropped (the slot was already claimed by a newer sequence, or
+     *         an older writer is still writing it).
+     */
+    boolean beginWrite(long seq, int slot) {
+        for (;;) {
+            long s = stamps.get(slot);
+            if (seqOf(s) >= seq) {
+                // Lapped: a newer write already owns the slot.
+                return false;
+            }
+            int state = stateOf(s);
+            if (state == WRITING || state == ABANDONED) {
+                // An older writer still has the slot.  Our write is lost; let it know.
+                if (stamps.compareAndSet(slot, s, encode(seq, ABANDONED))) {
+                    return false;
+                }
+            } else if (stamps.compareAndSet(slot, s, encode(seq, WRITING))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Publish the write for the given sequence.  If newer writes were abandoned meanwhile,
+     * the slot is marked LOST at the newest abandoned sequence instead.
+     */
+    void endWrite(long seq, int slot) {
+        if (stamps.compareAndSet(slot, encode(seq, WRITING), encode(seq, PUBLISHED))) {
+            return;
+        }
+        for (;;) {
+            long s = stamps.get(slot);     // ABANDONED(newer seq)
+            if (stamps.compareAndSet(slot, s, encode(seqOf(s), LOST))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copy the last capacity elements, oldest first, into positions [0, capacity) of
+     * the snapshot.  Positions for sequences that were never written (or whose writes
+     * were lost) are cleared.
+     *
+     * The snapshot is always consistent: it holds exactly the elements for a window of
+     * sequences ending at the tail read at the start of the copy.  Writes in the window
+     * that are still in flight are waited for (a write is a handful of instructions, so
+     * this is a short spin, unless the writer thread is descheduled mid-write).  If
+     * writers lap the copy (i.e. overwrite part of the window before it's copied), the
+     * copy is retried with a new tail.  After FULL_SNAPSHOT_ATTEMPTS laps the window is
+     * halved on each further lap, keeping the newest elements (the older positions are
+     * cleared), so a snapshot always finishes, even if writers are sustained faster than
+     * the copy: at worst it's empty.  The retries never block writers.
+     *
+     * @return the tail of the snapshot (i.e. the sequence after the newest element).
+     */
+    long snapshot(SlotCopier copier) {
+        int window = capacity;
+        for (int attempt = 1; ; ++attempt) {
+            long tail = sequence.get();
+            copier.begin();
+            if (copyWindow(tail, window, copier)) {
+                return tail;
+            }
+            if (attempt >= FULL_SNAPSHOT_ATTEMPTS) {
+                window /= 2;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Copy the newest window sequences, [tail - window, tail), into the last window positions;
+     * the positions before them are cleared.
+     *
+     * @return true if every position was validated (or is permanently empty); false if
+     *         part of the window was overwritten before it could be copied.
+     */
+    private boolean copyWindow(long tail, int window, SlotCopier copier) {
+        for (int i = 0; i < capacity; ++i) {
+            long seq = tail - capacity + i;
+            if (seq < 0 || i < capacity - window) {
+                copier.clear(i);
+                continue;
+            }
+
+            int slot = slot(seq);
+            long s = awaitWrite(seq, slot);
+            if (s == encode(seq, PUBLISHED)) {
+                copier.copy(slot, i);
+                if (stamps.get(slot) != s) {
+                    return false;       // overwritten during the copy.
+                }
+            } else if (s == encode(seq, LOST) || s == encode(seq, ABANDONED)) {
+                copier.clear(i);        // the write was dropped.
+            } else {
+                return false;           // already overwritten.
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the write for the given sequence to be done (published or dropped).
+     * Every claimed sequence's writer goes straight on to beginWrite, so the wait 
+     * lasts only as long as the write itself.
+     *
+     * @return the slot's stamp, once it's no longer older than seq or WRITING at seq.
+     */
+    private long awaitWrite(long seq, int slot) {
+        long s;
+        while (seqOf( s = stamps.get(slot) ) < seq || s == encode(seq, WRITING)) {
+            Thread.yield();
+        }
+        return s;
+    }
+}
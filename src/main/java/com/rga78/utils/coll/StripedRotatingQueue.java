@@ -0,0 +1,225 @@
+package com.rga78.utils.coll;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ *
+ * Striped variant of SimpleRotatingQueue, for many concurrent writers.
+ *
+ * SimpleRotatingQueue's writers all increment the same sequence, so with many
+ * writer threads they serialize on that one cache line.  Here each writer thread
+ * is mapped (by thread id) to one of several stripes, each a separate rotating
+ * queue with its own sequence, padded onto its own cache line.  Writers only
+ * contend with the other threads on the same stripe.
+ *
+ * Each element is stamped with System.nanoTime when it's added, and toArray merges
+ * the stripes by timestamp.  That's the trade-off: the order across threads is only
+ * as exact as the timestamps (the elements added by any one thread stay in order),
+ * and each stripe keeps its own last stripeCapacity elements, so a busy stripe
+ * rotates out its elements sooner than a quiet one.
+ *
+ * Unlike SimpleRotatingQueue, this is a history buffer, not a handoff queue, so it
+ * isn't a java.util.Queue (or Collection): elements are added, and read back only
+ * via toArray.
+ */
+public class StripedRotatingQueue<T> {
+
+    private final Stripe<T>[] stripes;
+
+    /**
+     * stripes.length - 1.
+     */
+    private final int mask;
+
+    private final int stripeCapacity;
+
+    /**
+     * CTOR.  One stripe per available processor (rounded up to a power of 2).
+     *
+     * @param stripeCapacity - the size of each stripe.
+     */
+    public StripedRotatingQueue(int stripeCapacity) {
+        this( Runtime.getRuntime().availableProcessors(), stripeCapacity );
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param stripeCount - the number of stripes (rounded up to a power of 2).
+     * @param stripeCapacity - the size of each stripe.
+     */
+    @SuppressWarnings("unchecked")
+    public StripedRotatingQueue(int stripeCount, int stripeCapacity) {
+        if (stripeCount <= 0 || stripeCapacity <= 0) {
+            throw new IllegalArgumentException("stripeCount and stripeCapacity must be > 0");
+        }
+
+        int count = Integer.highestOneBit(stripeCount);
+        if (count < stripeCount) {
+            count <<= 1;
+        }
+
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; ++i) {
+            stripes[i] = new Stripe<T>(stripeCapacity);
+        }
+        this.mask = count - 1;
+        this.stripeCapacity = stripeCapacity;
+    }
+
+    /**
+     * @param element to be added to the queue
+     * @return true
+     */
+    public boolean add(T element) {
+        stripes[ (int) Thread.currentThread().getId() & mask ].add(element, System.nanoTime());
+        return true;
+    }
+
+    /**
+     *
+     * @return a copy of the queue: the elements of all stripes, merged in order
+     *         of when they were added (oldest first).  Each stripe's elements are
+     *         a consistent snapshot of the stripe (see SimpleRotatingQueue.toArray).
+     *         The elements are at the end of the array; any positions before them
+     *         (i.e. for slots that haven't been written yet) are null.
+     *
+     */
+    @SuppressWarnings("unchecked")
+    public <E> E[] toArray(E[] arr) {
+
+        if (arr == null) {
+            return null;
+        }
+
+        List<Entry> entries = new ArrayList<Entry>(getCapacity());
+        for (int i = 0; i < stripes.length; ++i) {
+            stripes[i].snapshot(i, entries);
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                int retMe = Long.compare(e1.time, e2.time);
+                if (retMe == 0) {
+                    retMe = Integer.compare(e1.stripe, e2.stripe);
+                }
+                return (retMe != 0) ? retMe : Integer.compare(e1.index, e2.index);
+            }
+        });
+
+        E[] retMe = (arr.length >= getCapacity())
+                  ? arr
+                  : (E[]) Array.newInstance(arr.getClass().getComponentType(), getCapacity());
+
+        int start = getCapacity() - entries.size();
+        for (int i = 0; i < start; ++i) {
+            retMe[i] = null;
+        }
+        for (int i = 0; i < entries.size(); ++i) {
+            retMe[start + i] = (E) entries.get(i).element;
+        }
+        return retMe;
+    }
+
+    /**
+     * @return the number of stripes.
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * @return the capacity of each stripe.
+     */
+    public int getStripeCapacity() {
+        return stripeCapacity;
+    }
+
+    /**
+     * @return the capacity of the queue, i.e. stripeCount * stripeCapacity.
+     */
+    public int getCapacity() {
+        return stripes.length * stripeCapacity;
+    }
+
+    /**
+     * An element read from a stripe.
+     */
+    private static class Entry {
+        final Object element;
+        final long time;
+        final int stripe;
+
+        /**
+         * Position in the stripe's snapshot (i.e. the order the stripe's elements were added).
+         */
+        final int index;
+
+        Entry(Object element, long time, int stripe, int index) {
+            this.element = element;
+            this.time = time;
+            this.stripe = stripe;
+            this.index = index;
+        }
+    }
+
+    /**
+     * AtomicLong padded out to its own cache line, so the stripes' sequences
+     * don't share one (they're likely allocated next to each other).
+     */
+    @SuppressWarnings("serial")
+    static class PaddedAtomicLong extends AtomicLong {
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    /**
+     * One stripe: a rotating queue of elements and their timestamps.
+     */
+    private static class Stripe<T> {
+
+        private final AtomicReferenceArray<T> elements;
+        private final AtomicLongArray times;
+        private final SlotSequencer sequencer;
+
+        Stripe(int capacity) {
+            this.elements = new AtomicReferenceArray<T>(capacity);
+            this.times = new AtomicLongArray(capacity);
+            this.sequencer = new SlotSequencer(capacity, new PaddedAtomicLong());
+        }
+
+        void add(T element, long time) {
+            long seq = sequencer.claim();
+            int slot = sequencer.slot(seq);
+            if (sequencer.beginWrite(seq, slot)) {
+                elements.set(slot, element);
+                times.set(slot, time);
+                sequencer.endWrite(seq, slot);
+            }
+        }
+
+        /**
+         * Add the stripe's elements to the given list.
+         */
+        void snapshot(final int stripe, final List<Entry> entries) {
+            final int start = entries.size();
+            sequencer.snapshot( new SlotSequencer.SlotCopier() {
+                public void begin() {
+                    entries.subList(start, entries.size()).clear();
+                }
+                public void copy(int slot, int index) {
+                    entries.add( new Entry(elements.get(slot), times.get(slot), stripe, index) );
+                }
+                public void clear(int index) {
+                    // Nothing there.  (A copy that fails validation fails the whole attempt, which starts over with begin.)
+                }
+            });
+        }
+    }
+}
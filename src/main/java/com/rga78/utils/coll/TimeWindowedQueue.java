@@ -0,0 +1,337 @@
+package com.rga78.utils.coll;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Thread-safe, lock-free rotating queue of the elements added in the last window
+ * of time (e.g. "the last 60 seconds"), rather than the last N elements.
+ *
+ * The window is divided into buckets by time.  Each element is stamped with a cheap,
+ * coarse clock (CoarseClock) and added to the bucket for its time.  Buckets aren't
+ * expired by a background thread: when time moves into a bucket whose slot holds an
+ * expired bucket, the first writer rolls the slot over to the new bucket.  The slot's
+ * storage is reused (so rollovers don't allocate, beyond a tiny header); the expired
+ * elements left in it are simply ignored.  Readers ignore expired buckets.
+ *
+ * Each bucket counts its elements, so counts and rates over (part of) the window
+ * are a sum over the buckets, without scanning or copying the elements.  They're
+ * exact, except for the oldest bucket that's only partly in the requested span:
+ * its count is interpolated.  Snapshots filter by the elements' timestamps, so
+ * they're exact (to the clock's resolution).
+ *
+ * Each bucket keeps its last bucketCapacity elements (it's a lock-free rotating queue,
+ * see SlotSequencer).  When more are added in the bucket's time, the oldest are
+ * overwritten: they're still counted, but left out of snapshots.
+ *
+ * Usage:
+ *      TimeWindowedQueue<Event> recent = new TimeWindowedQueue<Event>(60, TimeUnit.SECONDS, 60, 10000);
+ *      recent.add(event);
+ *      double errorsPerSec = recent.getRate(10, TimeUnit.SECONDS);
+ *      List<Event> last5s = recent.snapshot(5, TimeUnit.SECONDS);
+ */
+public class TimeWindowedQueue<T> {
+
+    private final LongSupplier clock;
+
+    private final long windowNanos;
+
+    private final long bucketNanos;
+
+    private final int bucketCapacity;
+
+    /**
+     * bucketCount + 1 slots, so the window plus the oldest, partly expired bucket are kept.
+     * Each slot's Bucket is created on first use and then reused.
+     */
+    private final AtomicReferenceArray<Bucket> buckets;
+
+    /**
+     * CTOR.  Elements are stamped with the default CoarseClock.
+     *
+     * @param window the length of the window
+     * @param bucketCount the number of buckets the window is divided into
+     * @param bucketCapacity the max number of elements kept per bucket (the last ones added)
+     */
+    public TimeWindowedQueue(long window, TimeUnit unit, int bucketCount, int bucketCapacity) {
+        this(window, unit, bucketCount, bucketCapacity, CoarseClock.getDefault());
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param window the length of the window
+     * @param bucketCount the number of buckets the window is divided into
+     * @param bucketCapacity the max number of elements kept per bucket (the last ones added)
+     * @param clock the time source, in nanos (e.g. a CoarseClock)
+     */
+    public TimeWindowedQueue(long window, TimeUnit unit, int bucketCount, int bucketCapacity, LongSupplier clock) {
+        if (bucketCount <= 0 || bucketCapacity < 0) {
+            throw new IllegalArgumentException("bucketCount must be > 0 and bucketCapacity must be >= 0");
+        }
+        long bucketNanos = unit.toNanos(window) / bucketCount;
+        if (bucketNanos <= 0) {
+            throw new IllegalArgumentException("window must be at least bucketCount nanos");
+        }
+
+        this.bucketNanos = bucketNanos;
+        this.windowNanos = bucketNanos * bucketCount;
+        this.bucketCapacity = bucketCapacity;
+        this.clock = clock;
+        this.buckets = new AtomicReferenceArray<Bucket>(bucketCount + 1);
+    }
+
+    /**
+     * Add the element, stamped with the current time.
+     */
+    public void add(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long now = clock.getAsLong();
+        bucketFor(now).add(element, now);
+    }
+
+    /**
+     * @return the bucket for the given time, replacing the expired bucket in its slot
+     *         if necessary.
+     */
+    private Bucket bucketFor(long now) {
+        long epoch = Math.floorDiv(now, bucketNanos);
+        int slot = slot(epoch);
+
+        Bucket retMe = buckets.get(slot);
+        if (retMe == null) {
+            // First use of the slot.  From then on its storage is reused.
+            buckets.compareAndSet(slot, null, new Bucket(bucketCapacity));
+            retMe = buckets.get(slot);
+        }
+
+        for (;;) {
+            Epoch current = retMe.epoch.get();
+            if (current != null && current.epoch >= epoch) {
+                // Note: if the slot has already moved on to a newer epoch, the element
+                // is more than a window old; it's counted in the newer bucket.
+                return retMe;
+            }
+            if (retMe.epoch.compareAndSet(current, new Epoch(epoch, retMe.sequencer.tail()))) {
+                return retMe;
+            }
+        }
+    }
+
+    /**
+     * @return the slot's bucket, if it currently holds the given epoch; else null.
+     */
+    private Bucket getBucket(long epoch) {
+        Bucket retMe = buckets.get( slot(epoch) );
+        return (retMe != null && retMe.getCount(epoch) >= 0) ? retMe : null;
+    }
+
+    private int slot(long epoch) {
+        return (int) Math.floorMod(epoch, (long) buckets.length());
+    }
+
+    /**
+     * @return the elements added in the window, oldest first.
+     */
+    public List<T> snapshot() {
+        return snapshot(windowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param time the length of the span, up to the window length
+     *
+     * @return the elements added in the last span of time, oldest first.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> snapshot(long time, TimeUnit unit) {
+        long now = clock.getAsLong();
+        long from = now - Math.min(unit.toNanos(time), windowNanos);
+
+        List<T> retMe = new ArrayList<T>();
+        for (long epoch = Math.floorDiv(from, bucketNanos); epoch <= Math.floorDiv(now, bucketNanos); ++epoch) {
+            Bucket bucket = getBucket(epoch);
+            if (bucket != null) {
+                // Elements left over from the slot's expired epochs (or added to a newer
+                // epoch, if the slot rolls over meanwhile) are filtered out by their times.
+                bucket.snapshot(from, now, (List<Object>) retMe);
+            }
+        }
+        return retMe;
+    }
+
+    /**
+     * @return the number of elements added in the window.
+     */
+    public long getCount() {
+        return getCount(windowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param time the length of the span, up to the window length
+     *
+     * @return the number of elements added in the last span of time.  The count
+     *         for the oldest bucket in the span is interpolated (by the fraction of
+     *         the bucket's time that's in the span).
+     */
+    public long getCount(long time, TimeUnit unit) {
+        long now = clock.getAsLong();
+        return Math.round( count(now, now - Math.min(unit.toNanos(time), windowNanos)) );
+    }
+
+    /**
+     * @param time the length of the span, up to the window length
+     *
+     * @return the number of elements added per second over the last span of time.
+     */
+    public double getRate(long time, TimeUnit unit) {
+        long span = Math.min(unit.toNanos(time), windowNanos);
+        if (span <= 0) {
+            return 0;
+        }
+        long now = clock.getAsLong();
+        return count(now, now - span) * TimeUnit.SECONDS.toNanos(1) / span;
+    }
+
+    /**
+     * @return the (interpolated) number of elements added in [from, now].
+     */
+    private double count(long now, long from) {
+        long fromEpoch = Math.floorDiv(from, bucketNanos);
+        double retMe = 0;
+        for (long epoch = fromEpoch; epoch <= Math.floorDiv(now, bucketNanos); ++epoch) {
+            Bucket bucket = buckets.get( slot(epoch) );
+            long count = (bucket != null) ? bucket.getCount(epoch) : -1;
+            if (count < 0) {
+                continue;
+            }
+            if (epoch == fromEpoch) {
+                // Only part of the bucket's time, [start, min(end, now)], is in the span.
+                long start = epoch * bucketNanos;
+                long end = Math.min(start + bucketNanos, now);
+                if (end > start) {
+                    retMe += (double) count * (end - Math.max(from, start)) / (end - start);
+                }
+            } else {
+                retMe += count;
+            }
+        }
+        return retMe;
+    }
+
+    /**
+     * @return the length of the window, in nanos (rounded down to a multiple of the bucket length).
+     */
+    public long getWindowNanos() {
+        return windowNanos;
+    }
+
+    /**
+     * @return the length of each bucket, in nanos.
+     */
+    public long getBucketNanos() {
+        return bucketNanos;
+    }
+
+    /**
+     * The epoch a bucket holds, and the bucket's sequence at the start of the epoch
+     * (so the bucket's count for the epoch is sequence - startSeq).
+     */
+    private static class Epoch {
+
+        /**
+         * The bucket covers [epoch * bucketNanos, (epoch + 1) * bucketNanos).
+         */
+        final long epoch;
+
+        final long startSeq;
+
+        Epoch(long epoch, long startSeq) {
+            this.epoch = epoch;
+            this.startSeq = startSeq;
+        }
+    }
+
+    /**
+     * One slot's storage: a rotating queue of elements and their times, reused by
+     * each epoch the slot holds.
+     */
+    private static class Bucket {
+
+        /**
+         * The current epoch.  Null until the first add.
+         */
+        final AtomicReference<Epoch> epoch = new AtomicReference<Epoch>();
+
+        final AtomicReferenceArray<Object> elements;
+
+        final AtomicLongArray times;
+
+        /**
+         * Counts every add (including those that aren't kept), across epochs.
+         */
+        final SlotSequencer sequencer;
+
+        Bucket(int capacity) {
+            this.elements = new AtomicReferenceArray<Object>(capacity);
+            this.times = new AtomicLongArray(capacity);
+            this.sequencer = new SlotSequencer( Math.max(1, capacity) );
+        }
+
+        void add(Object element, long now) {
+            long seq = sequencer.claim();
+            if (elements.length() == 0) {
+                return;     // counted only.
+            }
+            int slot = sequencer.slot(seq);
+            if (sequencer.beginWrite(seq, slot)) {
+                times.set(slot, now);
+                elements.set(slot, element);
+                sequencer.endWrite(seq, slot);
+            }
+        }
+
+        /**
+         * @return the number of elements added in the given epoch, or -1 if the
+         *         bucket doesn't (or no longer) hold that epoch.
+         */
+        long getCount(long epoch) {
+            Epoch e = this.epoch.get();
+            if (e == null || e.epoch != epoch) {
+                return -1;
+            }
+            long retMe = sequencer.tail() - e.startSeq;
+            return (this.epoch.get() == e) ? retMe : -1;
+        }
+
+        /**
+         * Add the elements stamped within [from, to] to the given list, oldest first.
+         */
+        void snapshot(final long from, final long to, final List<Object> list) {
+            if (elements.length() == 0) {
+                return;
+            }
+            final int start = list.size();
+            sequencer.snapshot( new SlotSequencer.SlotCopier() {
+                public void begin() {
+                    list.subList(start, list.size()).clear();
+                }
+                public void copy(int slot, int index) {
+                    long time = times.get(slot);
+                    if (time >= from && time <= to) {
+                        list.add( elements.get(slot) );
+                    }
+                }
+                public void clear(int index) {
+                    // Nothing there.
+                }
+            });
+        }
+    }
+}
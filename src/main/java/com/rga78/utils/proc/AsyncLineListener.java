@@ -0,0 +1,208 @@
+package com.rga78.utils.proc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a (slow) LineListener, so it's called off the reader thread.  Each block of
+ * lines is copied into a bounded queue, and delivered to the listener, in order, by
+ * a task on the given executor.  So a slow listener (e.g. a network log shipper)
+ * can't keep the reader from draining the pipe and hang the process.
+ *
+ * When the queue is full, the block is either dropped (see getDroppedLines), or the
+ * reader waits for room (backpressure), depending on dropWhenFull.
+ *
+ * Usage:
+ *      processHelper.addLineListener( Stream.STDOUT, new AsyncLineListener( logShipper, 1000 ) );
+ *      ...
+ *      processHelper.waitFor().getStdout();    // wait for the reader
+ *      asyncListener.awaitDrained(10, TimeUnit.SECONDS);
+ */
+public class AsyncLineListener implements LineListener {
+
+    /**
+     * The wrapped listener.
+     */
+    private final LineListener listener;
+
+    /**
+     * Blocks waiting for the listener.
+     */
+    private final BlockingQueue<Item> queue;
+
+    /**
+     * Runs the delivery task.
+     */
+    private final Executor executor;
+
+    /**
+     * If true, blocks are dropped when the queue is full; otherwise the reader waits.
+     */
+    private final boolean dropWhenFull;
+
+    /**
+     * True while a delivery task is scheduled or running.  At most one runs at a time,
+     * so blocks are delivered in order.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Number of blocks queued or being delivered.
+     */
+    private final AtomicLong pending = new AtomicLong(0);
+
+    /**
+     * Number of lines dropped because the queue was full.
+     */
+    private final AtomicLong droppedLines = new AtomicLong(0);
+
+    /**
+     * CTOR.  Blocks are delivered on ReaderExecutors.shared(), and dropped when the queue is full.
+     *
+     * @param listener the wrapped listener
+     * @param capacity max number of blocks waiting for the listener
+     */
+    public AsyncLineListener(LineListener listener, int capacity) {
+        this(listener, capacity, ReaderExecutors.shared(), true);
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param listener the wrapped listener
+     * @param capacity max number of blocks waiting for the listener
+     * @param executor runs the delivery task
+     * @param dropWhenFull if true, blocks are dropped when the queue is full; otherwise the reader waits
+     */
+    public AsyncLineListener(LineListener listener, int capacity, Executor executor, boolean dropWhenFull) {
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<Item>(capacity);
+        this.executor = executor;
+        this.dropWhenFull = dropWhenFull;
+    }
+
+    /**
+     * Copy the block into the queue, and make sure the delivery task is scheduled.
+     */
+    @Override
+    public void onLines(ProcessHelper.Stream stream, LineBlock lines) {
+        Item item = new Item(stream, lines.copy());
+
+        pending.incrementAndGet();
+        if (dropWhenFull) {
+            if (!queue.offer(item)) {
+                pending.decrementAndGet();
+                droppedLines.addAndGet( lines.size() );
+                return;
+            }
+        } else {
+            try {
+                queue.put(item);
+            } catch (InterruptedException ie) {
+                pending.decrementAndGet();
+                droppedLines.addAndGet( lines.size() );
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        schedule();
+    }
+
+    /**
+     * Schedule the delivery task, if it's not already scheduled.
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute( new Runnable() {
+                public void run() {
+                    deliver();
+                }
+            });
+        }
+    }
+
+    /**
+     * Deliver the queued blocks to the listener.
+     */
+    private void deliver() {
+        try {
+            Item item;
+            while ((item = queue.poll()) != null) {
+                try {
+                    listener.onLines(item.stream, item.lines);
+                } finally {
+                    if (pending.decrementAndGet() == 0) {
+                        synchronized (this) {
+                            notifyAll();
+                        }
+                    }
+                }
+            }
+        } finally {
+            scheduled.set(false);
+
+            // A block may have been queued after the last poll but before scheduled was cleared.
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * Wait for all queued blocks to be delivered.
+     *
+     * @return true if the queue drained; false if the time elapsed.
+     */
+    public synchronized boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pending.get() > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of blocks waiting for the listener.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of lines dropped because the queue was full.
+     */
+    public long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    /**
+     * @return the wrapped listener.
+     */
+    public LineListener getListener() {
+        return listener;
+    }
+
+    /**
+     * A queued block.
+     */
+    private static class Item {
+
+        final ProcessHelper.Stream stream;
+
+        final LineBlock lines;
+
+        Item(ProcessHelper.Stream stream, LineBlock lines) {
+            this.stream = stream;
+            this.lines = lines;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.rga78.utils.proc;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Notifies when a process exits, without parking a thread per process in Process.waitFor.
+ *
+ * On java 9+ this is just Process.onExit() (looked up reflectively, since this
+ * project still compiles for java 8).  On older JVMs a single daemon thread polls
+ * Process.isAlive() for all watched processes.
+ */
+class ExitWatcher {
+
+    /**
+     * Process.onExit(), if the JVM has it.
+     */
+    private static final Method ON_EXIT = findOnExit();
+
+    /**
+     * Lazy holder for the polling thread.
+     */
+    private static class PollerHolder {
+        static final Poller INSTANCE = new Poller();
+    }
+
+    /**
+     * @return a future that completes (with the process) when the process exits.
+     */
+    static CompletableFuture<Process> onExit(Process process) {
+        if (ON_EXIT != null) {
+            try {
+                return (CompletableFuture<Process>) ON_EXIT.invoke(process);
+            } catch (Exception e) {
+                // Fall thru to polling.
+            }
+        }
+        return PollerHolder.INSTANCE.watch(process);
+    }
+
+    /**
+     * @return the Process.onExit method, or null if this JVM doesn't have it.
+     */
+    private static Method findOnExit() {
+        try {
+            return Process.class.getMethod("onExit");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Polls the watched processes with Process.isAlive().
+     */
+    private static class Poller implements Runnable {
+
+        /**
+         * Min/max time between polls.
+         */
+        private static final long MIN_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+        private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+        private final ConcurrentHashMap<Process, CompletableFuture<Process>> watched = new ConcurrentHashMap<Process, CompletableFuture<Process>>();
+
+        private final Thread thread;
+
+        /**
+         * CTOR.  Starts the polling thread.
+         */
+        Poller() {
+            thread = new ReaderExecutors.DaemonThreadFactory("ProcessHelper-exitWatcher").newThread(this);
+            thread.start();
+        }
+
+        /**
+         * @return a future that completes when the given process exits.
+         */
+        CompletableFuture<Process> watch(Process process) {
+            CompletableFuture<Process> future = new CompletableFuture<Process>();
+            CompletableFuture<Process> existing = watched.putIfAbsent(process, future);
+            LockSupport.unpark(thread);
+            return (existing != null) ? existing : future;
+        }
+
+        @Override
+        public void run() {
+            long idleNanos = MIN_IDLE_NANOS;
+
+            while (true) {
+                boolean progress = false;
+
+                for (Iterator<Map.Entry<Process, CompletableFuture<Process>>> iter = watched.entrySet().iterator(); iter.hasNext(); ) {
+                    Map.Entry<Process, CompletableFuture<Process>> entry = iter.next();
+                    if (!entry.getKey().isAlive()) {
+                        iter.remove();
+                        entry.getValue().complete(entry.getKey());
+                        progress = true;
+                    }
+                }
+
+                // Poll quickly right after something exits (or is added), backing off to MAX_IDLE_NANOS.
+                idleNanos = progress ? MIN_IDLE_NANOS : Math.min(idleNanos * 2, MAX_IDLE_NANOS);
+                LockSupport.parkNanos(this, idleNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.rga78.utils.proc;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * A block of lines read from a process's stdout or stderr, passed to LineListeners.
+ *
+ * The lines are held as slices of a single byte buffer (see getBuffer, getOffset,
+ * getLength).  A line is decoded into a String only when get() is called, and the
+ * String is cached, so any number of listeners can share the decoded line.
+ *
+ * The block is reused for the next chunk of output, so it's only valid for the
+ * duration of the LineListener callback.  Listeners that hang on to lines must copy them.
+ */
+public class LineBlock extends AbstractList<String> {
+
+    /**
+     * For decoding the lines.
+     */
+    private final Charset charset;
+
+    /**
+     * The bytes of all the lines, back to back.
+     */
+    private byte[] data;
+
+    /**
+     * Number of bytes in data.
+     */
+    private int dataLen = 0;
+
+    /**
+     * Offset of each line in data.
+     */
+    private int[] offsets;
+
+    /**
+     * Length of each line in data.
+     */
+    private int[] lengths;
+
+    /**
+     * Decoded lines (lazily populated).
+     */
+    private String[] strings;
+
+    /**
+     * Number of lines.
+     */
+    private int count = 0;
+
+    /**
+     * CTOR.
+     */
+    public LineBlock(Charset charset) {
+        this(charset, 8192, 64);
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param charset for decoding the lines
+     * @param dataCapacity initial capacity, in bytes
+     * @param lineCapacity initial capacity, in lines
+     */
+    private LineBlock(Charset charset, int dataCapacity, int lineCapacity) {
+        this.charset = charset;
+        this.data = new byte[dataCapacity];
+        this.offsets = new int[lineCapacity];
+        this.lengths = new int[lineCapacity];
+        this.strings = new String[lineCapacity];
+    }
+
+    /**
+     * @return the i'th line, decoded.
+     */
+    @Override
+    public String get(int i) {
+        checkIndex(i);
+        if (strings[i] == null) {
+            strings[i] = new String(data, offsets[i], lengths[i], charset);
+        }
+        return strings[i];
+    }
+
+    /**
+     * @return the number of lines in the block.
+     */
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the buffer that holds the bytes of the lines.
+     */
+    public byte[] getBuffer() {
+        return data;
+    }
+
+    /**
+     * @return the offset of the i'th line in the buffer.
+     */
+    public int getOffset(int i) {
+        checkIndex(i);
+        return offsets[i];
+    }
+
+    /**
+     * @return the length, in bytes, of the i'th line (not including the line terminator).
+     */
+    public int getLength(int i) {
+        checkIndex(i);
+        return lengths[i];
+    }
+
+    /**
+     * @return the total length, in bytes, of all the lines in the block.
+     */
+    public int getDataLength() {
+        return dataLen;
+    }
+
+    /**
+     * @return the charset used to decode the lines.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return a (right-sized) copy of this block, for listeners that hang on to the
+     *         lines beyond the callback.  Lines already decoded aren't decoded again.
+     */
+    public LineBlock copy() {
+        LineBlock retMe = new LineBlock(charset, dataLen, Math.max(1, count));
+        System.arraycopy(data, 0, retMe.data, 0, dataLen);
+        System.arraycopy(offsets, 0, retMe.offsets, 0, count);
+        System.arraycopy(lengths, 0, retMe.lengths, 0, count);
+        System.arraycopy(strings, 0, retMe.strings, 0, count);
+        retMe.dataLen = dataLen;
+        retMe.count = count;
+        return retMe;
+    }
+
+    /**
+     * Append a line.
+     */
+    void append(byte[] buf, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(buf, off, data, dataLen, len);
+        offsets[count] = dataLen;
+        lengths[count] = len;
+        strings[count] = null;
+        dataLen += len;
+        ++count;
+    }
+
+    /**
+     * Append an already-decoded line.
+     */
+    void append(String line) {
+        byte[] bytes = line.getBytes(charset);
+        append(bytes, 0, bytes.length);
+        strings[count - 1] = line;
+    }
+
+    /**
+     * Remove all lines, so the block can be reused.
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(strings, 0, count, null);
+        dataLen = 0;
+        count = 0;
+    }
+
+    /**
+     * Make room for another line of the given length.
+     */
+    private void ensureCapacity(int len) {
+        if (dataLen + len > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataLen + len));
+        }
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+            strings = Arrays.copyOf(strings, count * 2);
+        }
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count);
+        }
+    }
+}
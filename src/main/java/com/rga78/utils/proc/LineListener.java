@@ -0,0 +1,17 @@
+package com.rga78.utils.proc;
+
+/**
+ * Batch-oriented output listener for ProcessHelper.  Receives the lines of
+ * stdout/stderr a block at a time (typically, all the complete lines from a
+ * single read of the stream), rather than one callback per line.
+ *
+ * See ObserverLineListener for adapting a java.util.Observer.
+ */
+public interface LineListener {
+
+    /**
+     * @param stream the stream the lines were read from
+     * @param lines the lines.  Only valid for the duration of the call.
+     */
+    void onLines(ProcessHelper.Stream stream, LineBlock lines);
+}
@@ -0,0 +1,474 @@
+package com.rga78.utils.proc;
+
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * LineListener that watches the output for a set of literals and/or regexes
+ * (e.g. "server started", error codes), and notifies a MatchListener (or completes
+ * a future) when a line matches.
+ *
+ * All literals are matched in a single pass over each line's raw bytes, with an
+ * Aho-Corasick automaton, so a line is only decoded if it matches (or if there
+ * are regexes).  The regexes are combined into a single alternation, which is
+ * tried first; the individual regexes are only evaluated (to find which one matched)
+ * for lines that match the alternation.  Most lines match nothing, so the common
+ * case is one automaton pass plus one regex evaluation per line, regardless of
+ * the number of patterns.
+ *
+ * Usage:
+ *      LinePatternMatcher matcher = new LinePatternMatcher();
+ *      CompletableFuture<String> started = matcher.awaitLiteral("server started");
+ *      matcher.addPattern( Pattern.compile("ERR-\\d+"), errorListener );
+ *      processHelper.addLineListener(matcher).spawnStreamReaders();
+ *      started.get(30, TimeUnit.SECONDS);
+ *
+ * Patterns can be added at any time.  Each listener is notified at most once per line.
+ */
+public class LinePatternMatcher implements LineListener {
+
+    /**
+     * Notified when a line matches.
+     */
+    public interface MatchListener {
+
+        /**
+         * @param stream the stream the line was read from
+         * @param line the matching line
+         */
+        void onMatch(ProcessHelper.Stream stream, String line);
+    }
+
+    /**
+     * The literals, in the order added.
+     */
+    private final List<String> literals = new ArrayList<String>();
+
+    private final List<MatchListener> literalListeners = new ArrayList<MatchListener>();
+
+    /**
+     * The regexes, in the order added.
+     */
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+
+    private final List<MatchListener> patternListeners = new ArrayList<MatchListener>();
+
+    /**
+     * Snapshot of the compiled patterns, rebuilt whenever a pattern is added.
+     */
+    private volatile Compiled compiled = new Compiled( literals, literalListeners, patterns, patternListeners );
+
+    /**
+     * Notify the listener when a line contains the given literal.
+     *
+     * @return this
+     */
+    public synchronized LinePatternMatcher addLiteral(String literal, MatchListener listener) {
+        literals.add(literal);
+        literalListeners.add(listener);
+        compiled = new Compiled( literals, literalListeners, patterns, patternListeners );
+        return this;
+    }
+
+    /**
+     * Notify the listener when a line contains a match for the given regex (see Matcher.find).
+     *
+     * @return this
+     */
+    public synchronized LinePatternMatcher addPattern(Pattern pattern, MatchListener listener) {
+        patterns.add(pattern);
+        patternListeners.add(listener);
+        compiled = new Compiled( literals, literalListeners, patterns, patternListeners );
+        return this;
+    }
+
+    /**
+     * Stop notifying the listener (for all the literals and regexes it was added for).
+     *
+     * @return this
+     */
+    public synchronized LinePatternMatcher removeListener(MatchListener listener) {
+        boolean removed = remove(literals, literalListeners, listener) | remove(patterns, patternListeners, listener);
+        if (removed) {
+            compiled = new Compiled( literals, literalListeners, patterns, patternListeners );
+        }
+        return this;
+    }
+
+    /**
+     * Remove the listener's entries from the parallel lists.
+     *
+     * @return true if any were removed.
+     */
+    private static boolean remove(List<?> keys, List<MatchListener> listeners, MatchListener listener) {
+        boolean retMe = false;
+        for (int i = listeners.size() - 1; i >= 0; --i) {
+            if (listeners.get(i) == listener) {
+                keys.remove(i);
+                listeners.remove(i);
+                retMe = true;
+            }
+        }
+        return retMe;
+    }
+
+    /**
+     * @return the number of literals and regexes being watched for.
+     */
+    public synchronized int getPatternCount() {
+        return literals.size() + patterns.size();
+    }
+
+    /**
+     * @return a future that completes with the first line that contains the given literal.
+     *         The literal is removed once the future completes (or is cancelled).
+     */
+    public CompletableFuture<String> awaitLiteral(String literal) {
+        FutureMatchListener retMe = new FutureMatchListener();
+        addLiteral(literal, retMe);
+        return removeOnCompletion(retMe);
+    }
+
+    /**
+     * @return a future that completes with the first line that contains a match for the given regex.
+     *         The regex is removed once the future completes (or is cancelled).
+     */
+    public CompletableFuture<String> awaitPattern(Pattern pattern) {
+        FutureMatchListener retMe = new FutureMatchListener();
+        addPattern(pattern, retMe);
+        return removeOnCompletion(retMe);
+    }
+
+    /**
+     * @return the listener's future, which removes the listener when it completes.
+     */
+    private CompletableFuture<String> removeOnCompletion(final FutureMatchListener listener) {
+        listener.future.whenComplete( new BiConsumer<String, Throwable>() {
+            public void accept(String line, Throwable t) {
+                removeListener(listener);
+            }
+        });
+        return listener.future;
+    }
+
+    /**
+     * Match each line in the block.
+     */
+    @Override
+    public void onLines(ProcessHelper.Stream stream, LineBlock lines) {
+        Compiled c = compiled;
+        for (int i = 0; i < lines.size(); ++i) {
+            c.match(stream, lines, i);
+        }
+    }
+
+    /**
+     * Completes a future on the first match.
+     */
+    private static class FutureMatchListener implements MatchListener {
+
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+
+        public void onMatch(ProcessHelper.Stream stream, String line) {
+            future.complete(line);
+        }
+    }
+
+    /**
+     * An immutable, compiled set of patterns.
+     */
+    private static class Compiled {
+
+        private final String[] literals;
+        private final MatchListener[] literalListeners;
+        private final Pattern[] patterns;
+        private final MatchListener[] patternListeners;
+
+        /**
+         * Alternation of all regexes, or null if they can't be combined.
+         */
+        private final Pattern combined;
+
+        /**
+         * Automaton for the literals, built for the charset of the output (lazily, since
+         * the charset isn't known until the first block of lines arrives).
+         */
+        private volatile ByteAutomaton automaton;
+
+        Compiled(List<String> literals, List<MatchListener> literalListeners, List<Pattern> patterns, List<MatchListener> patternListeners) {
+            this.literals = literals.toArray( new String[literals.size()] );
+            this.literalListeners = literalListeners.toArray( new MatchListener[literalListeners.size()] );
+            this.patterns = patterns.toArray( new Pattern[patterns.size()] );
+            this.patternListeners = patternListeners.toArray( new MatchListener[patternListeners.size()] );
+            this.combined = combine(this.patterns);
+        }
+
+        /**
+         * Match the i'th line of the block, and notify each matching listener once.
+         */
+        void match(ProcessHelper.Stream stream, LineBlock lines, int i) {
+            List<MatchListener> matched = null;
+            String line = null;
+
+            if (literals.length > 0) {
+                ByteAutomaton a = getAutomaton( lines.getCharset() );
+                if (a != null) {
+                    boolean[] found = a.match( lines.getBuffer(), lines.getOffset(i), lines.getLength(i) );
+                    if (found != null) {
+                        for (int j = 0; j < found.length; ++j) {
+                            if (found[j]) {
+                                matched = addMatch(matched, literalListeners[j]);
+                            }
+                        }
+                    }
+                } else {
+                    // The literals might not encode to the same bytes mid-line (e.g. UTF-16),
+                    // so match the decoded line.
+                    line = lines.get(i);
+                    for (int j = 0; j < literals.length; ++j) {
+                        if (line.contains(literals[j])) {
+                            matched = addMatch(matched, literalListeners[j]);
+                        }
+                    }
+                }
+            }
+
+            if (patterns.length > 0) {
+                if (line == null) {
+                    line = lines.get(i);
+                }
+                if (combined == null || combined.matcher(line).find()) {
+                    for (int j = 0; j < patterns.length; ++j) {
+                        if (patterns[j].matcher(line).find()) {
+                            matched = addMatch(matched, patternListeners[j]);
+                        }
+                    }
+                }
+            }
+
+            if (matched != null) {
+                if (line == null) {
+                    line = lines.get(i);
+                }
+                for (MatchListener listener : matched) {
+                    listener.onMatch(stream, line);
+                }
+            }
+        }
+
+        /**
+         * Add the listener to the matches for the line, unless it's already there.
+         *
+         * @return the matches (allocated on first use)
+         */
+        private static List<MatchListener> addMatch(List<MatchListener> matched, MatchListener listener) {
+            if (matched == null) {
+                matched = new ArrayList<MatchListener>(2);
+            }
+            for (MatchListener m : matched) {
+                if (m == listener) {
+                    return matched;
+                }
+            }
+            matched.add(listener);
+            return matched;
+        }
+
+        /**
+         * @return the automaton for the literals encoded in the given charset, or null 
+         *         if the charset isn't one that LineSplitter supports.
+         */
+        private ByteAutomaton getAutomaton(Charset charset) {
+            ByteAutomaton a = automaton;
+            if (a == null || !a.charset.equals(charset)) {
+                automaton = a = new ByteAutomaton(literals, charset);
+            }
+            return a.isSupported() ? a : null;
+        }
+
+        /**
+         * @return a single regex that matches wherever any of the given regexes matches,
+         *         or null if there's no regex or they can't be safely combined (different flags,
+         *         or backreferences, whose group numbers would shift).
+         */
+        private static Pattern combine(Pattern[] patterns) {
+            if (patterns.length < 2) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (Pattern pattern : patterns) {
+                if (pattern.flags() != patterns[0].flags() || pattern.pattern().matches("(?s).*\\\\([1-9]|k<).*")) {
+                    return null;
+                }
+                if (sb.length() > 0) {
+                    sb.append('|');
+                }
+                sb.append("(?:").append(pattern.pattern()).append(')');
+            }
+            try {
+                return Pattern.compile(sb.toString(), patterns[0].flags());
+            } catch (PatternSyntaxException e) {
+                // e.g. duplicate named groups.
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Aho-Corasick automaton over bytes, for a set of literals encoded in a charset.
+     * Compiled into a full transition table, so matching is one array lookup per byte.
+     */
+    static class ByteAutomaton {
+
+        final Charset charset;
+
+        /**
+         * transitions[state][byte] is the next state.
+         */
+        private final int[][] transitions;
+
+        /**
+         * outputs[state] is the literals (indexes) that end at the state, or null.
+         */
+        private final int[][] outputs;
+
+        private final int literalCount;
+
+        ByteAutomaton(String[] literals, Charset charset) {
+            this.charset = charset;
+            this.literalCount = literals.length;
+
+            if (!LineSplitter.supports(charset)) {
+                transitions = null;
+                outputs = null;
+                return;
+            }
+
+            // Build the trie.
+            List<int[]> gotos = new ArrayList<int[]>();
+            List<int[]> outs = new ArrayList<int[]>();
+            gotos.add( newState() );
+            outs.add(null);
+
+            for (int i = 0; i < literals.length; ++i) {
+                int state = 0;
+                for (byte b : literals[i].getBytes(charset)) {
+                    int next = gotos.get(state)[b & 0xff];
+                    if (next < 0) {
+                        next = gotos.size();
+                        gotos.get(state)[b & 0xff] = next;
+                        gotos.add( newState() );
+                        outs.add(null);
+                    }
+                    state = next;
+                }
+                outs.set(state, append( outs.get(state), i ));
+            }
+
+            // Breadth-first: compute the failure links and fill in the missing transitions.
+            int[] fail = new int[gotos.size()];
+            Queue<Integer> queue = new ArrayDeque<Integer>();
+            int[] root = gotos.get(0);
+            for (int b = 0; b < 256; ++b) {
+                if (root[b] < 0) {
+                    root[b] = 0;
+                } else {
+                    fail[root[b]] = 0;
+                    queue.add(root[b]);
+                }
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.remove();
+                int[] trans = gotos.get(state);
+                for (int b = 0; b < 256; ++b) {
+                    int next = trans[b];
+                    if (next < 0) {
+                        trans[b] = gotos.get( fail[state] )[b];
+                    } else {
+                        fail[next] = gotos.get( fail[state] )[b];
+                        outs.set(next, merge( outs.get(next), outs.get(fail[next]) ));
+                        queue.add(next);
+                    }
+                }
+            }
+
+            transitions = gotos.toArray( new int[gotos.size()][] );
+            outputs = outs.toArray( new int[outs.size()][] );
+        }
+
+        /**
+         * @return false if the charset isn't supported (in which case the automaton is empty).
+         */
+        boolean isSupported() {
+            return transitions != null;
+        }
+
+        /**
+         * @return flags for the literals found in the given bytes, or null if none.
+         */
+        boolean[] match(byte[] buf, int off, int len) {
+            // Empty literals end at the root state, i.e. match every line.
+            boolean[] retMe = collect(null, outputs[0]);
+            int state = 0;
+            for (int i = off; i < off + len; ++i) {
+                state = transitions[state][ buf[i] & 0xff ];
+                if (outputs[state] != null) {
+                    retMe = collect(retMe, outputs[state]);
+                }
+            }
+            return retMe;
+        }
+
+        /**
+         * Flag the given literals as found.
+         *
+         * @return the flags (allocated on first use)
+         */
+        private boolean[] collect(boolean[] found, int[] literals) {
+            if (literals == null) {
+                return found;
+            }
+            if (found == null) {
+                found = new boolean[literalCount];
+            }
+            for (int literal : literals) {
+                found[literal] = true;
+            }
+            return found;
+        }
+
+        private static int[] newState() {
+            int[] retMe = new int[256];
+            Arrays.fill(retMe, -1);
+            return retMe;
+        }
+
+        private static int[] append(int[] a, int value) {
+            if (a == null) {
+                return new int[] { value };
+            }
+            int[] retMe = Arrays.copyOf(a, a.length + 1);
+            retMe[a.length] = value;
+            return retMe;
+        }
+
+        private static int[] merge(int[] a, int[] b) {
+            if (b == null) {
+                return a;
+            } else if (a == null) {
+                return b;
+            }
+            int[] retMe = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, retMe, a.length, b.length);
+            return retMe;
+        }
+    }
+}
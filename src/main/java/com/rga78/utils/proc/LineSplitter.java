@@ -0,0 +1,171 @@
+package com.rga78.utils.proc;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Splits a stream of bytes into lines, incrementally, as chunks of the stream
+ * arrive.  Lines are terminated by "\n", "\r", or "\r\n" (same as BufferedReader.readLine).
+ *
+ * Each line is passed to the LineHandler as a slice of a byte array, without the
+ * line terminator.  The slice is only valid for the duration of the callback.
+ * Nothing is decoded or copied, unless a line spans chunks, so a handler that
+ * only needs to look at the bytes (or decodes only some lines) doesn't pay for
+ * a String per line.
+ *
+ * Usage:
+ *      LineSplitter splitter = new LineSplitter( handler );
+ *      while ((len = is.read(buf)) >= 0) { splitter.write(buf, 0, len); }
+ *      splitter.flush();
+ *
+ * Usage: processHelper.addStreamHandler( Stream.STDOUT, new LineSplitter( handler ) );
+ *
+ * Note: only works for charsets that encode '\r' and '\n' as single bytes
+ * (e.g. ASCII, ISO-8859-1, UTF-8).  See supports(Charset).
+ */
+public class LineSplitter implements StreamHandler {
+
+    /**
+     * Receives each line.
+     */
+    public interface LineHandler {
+
+        /**
+         * @param buf the buffer containing the line
+         * @param off the offset of the line in the buffer
+         * @param len the length of the line, not including the line terminator
+         */
+        void onLine(byte[] buf, int off, int len) throws IOException;
+    }
+
+    /**
+     * Line callback.
+     */
+    private final LineHandler lineHandler;
+
+    /**
+     * Holds the beginning of a line that spans chunks.
+     */
+    private byte[] partial = new byte[128];
+
+    /**
+     * Number of bytes in partial.
+     */
+    private int partialLen = 0;
+
+    /**
+     * True if the previous chunk ended with a '\r', in which case a '\n' at the
+     * start of the next chunk is part of the same line terminator.
+     */
+    private boolean skipLF = false;
+
+    /**
+     * CTOR.
+     */
+    public LineSplitter(LineHandler lineHandler) {
+        this.lineHandler = lineHandler;
+    }
+
+    /**
+     * @return true if lines encoded in the given charset can be split by a LineSplitter
+     *         (i.e. the charset encodes '\r' and '\n' as the single bytes 0x0D and 0x0A).
+     *         False for e.g. UTF-16 and EBCDIC.
+     */
+    public static boolean supports(Charset charset) {
+        byte[] bytes = "\r\n".getBytes(charset);
+        return bytes.length == 2 && bytes[0] == '\r' && bytes[1] == '\n';
+    }
+
+    /**
+     * Same as write.
+     */
+    @Override
+    public void onData(byte[] buf, int off, int len) throws IOException {
+        write(buf, off, len);
+    }
+
+    /**
+     * Same as flush.
+     */
+    @Override
+    public void onEnd() throws IOException {
+        flush();
+    }
+
+    /**
+     * Split the given chunk into lines.  Complete lines are passed to the LineHandler.
+     * The trailing partial line (if any) is saved until the next chunk arrives (or flush is called).
+     */
+    public void write(byte[] buf, int off, int len) throws IOException {
+        int end = off + len;
+        int start = off;
+
+        if (skipLF && start < end) {
+            skipLF = false;
+            if (buf[start] == '\n') {
+                ++start;
+            }
+        }
+
+        for (int i = start; i < end; ++i) {
+            byte b = buf[i];
+            if (b != '\n' && b != '\r') {
+                continue;
+            }
+
+            emit(buf, start, i - start);
+
+            if (b == '\r') {
+                if (i + 1 < end) {
+                    if (buf[i + 1] == '\n') {
+                        ++i;
+                    }
+                } else {
+                    skipLF = true;
+                }
+            }
+            start = i + 1;
+        }
+
+        if (start < end) {
+            appendPartial(buf, start, end - start);
+        }
+    }
+
+    /**
+     * Signal end-of-stream.  The trailing partial line (if any) is passed to the LineHandler.
+     */
+    public void flush() throws IOException {
+        if (partialLen > 0) {
+            int len = partialLen;
+            partialLen = 0;
+            lineHandler.onLine(partial, 0, len);
+        }
+    }
+
+    /**
+     * Pass the line to the handler, prefixed by the partial line saved from the previous chunk(s), if any.
+     */
+    private void emit(byte[] buf, int off, int len) throws IOException {
+        if (partialLen == 0) {
+            lineHandler.onLine(buf, off, len);
+        } else {
+            appendPartial(buf, off, len);
+            int partialLineLen = partialLen;
+            partialLen = 0;
+            lineHandler.onLine(partial, 0, partialLineLen);
+        }
+    }
+
+    /**
+     * Save the given bytes, to be prefixed to the next line.
+     */
+    private void appendPartial(byte[] buf, int off, int len) {
+        if (partialLen + len > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLen + len));
+        }
+        System.arraycopy(buf, off, partial, partialLen, len);
+        partialLen += len;
+    }
+}
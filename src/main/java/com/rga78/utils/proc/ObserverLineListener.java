@@ -0,0 +1,39 @@
+package com.rga78.utils.proc;
+
+import java.util.Observer;
+
+/**
+ * Adapts a java.util.Observer to the LineListener interface.  The observer's
+ * update method is called once per line, with the line as a String.
+ */
+public class ObserverLineListener implements LineListener {
+
+    /**
+     * The adapted observer.
+     */
+    private final Observer observer;
+
+    /**
+     * CTOR.
+     */
+    public ObserverLineListener(Observer observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * Pass each line to the observer.
+     */
+    @Override
+    public void onLines(ProcessHelper.Stream stream, LineBlock lines) {
+        for (int i = 0; i < lines.size(); ++i) {
+            observer.update(null, lines.get(i));
+        }
+    }
+
+    /**
+     * @return the adapted observer.
+     */
+    public Observer getObserver() {
+        return observer;
+    }
+}
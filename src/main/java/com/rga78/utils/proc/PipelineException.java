@@ -0,0 +1,84 @@
+package com.rga78.utils.proc;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by ProcessPipeline when one or more stages of the pipeline fail.
+ * 
+ * The exit value, description, and stderr are those of the first failed stage;
+ * stdout is that of the last stage.  The message describes every failed stage.
+ */
+public class PipelineException extends ProcessException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The results of all stages, in pipeline order.  Not serialized (the message is).
+     */
+    private final transient List<ProcessResult> results;
+
+    /**
+     * CTOR.
+     *
+     * @param results the results of all stages, in pipeline order.  At least one stage failed.
+     */
+    public PipelineException(List<ProcessResult> results) {
+        super( firstFailed(results).getExitValue(),
+               firstFailed(results).getDescription(),
+               results.get(results.size() - 1).getStdout(),
+               firstFailed(results).getStderr() );
+        this.results = results;
+    }
+
+    /**
+     * @return the results of all stages, in pipeline order (empty if this exception 
+     *         was deserialized).
+     */
+    public List<ProcessResult> getResults() {
+        return (results != null) ? results : Collections.<ProcessResult>emptyList();
+    }
+
+    /**
+     * @return the first stage with a non-zero exit value (or the last stage, if none).
+     */
+    private static ProcessResult firstFailed(List<ProcessResult> results) {
+        for (ProcessResult result : results) {
+            if (result.getExitValue() != 0) {
+                return result;
+            }
+        }
+        return results.get(results.size() - 1);
+    }
+
+    /**
+     * @return a message describing the failed stages.
+     */
+    @Override
+    protected String buildMessage() {
+        int failedCount = 0;
+        for (ProcessResult result : results) {
+            if (result.getExitValue() != 0) {
+                ++failedCount;
+            }
+        }
+        
+        String prefix = "Pipeline failed";
+        int stageBytes = (MAX_MESSAGE_BYTES - prefix.length()) / Math.max(1, failedCount);
+        
+        StringBuilder sb = new StringBuilder(prefix);
+        for (int i = 0; i < results.size(); ++i) {
+            ProcessResult result = results.get(i);
+            if (result.getExitValue() != 0) {
+                String header = "; stage " + i 
+                                + " failed with exitValue " + result.getExitValue()
+                                + "; Description: " + result.getDescription()
+                                + "; =====stderr================================================\n";
+                sb.append(header);
+                appendTail(sb, result.getStderr(), Math.max(0, stageBytes - utf8Length(header) - 1));
+                sb.append("\n");
+            }
+        }
+        return sb.toString();
+    }
+}
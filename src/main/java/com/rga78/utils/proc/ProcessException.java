@@ -1,15 +1,58 @@
 package com.rga78.utils.proc;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
-import org.apache.commons.lang3.StringUtils;
-
 /**
  * Contains info related to the javadoc process that failed.
+ * 
+ * The exception holds references to the captured stdout/stderr (it doesn't copy them).
+ * The message is built lazily, the first time getMessage is called, and the output in it
+ * is capped so the message is at most MAX_MESSAGE_BYTES when encoded as UTF-8 (keeping 
+ * the last lines of each stream).  So constructing (and discarding) a ProcessException 
+ * is cheap.
+ * 
+ * The captured tails (e.g. TailBuffers) needn't be Serializable: they're copied when
+ * the exception is serialized.
  */
 public class ProcessException extends IOException {
     
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Max size of the message, in bytes (UTF-8).  Half of it is available to each stream.
+     */
+    public static final int MAX_MESSAGE_BYTES = 16 * 1024;
+    
+    /**
+     * The process exit value.
+     */
+    private final int exitValue;
+    
+    /**
+     * The process description.
+     */
+    private final String description;
+    
+    /**
+     * The tail of stdout.  Copied on serialization (see writeObject).
+     */
+    private transient List<String> stdout;
+    
+    /**
+     * The tail of stderr.  Copied on serialization (see writeObject).
+     */
+    private transient List<String> stderr;
+    
+    /**
+     * The message, once built.
+     */
+    private volatile String message;
+    
     /**
      * CTOR.
      */
@@ -21,12 +64,198 @@ public class ProcessException extends IOException {
      * CTOR.
      */
     public ProcessException( Process p, String description, List<String> stdout, List<String> stderr) {
-        super( "Process failed with exitValue " + p.exitValue()
-               + "; Description: " + description
-               + "; =====stdout================================================\n" 
-               + StringUtils.join( stdout, "\n" )
-               + "; =====stderr================================================\n" 
-               + StringUtils.join( stderr, "\n" ) );
+        this( p.exitValue(), description, stdout, stderr );
+    }
+    
+    /**
+     * CTOR.
+     */
+    public ProcessException(ProcessResult processResult) {
+        this( processResult.getExitValue(), processResult.getDescription(), processResult.getStdout(), processResult.getStderr() );
+    }
+    
+    /**
+     * CTOR.
+     */
+    public ProcessException(int exitValue, String description, List<String> stdout, List<String> stderr) {
+        this.exitValue = exitValue;
+        this.description = description;
+        this.stdout = (stdout != null) ? stdout : Collections.<String>emptyList();
+        this.stderr = (stderr != null) ? stderr : Collections.<String>emptyList();
+    }
+    
+    /**
+     * @return the process exit value.
+     */
+    public int getExitValue() {
+        return exitValue;
+    }
+    
+    /**
+     * @return the process description.
+     */
+    public String getDescription() {
+        return description;
+    }
+    
+    /**
+     * @return the last lines of stdout.
+     */
+    public List<String> getStdout() {
+        return stdout;
+    }
+    
+    /**
+     * @return the last lines of stderr.
+     */
+    public List<String> getStderr() {
+        return stderr;
+    }
+    
+    /**
+     * @return the message, built on first use.
+     */
+    @Override
+    public String getMessage() {
+        if (message == null) {
+            message = buildMessage();
+        }
+        return message;
+    }
+    
+    /**
+     * @return the message: the exit value and description, plus the last lines of stdout/stderr.
+     */
+    protected String buildMessage() {
+        String stdoutHeader = "; =====stdout================================================\n";
+        String stderrHeader = "; =====stderr================================================\n";
+        
+        StringBuilder sb = new StringBuilder();
+        sb.append("Process failed with exitValue ").append(exitValue)
+          .append("; Description: ").append(description);
+        
+        int tailBytes = Math.max(0, MAX_MESSAGE_BYTES - utf8Length(sb) - stdoutHeader.length() - stderrHeader.length()) / 2;
+        
+        sb.append(stdoutHeader);
+        appendTail(sb, stdout, tailBytes);
+        sb.append(stderrHeader);
+        appendTail(sb, stderr, tailBytes);
+        return sb.toString();
+    }
+    
+    /**
+     * Append the last lines that fit in maxBytes (UTF-8), newline-separated.  If lines 
+     * are omitted, that's noted first (within maxBytes).  The last line is truncated 
+     * (keeping its end) if it doesn't fit by itself.
+     */
+    protected static void appendTail(StringBuilder sb, List<String> lines, int maxBytes) {
+        int from = lines.size();
+        int length = 0;         // of lines [from, size), joined with '\n'.
+        while (from > 0) {
+            int next = length + utf8Length( lines.get(from - 1) ) + ((from < lines.size()) ? 1 : 0);
+            if (next > maxBytes) {
+                break;
+            }
+            length = next;
+            --from;
+        }
+        
+        // Make room for the note about the omitted lines.
+        while (from > 0 && from < lines.size() && length + omittedNote(from).length() > maxBytes) {
+            length -= utf8Length( lines.get(from) ) + ((from + 1 < lines.size()) ? 1 : 0);
+            ++from;
+        }
+        
+        if (from == lines.size() && from > 0) {
+            // Not even the last line fits.
+            String note = (from > 1) ? omittedNote(from - 1) : "";
+            String last = lines.get(from - 1);
+            int room = maxBytes - note.length() - 3;
+            if (room > 0) {
+                sb.append(note).append("...").append( last, utf8Suffix(last, room), last.length() );
+            }
+            return;
+        }
+        
+        if (from > 0) {
+            sb.append( omittedNote(from) );
+        }
+        for (int i = from; i < lines.size(); ++i) {
+            if (i > from) {
+                sb.append('\n');
+            }
+            sb.append( lines.get(i) );
+        }
+    }
+    
+    /**
+     * @return the note about the given number of omitted lines.
+     */
+    private static String omittedNote(int count) {
+        return "...(" + count + " lines omitted)\n";
+    }
+    
+    /**
+     * @return the length of the given chars, in bytes, when encoded as UTF-8.
+     */
+    protected static int utf8Length(CharSequence s) {
+        int retMe = 0;
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                retMe += 1;
+            } else if (c < 0x800) {
+                retMe += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                retMe += 4;
+                ++i;
+            } else {
+                retMe += 3;
+            }
+        }
+        return retMe;
+    }
+    
+    /**
+     * @return the start index of the longest suffix of the given string that fits in 
+     *         maxBytes, when encoded as UTF-8 (never splitting a surrogate pair).
+     */
+    private static int utf8Suffix(String s, int maxBytes) {
+        int from = s.length();
+        int bytes = 0;
+        while (from > 0) {
+            int start = from - 1;
+            if (start > 0 && Character.isLowSurrogate(s.charAt(start)) && Character.isHighSurrogate(s.charAt(start - 1))) {
+                --start;
+            }
+            bytes += utf8Length( s.subSequence(start, from) );
+            if (bytes > maxBytes) {
+                break;
+            }
+            from = start;
+        }
+        return from;
+    }
+    
+    /**
+     * Build the message before serializing (so subclasses' messages survive), and copy 
+     * the tails into serializable lists.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getMessage();
+        out.defaultWriteObject();
+        out.writeObject( new ArrayList<String>(stdout) );
+        out.writeObject( new ArrayList<String>(stderr) );
+    }
+    
+    /**
+     * Read the copied tails.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        stdout = (List<String>) in.readObject();
+        stderr = (List<String>) in.readObject();
     }
 
 }
@@ -1,21 +1,33 @@
 package com.rga78.utils.proc;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.charset.Charset;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Observer;
-import java.util.concurrent.Callable;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * A little wrapper around a forked Process.  It sets up separate threads
@@ -31,6 +43,18 @@ import java.util.concurrent.Future;
  */
 public class ProcessHelper<T extends ProcessHelper> {
     
+    /**
+     * Max number of lines collected in a LineBlock before it's dispatched, when
+     * reading with a BufferedReader (see loadStreamWithReader).
+     */
+    private static final int MAX_BLOCK_LINES = 1024;
+    
+    /**
+     * Max number of bytes collected in a LineBlock before it's dispatched, when
+     * reading with a BufferedReader (see loadStreamWithReader).
+     */
+    private static final int MAX_BLOCK_BYTES = 64 * 1024;
+    
     /**
      * Output stream identifier
      */
@@ -45,22 +69,58 @@ public class ProcessHelper<T extends ProcessHelper> {
     private Process process;
 
     /**
-     * Output observers are registered with the ProcessHelper and are notified
-     * whenever the process writes output to stdout/stderr.
+     * Line listeners are registered with the ProcessHelper and are notified
+     * whenever the process writes output to stdout/stderr.  Observers are 
+     * registered as listeners via an ObserverLineListener adapter.
+     * 
+     * Copy-on-write, so listeners can be added/removed while the reader is iterating.
+     */
+    private Collection<LineListener> stdoutListeners = new CopyOnWriteArrayList<LineListener>();
+    
+    /**
+     * Line listeners are registered with the ProcessHelper and are notified
+     * whenever the process writes output to stdout/stderr.  Observers are 
+     * registered as listeners via an ObserverLineListener adapter.
+     * 
+     * Copy-on-write, so listeners can be added/removed while the reader is iterating.
+     */
+    private Collection<LineListener> stderrListeners = new CopyOnWriteArrayList<LineListener>();
+    
+    /**
+     * Raw handlers receive the stdout bytes as-is, without being split into lines.
      */
-    private Collection<Observer> stdoutObservers = new ArrayList<Observer>();
+    private Collection<StreamHandler> stdoutHandlers = new CopyOnWriteArrayList<StreamHandler>();
     
     /**
-     * Output observers are registered with the ProcessHelper and are notified
-     * whenever the process writes output to stdout/stderr.
+     * Raw handlers receive the stderr bytes as-is, without being split into lines.
      */
-    private Collection<Observer> stderrObservers = new ArrayList<Observer>();
+    private Collection<StreamHandler> stderrHandlers = new CopyOnWriteArrayList<StreamHandler>();
+    
+    /**
+     * The streams that are spilled to a SpillFile.  These streams are still split
+     * into lines for the in-memory tail, even if they have no line listeners.
+     */
+    private Set<Stream> spilledStreams = EnumSet.noneOf(Stream.class);
     
     /**
      * ExecutorService for creating separate threads to read the process's stdout/stderr streams.
-     * TODO: inject ExecutorService?
+     * 
+     * Either injected via setExecutorService (e.g. ReaderExecutors.shared()) or lazily 
+     * created on first use.
+     */
+    private ExecutorService executorService;
+    
+    /**
+     * True if this ProcessHelper created the executorService (and is therefore
+     * responsible for shutting it down).
      */
-    private ExecutorService executorService = Executors.newCachedThreadPool();
+    private boolean ownsExecutorService = false;
+    
+    /**
+     * If set, stdout/stderr are drained by the (shared) ProcessReactor instead
+     * of by dedicated reader threads.
+     */
+    private ProcessReactor reactor;
     
     /**
      * The stdout stream.  Represented as a Future because the stream is read
@@ -68,7 +128,7 @@ public class ProcessHelper<T extends ProcessHelper> {
      * 
      * The stdout stream is returned as a List<String> - one string per line.
      */
-    private Future<List<String>> stdout;
+    private CompletableFuture<List<String>> stdout;
     
     /**
      * The stderr stream.  Represented as a Future because the stream is read
@@ -76,13 +136,65 @@ public class ProcessHelper<T extends ProcessHelper> {
      * 
      * The stderr stream is returned as a List<String> - one string per line.
      */
-    private Future<List<String>> stderr;
+    private CompletableFuture<List<String>> stderr;
+    
+    /**
+     * Completes when the stdin feed (if any) is done.  See feedStdin.
+     */
+    private CompletableFuture<Long> stdinFeed;
+    
+    /**
+     * Max number of lines of stdout/stderr to keep (the tail of the stream).
+     */
+    private int tailMaxLines = 1000;
+    
+    /**
+     * Max total size, in bytes, of the lines of stdout/stderr to keep.
+     */
+    private long tailMaxBytes = Long.MAX_VALUE;
+    
+    /**
+     * The charset used to decode stdout/stderr.
+     */
+    private Charset charset = Charset.defaultCharset();
     
     /**
      * A short description of the process, mainly for debugging purposes.
      */
     private String description;
     
+    /**
+     * System.nanoTime when this ProcessHelper was created.
+     */
+    private final long startNanos = System.nanoTime();
+    
+    /**
+     * Timing and resource metrics for this process.
+     */
+    private final ProcessMetrics metrics = new ProcessMetrics(startNanos);
+    
+    /**
+     * If set, the metrics are recorded here when the process is done.
+     */
+    private ProcessMetricsRegistry metricsRegistry;
+    
+    /**
+     * Completes when the process has exited and both stream readers are done.
+     * Created by onExit().
+     */
+    private CompletableFuture<ProcessResult> result;
+    
+    /**
+     * Set if the process had to be torn down (see waitUntil).
+     */
+    private volatile TeardownReport teardownReport;
+    
+    /**
+     * True if a subclass overrides the (deprecated) notifyObservers hook, which must 
+     * then still be called for every line.
+     */
+    private final boolean overridesNotifyObservers = overridesNotifyObservers( getClass() );
+    
     /**
      * CTOR.  
      * 
@@ -92,10 +204,40 @@ public class ProcessHelper<T extends ProcessHelper> {
         this.process = process;
     }
     
+    /**
+     * CTOR.  
+     * 
+     * @param process - the already-started process.
+     * @param executorService - for running the stdout/stderr readers. See setExecutorService.
+     */
+    public ProcessHelper(Process process, ExecutorService executorService) {
+        this(process);
+        setExecutorService(executorService);
+    }
+    
+    /**
+     * Start a process from the given ProcessBuilder and wrap it in a ProcessHelper.
+     * Unlike the constructor, this measures the time taken to fork the process (see getMetrics).
+     * 
+     * @return a ProcessHelper for the started process.
+     */
+    public static ProcessHelper<?> start(ProcessBuilder processBuilder) throws IOException {
+        long forkStartNanos = System.nanoTime();
+        Process process = processBuilder.start();
+        long forkEndNanos = System.nanoTime();
+        
+        ProcessHelper<?> retMe = new ProcessHelper(process);
+        retMe.metrics.setFork(forkStartNanos, forkEndNanos);
+        return retMe;
+    }
+    
     /**
      * Add an output observer for the given output stream (STDOUT or STDERR).
      * 
-     * Note: observers should be added *BEFORE* calling spawnStreamReaders.
+     * Observers may be added at any time, even while output is being read; they
+     * receive the output read after they're added.  Note: if the stream has raw 
+     * handlers (e.g. pipeRawTo) but no observers/listeners when spawnStreamReaders 
+     * is called, the stream isn't split into lines, so later observers get nothing.
      * 
      * @param stream the output stream to observe (Stream.STDOUT, Stream.STDERR)
      * @param observer the observer
@@ -103,28 +245,78 @@ public class ProcessHelper<T extends ProcessHelper> {
      * @return this
      */
     public T addObserver(Stream stream, Observer observer) {
-        if (observer == null) {
+        return (observer == null) ? (T) this : addLineListener(stream, new ObserverLineListener(observer));
+    }
+    
+    /**
+     * Add the given output observer to both the STDOUT and STDERR streams.
+     * See addObserver(Stream, Observer).
+     * 
+     * @param observer the observer
+     * 
+     * @return this
+     */
+    public T addObserver(Observer observer) {
+        addObserver(Stream.STDOUT, observer);
+        return addObserver(Stream.STDERR, observer);
+    }
+    
+    /**
+     * Add a line listener for the given output stream (STDOUT or STDERR).
+     * Listeners receive the output a block of lines at a time, on the reader thread.
+     * Wrap slow listeners in an AsyncLineListener, so they don't hold up the reader.
+     * 
+     * Listeners may be added at any time, even while output is being read; they
+     * receive the output read after they're added.  Note: if the stream has raw 
+     * handlers (e.g. pipeRawTo) but no observers/listeners when spawnStreamReaders 
+     * is called, the stream isn't split into lines, so later listeners get nothing.
+     * 
+     * @return this
+     */
+    public T addLineListener(Stream stream, LineListener listener) {
+        if (listener == null) {
             // ignore
         } else if (stream == Stream.STDOUT) {
-            stdoutObservers.add(observer);
+            stdoutListeners.add(listener);
         } else {
-            stderrObservers.add(observer);
+            stderrListeners.add(listener);
         }
         return (T) this;
     }
     
     /**
-     * Add the given output observer to both the STDOUT and STDERR streams.
+     * Add the given line listener to both the STDOUT and STDERR streams.
+     * See addLineListener(Stream, LineListener).
      * 
-     * Note: observers should be added *BEFORE* calling spawnStreamReaders.
+     * @return this
+     */
+    public T addLineListener(LineListener listener) {
+        addLineListener(Stream.STDOUT, listener);
+        return addLineListener(Stream.STDERR, listener);
+    }
+    
+    /**
+     * Remove the line listener from the given output stream.  May be called at any time.
      * 
-     * @param observer the observer
+     * @return this
+     */
+    public T removeLineListener(Stream stream, LineListener listener) {
+        getLineListeners(stream).remove(listener);
+        return (T) this;
+    }
+    
+    /**
+     * Remove the observer from the given output stream.  May be called at any time.
      * 
      * @return this
      */
-    public T addObserver(Observer observer) {
-        addObserver(Stream.STDOUT, observer);
-        return addObserver(Stream.STDERR, observer);
+    public T removeObserver(Stream stream, Observer observer) {
+        for (LineListener listener : getLineListeners(stream)) {
+            if (listener instanceof ObserverLineListener && ((ObserverLineListener) listener).getObserver() == observer) {
+                getLineListeners(stream).remove(listener);
+            }
+        }
+        return (T) this;
     }
     
     /**
@@ -144,6 +336,80 @@ public class ProcessHelper<T extends ProcessHelper> {
         return description;
     }
     
+    /**
+     * Set the max number of lines of stdout/stderr to keep.  Default is 1000.
+     * 
+     * Note: must be called *BEFORE* spawnStreamReaders.
+     * 
+     * @return this
+     */
+    public T setTailCapacity(int maxLines) {
+        this.tailMaxLines = maxLines;
+        return (T) this;
+    }
+    
+    /**
+     * Set the max total size, in bytes, of the lines of stdout/stderr to keep.  
+     * The oldest lines are dropped to stay under the budget. Default is no limit.
+     * 
+     * Note: must be called *BEFORE* spawnStreamReaders.
+     * 
+     * @return this
+     */
+    public T setTailByteBudget(long maxBytes) {
+        this.tailMaxBytes = maxBytes;
+        return (T) this;
+    }
+    
+    /**
+     * Set the charset used to decode stdout/stderr.  Default is the platform default charset.
+     * 
+     * Note: charsets that don't encode '\r' and '\n' as single bytes (e.g. UTF-16) are
+     * read via BufferedReader.readLine, and can't be combined with raw handlers or a ProcessReactor.
+     * Note: must be called *BEFORE* spawnStreamReaders.
+     * 
+     * @return this
+     */
+    public T setCharset(Charset charset) {
+        this.charset = charset;
+        return (T) this;
+    }
+    
+    /**
+     * @return the charset used to decode stdout/stderr.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+    
+    /**
+     * @return a new TailBuffer for holding the last lines of stdout/stderr.
+     */
+    protected TailBuffer newTailBuffer() {
+        return new TailBuffer(tailMaxLines, tailMaxBytes);
+    }
+    
+    /**
+     * Record this process's metrics to the given registry when the process is done
+     * (i.e. when the future returned by onExit completes).
+     * 
+     * Note: must be called *BEFORE* spawnStreamReaders.
+     * 
+     * @return this
+     */
+    public T recordMetricsTo(ProcessMetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+        return (T) this;
+    }
+    
+    /**
+     * @return the timing and resource metrics for this process.  The stream metrics
+     *         are updated as the output is read.
+     */
+    public ProcessMetrics getMetrics() {
+        return metrics;
+    }
+    
     /**
      * Redirect to the given output stream
      */
@@ -151,14 +417,189 @@ public class ProcessHelper<T extends ProcessHelper> {
         return addObserver( stream, new StreamPiper(outputStream) );
     }
     
+    /**
+     * Redirect the raw bytes of the given stream to the given output stream, 
+     * without decoding them into lines.
+     * 
+     * Note: if no observers/line listeners are registered for the stream, then the stream isn't split 
+     * into lines at all, so getStdout/getStderr will be empty for that stream.
+     * 
+     * @return this
+     */
+    public T pipeRawTo(Stream stream, OutputStream outputStream) {
+        return addStreamHandler( stream, new RawStreamPiper(outputStream) );
+    }
+    
+    /**
+     * Redirect the raw bytes of the given stream to the given file (see pipeRawTo(Stream, OutputStream)). 
+     * The file is created (or truncated) when the process is started.
+     * 
+     * @return this
+     */
+    public T pipeRawTo(Stream stream, File file) {
+        return addStreamHandler( stream, new RawStreamPiper(file) );
+    }
+    
+    /**
+     * Capture the full contents of the given stream to the given SpillFile, while 
+     * keeping only the tail in memory (see setTailCapacity).  The SpillFile can be
+     * read back (iterated, searched, tailed) without loading it all into memory.
+     * 
+     * @return this
+     */
+    public T spillTo(Stream stream, SpillFile spillFile) {
+        spilledStreams.add(stream);
+        return addStreamHandler(stream, spillFile);
+    }
+    
+    /**
+     * Add a raw handler for the given output stream (STDOUT or STDERR).  Raw handlers
+     * receive the bytes of the stream as they're read.
+     * 
+     * Note: handlers should be added *BEFORE* calling spawnStreamReaders.
+     * 
+     * @return this
+     */
+    public T addStreamHandler(Stream stream, StreamHandler handler) {
+        if (handler == null) {
+            // ignore
+        } else if (stream == Stream.STDOUT) {
+            stdoutHandlers.add(handler);
+        } else {
+            stderrHandlers.add(handler);
+        }
+        return (T) this;
+    }
+    
+    /**
+     * Set the ExecutorService used to read stdout/stderr.  Use a shared executor 
+     * (e.g. ReaderExecutors.shared() or ReaderExecutors.virtualThreads()) to avoid
+     * creating and tearing down a thread pool for every process.
+     * 
+     * The caller retains ownership of the executor: it is NOT shut down by this ProcessHelper.
+     * If this ProcessHelper had already created its own executor, that one is shut down.
+     * 
+     * Note: must be called *BEFORE* spawnStreamReaders.
+     * 
+     * @return this
+     */
+    public T setExecutorService(ExecutorService executorService) {
+        if (stdout != null) {
+            throw new IllegalStateException("The stream readers have already been spawned");
+        }
+        shutdownExecutor();
+        this.executorService = executorService;
+        this.ownsExecutorService = false;
+        return (T) this;
+    }
+    
+    /**
+     * Read stdout/stderr using the JVM-wide shared reader pool.
+     * 
+     * @return this
+     */
+    public T useSharedExecutor() {
+        return setExecutorService( ReaderExecutors.shared() );
+    }
+    
+    /**
+     * Read stdout/stderr using virtual threads, if the JVM supports them; 
+     * otherwise the JVM-wide shared reader pool.
+     * 
+     * @return this
+     */
+    public T useVirtualThreads() {
+        return setExecutorService( ReaderExecutors.virtualThreads() );
+    }
+    
+    /**
+     * Drain stdout/stderr using the given ProcessReactor, rather than a reader thread per stream.
+     * 
+     * Note: observers are then called on the reactor's poller threads, so they must not block.
+     * Note: must be called *BEFORE* spawnStreamReaders.
+     * 
+     * @return this
+     */
+    public T setReactor(ProcessReactor reactor) {
+        if (stdout != null) {
+            throw new IllegalStateException("The stream readers have already been spawned");
+        }
+        this.reactor = reactor;
+        return (T) this;
+    }
+    
+    /**
+     * Write the contents of the given InputStream to the process's stdin, then close 
+     * both.  The copy runs on its own (daemon) thread, not on the reader ExecutorService, 
+     * so it can't deadlock with the stdout/stderr readers even if that executor is bounded.
+     * The input is streamed, not buffered in memory.  Only one feed per process.
+     * 
+     * @return this
+     */
+    public T feedStdin(InputStream is) {
+        return feedStdin( StdinFeeder.fromInputStream(is) );
+    }
+    
+    /**
+     * Write the contents of the given file to the process's stdin (via FileChannel.transferTo), 
+     * then close stdin.  See feedStdin(InputStream).
+     * 
+     * @return this
+     */
+    public T feedStdin(Path path) {
+        return feedStdin( StdinFeeder.fromPath(path) );
+    }
+    
+    /**
+     * Write the given lines (encoded with the charset, see setCharset), each followed by '\n', 
+     * to the process's stdin, then close stdin.  The lines are pulled from the iterator only as
+     * fast as the process reads them.  See feedStdin(InputStream).
+     * 
+     * @return this
+     */
+    public T feedStdin(Iterator<String> lines) {
+        return feedStdin( StdinFeeder.fromLines(lines, getCharset()) );
+    }
+    
+    /**
+     * Start the stdin feed.
+     * 
+     * @return this
+     */
+    private synchronized T feedStdin(StdinFeeder.Source source) {
+        if (stdinFeed != null) {
+            throw new IllegalStateException("stdin is already being fed");
+        }
+        stdinFeed = StdinFeeder.start(getProcess(), source);
+        return (T) this;
+    }
+    
+    /**
+     * @return a future for the number of bytes written to stdin by feedStdin, or null if 
+     *         feedStdin wasn't called.  Completes exceptionally if the write failed (e.g.
+     *         the process exited without reading all its input).
+     */
+    public synchronized CompletableFuture<Long> getStdinFeed() {
+        return stdinFeed;
+    }
+    
     /**
      * @return the executorService, for spawning threads to read stdout/stderr.
+     *         If one wasn't injected, a new cached thread pool is created (and 
+     *         owned by this ProcessHelper).
      */
     protected ExecutorService getExecutorService() {
+        if (executorService == null) {
+            executorService = Executors.newCachedThreadPool();
+            ownsExecutorService = true;
+        }
         return executorService;
     }
     
     /**
+     * Shutdown the executorService, if it was created by this ProcessHelper.
+     * Injected executors are left alone.
+     * 
      * @return this
      */
     protected T shutdownExecutor() {
@@ -168,13 +609,16 @@ public class ProcessHelper<T extends ProcessHelper> {
         // away because of cached (non-daemon) threads in the pool.  Eventually 
         // the cached threads time out and terminate from inactivity, which then
         // allows the JVM to exit, but that could take 20 or 30 seconds or so.
-        getExecutorService().shutdown();
+        if (ownsExecutorService && executorService != null) {
+            executorService.shutdown();
+        }
         
         return (T) this;
     }
     
     /**
      * Spawn threads (via the ExecutorService) to read stdout/stderr of the process.
+     * If a ProcessReactor was set, the streams are registered with the reactor instead.
      * 
      * @return this
      */
@@ -185,24 +629,52 @@ public class ProcessHelper<T extends ProcessHelper> {
             return (T) this;
         }
         
-        // Start threads for reading stdout and stderr.
-        // Note: this must be done on separate threads otherwise the process may block
-        // waiting for this guy to read some output.
-        stdout = getExecutorService().submit( new Callable<List<String>>() {
-            public List<String> call() {
-                return loadStreamUnchecked(Stream.STDOUT, getProcess().getInputStream());
-            }
-        });
-
-        stderr = getExecutorService().submit( new Callable<List<String>>() {
-            public List<String> call() {
-                return loadStreamUnchecked(Stream.STDERR, getProcess().getErrorStream());
-            }
-        });
+        if (reactor != null) {
+            stdout = registerWithReactor(Stream.STDOUT, getProcess().getInputStream());
+            stderr = registerWithReactor(Stream.STDERR, getProcess().getErrorStream());
+        } else {
+            // Start threads for reading stdout and stderr.
+            // Note: this must be done on separate threads otherwise the process may block
+            // waiting for this guy to read some output.
+            stdout = CompletableFuture.supplyAsync( new Supplier<List<String>>() {
+                public List<String> get() {
+                    return loadStreamUnchecked(Stream.STDOUT, getProcess().getInputStream());
+                }
+            }, getExecutorService());
+    
+            stderr = CompletableFuture.supplyAsync( new Supplier<List<String>>() {
+                public List<String> get() {
+                    return loadStreamUnchecked(Stream.STDERR, getProcess().getErrorStream());
+                }
+            }, getExecutorService());
+        }
+        
+        if (metricsRegistry != null) {
+            // The metrics are recorded when the onExit future completes.
+            onExit();
+        }
         
         return (T) this;
     }
     
+    /**
+     * Register the given stream with the reactor.  
+     * 
+     * @return a future for the last lines of the stream (see setTailCapacity).
+     */
+    protected CompletableFuture<List<String>> registerWithReactor(Stream stream, InputStream is) {
+        final TailBuffer retMe = newTailBuffer();
+        
+        StreamHandler handler = metrics.getStreamMetrics(stream).meter( newStreamHandler(stream, retMe) );
+        
+        return reactor.register(getProcess(), is, handler).thenApply( new Function<Void, List<String>>() {
+            public List<String> apply(Void v) {
+                metrics.sampleCpuTime(getProcess());
+                return retMe;
+            }
+        });
+    }
+    
     /**
      * Start separate threads for reading stdout/stderr of the Process, 
      * then call process.waitFor.
@@ -220,6 +692,194 @@ public class ProcessHelper<T extends ProcessHelper> {
         return (T) this;
     }
     
+    /**
+     * Wait at most the given time for the process to exit and the stream readers to finish.
+     * The process is left running if it doesn't finish in time.
+     * 
+     * @return true if the process exited and the stream readers finished; false if the time elapsed.
+     */
+    public boolean waitFor(Duration timeout) throws InterruptedException {
+        try {
+            onExit().get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException te) {
+            return false;
+        } catch (ExecutionException ee) {
+            // A stream reader failed.  The failure is reported by getStdout/getStderr.
+        }
+        return true;
+    }
+    
+    /**
+     * Wait at most the given time for the process to exit and the stream readers 
+     * to finish.  If the time elapses, the process is torn down (see waitUntil).
+     * 
+     * @param timeout max time to wait
+     * @param gracePeriod max time to wait for each teardown phase
+     * 
+     * @return this
+     */
+    public T waitFor(Duration timeout, Duration gracePeriod) throws InterruptedException {
+        return waitUntil( System.nanoTime() + timeout.toNanos(), gracePeriod );
+    }
+    
+    /**
+     * Wait until the given deadline for the process to exit and the stream readers to finish.
+     * 
+     * If the deadline passes, the process is torn down, escalating from destroy to
+     * destroyForcibly, and finally the stream readers are cancelled if they still 
+     * haven't finished.  Each phase waits at most the grace period, so this method
+     * returns no later than deadline + 3 * gracePeriod.  See getTeardownReport for 
+     * what happened.
+     * 
+     * @param deadlineNanos the deadline, in terms of System.nanoTime
+     * @param gracePeriod max time to wait for each teardown phase
+     * 
+     * @return this
+     */
+    public T waitUntil(long deadlineNanos, Duration gracePeriod) throws InterruptedException {
+        if (!waitFor( Duration.ofNanos( Math.max(0, deadlineNanos - System.nanoTime()) ) )) {
+            teardown(gracePeriod);
+        }
+        return (T) this;
+    }
+    
+    /**
+     * Tear down the process right away (see waitUntil).
+     * 
+     * @param gracePeriod max time to wait for each teardown phase
+     * 
+     * @return this
+     */
+    public T destroyAndWaitFor(Duration gracePeriod) throws InterruptedException {
+        teardown(gracePeriod);
+        return (T) this;
+    }
+    
+    /**
+     * @return the teardown report, if the process was torn down by waitUntil or 
+     *         destroyAndWaitFor(Duration); otherwise null.
+     */
+    public TeardownReport getTeardownReport() {
+        return teardownReport;
+    }
+    
+    /**
+     * Destroy the process, escalating to destroyForcibly if it doesn't exit within the 
+     * grace period, then wait for the stream readers, cancelling them if they don't 
+     * finish within the grace period.
+     * 
+     * Note: cancelling a reader completes its future (so nobody waits on it forever),
+     * but a read that's blocked on a pipe held open by some other process can't be 
+     * interrupted; that thread is released when the pipe is finally closed.
+     */
+    protected void teardown(Duration gracePeriod) throws InterruptedException {
+        
+        CompletableFuture<ProcessResult> done = onExit();
+        long graceNanos = gracePeriod.toNanos();
+        
+        long start = System.nanoTime();
+        getProcess().destroy();
+        boolean exited = getProcess().waitFor(graceNanos, TimeUnit.NANOSECONDS);
+        long destroyNanos = System.nanoTime() - start;
+        
+        boolean forcibly = false;
+        long destroyForciblyNanos = 0;
+        if (!exited) {
+            forcibly = true;
+            start = System.nanoTime();
+            getProcess().destroyForcibly();
+            exited = getProcess().waitFor(graceNanos, TimeUnit.NANOSECONDS);
+            destroyForciblyNanos = System.nanoTime() - start;
+        }
+        
+        boolean readersCancelled = false;
+        start = System.nanoTime();
+        try {
+            done.get(graceNanos, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException ee) {
+            // A stream reader failed.  The failure is reported by getStdout/getStderr.
+        } catch (TimeoutException te) {
+            readersCancelled = true;
+            closeQuietly( getProcess().getInputStream() );
+            closeQuietly( getProcess().getErrorStream() );
+            stdout.cancel(true);
+            stderr.cancel(true);
+        }
+        long readerJoinNanos = System.nanoTime() - start;
+        
+        shutdownExecutor();
+        
+        teardownReport = new TeardownReport(exited, forcibly, readersCancelled, destroyNanos, destroyForciblyNanos, readerJoinNanos);
+    }
+    
+    /**
+     * Close the given stream, ignoring errors.
+     */
+    private static void closeQuietly(InputStream is) {
+        try {
+            is.close();
+        } catch (IOException ioe) {
+            // ignore
+        }
+    }
+    
+    /**
+     * Start reading stdout/stderr of the Process, and return a future that completes
+     * when the process has exited and both stream readers are finished.  No thread
+     * is parked waiting for the process (see ExitWatcher).
+     * 
+     * If either stream reader fails, the future completes exceptionally.  Either way, 
+     * the executor (if owned) is shut down and the metrics are recorded (see recordMetricsTo)
+     * before the future completes.
+     * 
+     * @return a future for the ProcessResult.
+     */
+    public synchronized CompletableFuture<ProcessResult> onExit() {
+        
+        if (result != null) {
+            return result;
+        }
+        
+        spawnStreamReaders();
+        
+        if (result != null) {
+            // spawnStreamReaders created it (see recordMetricsTo).
+            return result;
+        }
+        
+        final CompletableFuture<Long> exitNanos = ExitWatcher.onExit(getProcess()).thenApply( new Function<Process, Long>() {
+            public Long apply(Process p) {
+                return System.nanoTime();
+            }
+        });
+        
+        result = CompletableFuture.allOf(exitNanos, stdout, stderr).handle( new BiFunction<Void, Throwable, ProcessResult>() {
+            public ProcessResult apply(Void v, Throwable t) {
+                // Clean up and record the metrics whatever the outcome (e.g. even if a reader failed).
+                long doneNanos = System.nanoTime();
+                shutdownExecutor();
+                metrics.setDone( (exitNanos.isDone() && !exitNanos.isCompletedExceptionally()) ? exitNanos.join() : doneNanos, 
+                                 doneNanos );
+                if (metricsRegistry != null) {
+                    metricsRegistry.record(metrics);
+                }
+                
+                if (t != null) {
+                    throw (t instanceof CompletionException) ? (CompletionException) t : new CompletionException(t);
+                }
+                return new ProcessResult( getDescription(),
+                                          exitValue(),
+                                          stdout.join(),
+                                          stderr.join(),
+                                          startNanos,
+                                          exitNanos.join(),
+                                          doneNanos );
+            }
+        });
+        
+        return result;
+    }
+    
     /**
      * Destroy the process (via process.destroy()), then wait for it to terminate.
      * 
@@ -320,57 +980,225 @@ public class ProcessHelper<T extends ProcessHelper> {
     /**
      * Read the contents of the given inputstream.
      * 
-     * Each line is passed to the output observers.
+     * The stream is read in chunks into a reusable buffer and split into lines by a 
+     * LineSplitter.  Each line is decoded (using the configured charset) only if 
+     * there's something to receive it: the tail and/or the output observers.
      * 
-     * The last 1000 lines are saved in a list and returned.
+     * Bytes read, time blocked in read, and time spent in the handlers are recorded
+     * in the stream's metrics (see getMetrics).
+     * 
+     * The last lines are saved in a TailBuffer and returned (see setTailCapacity).
      *
-     * @return The last 1000 lines of the InputStream.
+     * @return The last lines of the InputStream.
      */
     protected List<String> loadStream(Stream stream, InputStream is) throws IOException {
-        List<String> retMe = new LimitedQueue<String>(1000);
-        BufferedReader br = new BufferedReader(new InputStreamReader( is ) );     // stdout
+        TailBuffer retMe = newTailBuffer();
+        ProcessMetrics.StreamMetrics streamMetrics = metrics.getStreamMetrics(stream);
+        
+        if (getStreamHandlers(stream).isEmpty() && !LineSplitter.supports(getCharset())) {
+            loadStreamWithReader(stream, is, retMe);
+        } else {
+            StreamHandler handler = newStreamHandler(stream, retMe);
+            if (handler instanceof RawStreamPiper) {
+                // Metered at the InputStream, since the copy doesn't go through onData.
+                ((RawStreamPiper) handler).transferFrom( streamMetrics.meter(is) );
+            } else {
+                byte[] buf = new byte[8192];
+                int len;
+                long readNanos = System.nanoTime();
+                while ((len = is.read(buf)) >= 0) {
+                    long dispatchNanos = System.nanoTime();
+                    streamMetrics.onRead(len, dispatchNanos - readNanos, dispatchNanos);
+                    handler.onData(buf, 0, len);
+                    readNanos = System.nanoTime();
+                    streamMetrics.onDispatch(readNanos - dispatchNanos);
+                }
+                handler.onEnd();
+            }
+        }
+        
+        // The process is likely exiting.  Sample its CPU time while it's still around.
+        metrics.sampleCpuTime(getProcess());
+        return retMe;
+    }
+    
+    /**
+     * Read the contents of the given inputstream line by line, via BufferedReader.readLine.
+     * For charsets that LineSplitter doesn't support.
+     * 
+     * Lines are dispatched in blocks: whenever the reader has nothing more buffered, or 
+     * the block reaches MAX_BLOCK_LINES or MAX_BLOCK_BYTES (so that under continuous
+     * output the block doesn't grow without bound, and listeners aren't kept waiting).
+     * 
+     * @return the given TailBuffer, containing the last lines of the InputStream.
+     */
+    protected List<String> loadStreamWithReader(Stream stream, InputStream is, TailBuffer retMe) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader( is, getCharset() ) );
+        LineBlock lineBlock = new LineBlock( getCharset() );
         String line;
         while ((line = br.readLine()) != null) {
-            retMe.add(line);
-            notifyObservers(stream, line);
+            lineBlock.append(line);
+            if (!br.ready() || lineBlock.size() >= MAX_BLOCK_LINES || lineBlock.getDataLength() >= MAX_BLOCK_BYTES) {
+                // Dispatch whatever we have before blocking for more (or before the block gets too big).
+                dispatchLines(stream, lineBlock, retMe);
+            }
         } 
+        dispatchLines(stream, lineBlock, retMe);
         return retMe;
     }
     
+    /**
+     * Build the handler for the bytes of the given stream: the raw handlers, plus a 
+     * LineSplitter that feeds the tail and the line listeners.  The lines from each 
+     * chunk are collected into a LineBlock and dispatched together.
+     * 
+     * The LineSplitter is omitted if the stream has raw handlers but no listeners
+     * (unless it's spilled to a SpillFile).
+     * 
+     * @return the handler 
+     * 
+     * @throws IllegalStateException if the stream must be split into lines but 
+     *         the charset isn't supported by LineSplitter.
+     */
+    protected StreamHandler newStreamHandler(final Stream stream, final TailBuffer tail) {
+        final List<StreamHandler> handlers = new ArrayList<StreamHandler>( getStreamHandlers(stream) );
+        final Charset charset = getCharset();
+        
+        boolean hasListeners = !getLineListeners(stream).isEmpty();
+        // With no raw handlers, always split lines, in case a listener is added later.
+        boolean needsLines = hasListeners 
+                                || handlers.isEmpty() 
+                                || (spilledStreams.contains(stream) && tailMaxLines > 0);
+        
+        if (needsLines) {
+            if (!LineSplitter.supports(charset)) {
+                throw new IllegalStateException("Output in charset " + charset + " can't be split into lines by a LineSplitter");
+            }
+            
+            final LineBlock lineBlock = new LineBlock(charset);
+            final LineSplitter lineSplitter = new LineSplitter( new LineSplitter.LineHandler() {
+                public void onLine(byte[] buf, int off, int len) {
+                    lineBlock.append(buf, off, len);
+                }
+            });
+            
+            handlers.add( new StreamHandler() {
+                public void onData(byte[] buf, int off, int len) throws IOException {
+                    lineSplitter.write(buf, off, len);
+                    dispatchLines(stream, lineBlock, tail);
+                }
+                public void onEnd() throws IOException {
+                    lineSplitter.flush();
+                    dispatchLines(stream, lineBlock, tail);
+                }
+            });
+        }
+        
+        if (handlers.size() == 1) {
+            return handlers.get(0);
+        }
+        
+        return new StreamHandler() {
+            public void onData(byte[] buf, int off, int len) throws IOException {
+                for (StreamHandler handler : handlers) {
+                    handler.onData(buf, off, len);
+                }
+            }
+            public void onEnd() throws IOException {
+                for (StreamHandler handler : handlers) {
+                    handler.onEnd();
+                }
+            }
+        };
+    }
+    
+    /**
+     * @return the line listeners for the given stream.
+     */
+    protected Collection<LineListener> getLineListeners(Stream stream) {
+        return (stream == Stream.STDOUT) ? stdoutListeners : stderrListeners;
+    }
+    
+    /**
+     * @return the raw handlers for the given stream.
+     */
+    protected Collection<StreamHandler> getStreamHandlers(Stream stream) {
+        return (stream == Stream.STDOUT) ? stdoutHandlers : stderrHandlers;
+    }
+    
+    /**
+     * Add the block of lines to the tail and pass it to the line listeners, then clear it for reuse.
+     */
+    protected void dispatchLines(Stream stream, LineBlock lineBlock, TailBuffer tail) {
+        if (lineBlock.isEmpty()) {
+            return;
+        }
+        
+        metrics.getStreamMetrics(stream).onLines( lineBlock.size() );
+        
+        // Lines before the last tailMaxLines would just be evicted, so don't bother decoding them.
+        for (int i = Math.max(0, lineBlock.size() - tailMaxLines); i < lineBlock.size(); ++i) {
+            tail.add( lineBlock.get(i), lineBlock.getLength(i) );
+        }
+        
+        notifyListeners(stream, lineBlock);
+        lineBlock.clear();
+    }
+    
+    /**
+     * Notify line listeners when new lines of output are read from the process's
+     * stdout or stderr streams, in the order they were added.
+     * 
+     * If a subclass overrides notifyObservers, the observers (see addObserver) are
+     * notified via notifyObservers instead, a line at a time, after the other listeners.
+     */
+    protected void notifyListeners(Stream stream, LineBlock lineBlock) {
+        for (LineListener listener : getLineListeners(stream)) {
+            // If a subclass overrides notifyObservers, the observers are left to it.
+            if (!overridesNotifyObservers || !(listener instanceof ObserverLineListener)) {
+                listener.onLines(stream, lineBlock);
+            }
+        }
+        
+        if (overridesNotifyObservers) {
+            for (int i = 0; i < lineBlock.size(); ++i) {
+                notifyObservers(stream, lineBlock.get(i));
+            }
+        }
+    }
+    
     /**
      * Notify output observers when a new line of output is read from the process's
      * stdout or stderr streams.
+     * 
+     * Called by notifyListeners for each line, if a subclass overrides this method.
+     * 
+     * @deprecated Kept for subclasses that override it.  Override notifyListeners (or
+     *             add a LineListener) to handle a block of lines at a time instead.
      */
+    @Deprecated
     protected void notifyObservers(Stream stream, String line) {
-        Collection<Observer> observers = (stream == Stream.STDOUT) ? stdoutObservers : stderrObservers;
-        for (Observer observer : observers) {
-            observer.update(null, line);
+        for (LineListener listener : getLineListeners(stream)) {
+            if (listener instanceof ObserverLineListener) {
+                ((ObserverLineListener) listener).getObserver().update(null, line);
+            }
         }
     }
-
-
-}
-
-/**
- * Fixed-size circular FIFO queue.
- * 
- */
-class LimitedQueue<E> extends LinkedList<E> {
-
-    private final int limit;
-
-    public LimitedQueue(int limit) {
-        this.limit = limit;
+    
+    /**
+     * @return true if the given subclass of ProcessHelper overrides notifyObservers.
+     */
+    private static boolean overridesNotifyObservers(Class<?> clazz) {
+        for (Class<?> c = clazz; c != null && c != ProcessHelper.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("notifyObservers", Stream.class, String.class);
+                return true;
+            } catch (NoSuchMethodException nsme) {
+                // keep looking
+            }
+        }
+        return false;
     }
 
-    @Override
-    public boolean add(E o) {
-        super.add(o);    // added to tail.
-        
-        while (size() > limit) { 
-            remove(); // removed from head
-        } 
 
-        return true;
-    }
 }
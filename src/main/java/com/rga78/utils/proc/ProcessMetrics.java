@@ -0,0 +1,300 @@
+package com.rga78.utils.proc;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Timing and resource metrics for a process run by a ProcessHelper.
+ *
+ * All times are in nanos, measured with System.nanoTime, relative to the start of
+ * the run: when the process was forked, if it was started by ProcessHelper.start(ProcessBuilder),
+ * otherwise when the ProcessHelper was created.  Values that weren't (or couldn't be)
+ * measured are -1.
+ *
+ * The stream counters are updated by the stream readers as output is read, so they
+ * can be read while the process is running.  See ProcessMetricsRegistry for aggregating
+ * the metrics of many processes.
+ */
+public class ProcessMetrics {
+
+    /**
+     * Metrics for one output stream.  Updated by the stream's reader (a single thread).
+     */
+    public static class StreamMetrics {
+
+        private volatile long bytes = 0;
+        private volatile long lines = 0;
+        private volatile long firstOutputNanos = -1;
+        private volatile long readWaitNanos = 0;
+        private volatile long dispatchNanos = 0;
+
+        /**
+         * Record a chunk of output, read after waiting the given time.
+         */
+        void onRead(int len, long waitNanos, long nowNanos) {
+            if (firstOutputNanos < 0) {
+                firstOutputNanos = nowNanos;
+            }
+            bytes += len;
+            readWaitNanos += waitNanos;
+        }
+
+        /**
+         * Record the time spent passing a chunk to the handlers.
+         */
+        void onDispatch(long nanos) {
+            dispatchNanos += nanos;
+        }
+
+        /**
+         * Record lines of output.
+         */
+        void onLines(int count) {
+            lines += count;
+        }
+
+        /**
+         * @return an InputStream that records each chunk read from the given one, and
+         *         the time blocked reading it.  For streams that are copied in bulk
+         *         (e.g. by RawStreamPiper.transferFrom) rather than a chunk at a time.
+         */
+        InputStream meter(InputStream is) {
+            return new FilterInputStream(is) {
+                @Override
+                public int read() throws IOException {
+                    long start = System.nanoTime();
+                    int b = super.read();
+                    if (b >= 0) {
+                        long now = System.nanoTime();
+                        onRead(1, now - start, now);
+                    }
+                    return b;
+                }
+                @Override
+                public int read(byte[] buf, int off, int len) throws IOException {
+                    long start = System.nanoTime();
+                    int n = super.read(buf, off, len);
+                    if (n > 0) {
+                        long now = System.nanoTime();
+                        onRead(n, now - start, now);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        /**
+         * @return a handler that records the chunks passed to the given handler.
+         *         For streams that aren't read by a blocking reader (e.g. ProcessReactor).
+         */
+        StreamHandler meter(final StreamHandler handler) {
+            return new StreamHandler() {
+                public void onData(byte[] buf, int off, int len) throws IOException {
+                    long now = System.nanoTime();
+                    onRead(len, 0, now);
+                    handler.onData(buf, off, len);
+                    onDispatch( System.nanoTime() - now );
+                }
+                public void onEnd() throws IOException {
+                    handler.onEnd();
+                }
+            };
+        }
+
+        /**
+         * @return the number of bytes read.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the number of lines read.  Only counted if the stream is split into
+         *         lines (i.e. it isn't only piped raw).
+         */
+        public long getLines() {
+            return lines;
+        }
+
+        /**
+         * @return System.nanoTime when the first output was read, or -1 if none.
+         */
+        long getFirstOutputNanos() {
+            return firstOutputNanos;
+        }
+
+        /**
+         * @return total time the reader spent blocked, waiting for output.
+         */
+        public long getReadWaitNanos() {
+            return readWaitNanos;
+        }
+
+        /**
+         * @return total time the reader spent passing output to the handlers/listeners.
+         *         The reader isn't draining the pipe meanwhile, so the process may stall
+         *         writing to it.
+         */
+        public long getDispatchNanos() {
+            return dispatchNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "[bytes=" + bytes + ", lines=" + lines
+                    + ", readWaitNanos=" + readWaitNanos + ", dispatchNanos=" + dispatchNanos + "]";
+        }
+    }
+
+    /**
+     * ProcessHandle.Info accessors (java 9+), looked up reflectively since this project
+     * still compiles for java 8.  Null if not available.
+     */
+    private static final Method[] CPU_DURATION_METHODS = findCpuDurationMethods();
+
+    private volatile long startNanos;
+    private volatile long forkNanos = -1;
+    private volatile long exitNanos = -1;
+    private volatile long doneNanos = -1;
+    private volatile long cpuNanos = -1;
+
+    private final StreamMetrics stdout = new StreamMetrics();
+    private final StreamMetrics stderr = new StreamMetrics();
+
+    /**
+     * CTOR.
+     *
+     * @param startNanos the start of the run
+     */
+    ProcessMetrics(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Record the time taken to fork the process.  The run starts when the fork started.
+     */
+    void setFork(long forkStartNanos, long forkEndNanos) {
+        this.startNanos = forkStartNanos;
+        this.forkNanos = forkEndNanos - forkStartNanos;
+    }
+
+    /**
+     * Record when the process exited and the stream readers finished.
+     */
+    void setDone(long exitNanos, long doneNanos) {
+        this.exitNanos = exitNanos;
+        this.doneNanos = doneNanos;
+    }
+
+    /**
+     * Sample the CPU time of the (still running) process via ProcessHandle.Info,
+     * if available.  Best effort: once the process has exited and been reaped,
+     * the OS no longer reports it, so the last successful sample is kept.
+     */
+    void sampleCpuTime(Process process) {
+        if (CPU_DURATION_METHODS == null) {
+            return;
+        }
+        try {
+            Object handle = CPU_DURATION_METHODS[0].invoke(process);
+            Object info = CPU_DURATION_METHODS[1].invoke(handle);
+            Optional<?> cpu = (Optional<?>) CPU_DURATION_METHODS[2].invoke(info);
+            if (cpu.isPresent()) {
+                cpuNanos = Math.max( cpuNanos, ((Duration) cpu.get()).toNanos() );
+            }
+        } catch (Exception e) {
+            // Not available.
+        }
+    }
+
+    /**
+     * @return Process.toHandle, ProcessHandle.info, ProcessHandle.Info.totalCpuDuration;
+     *         or null if this JVM doesn't have them.
+     */
+    private static Method[] findCpuDurationMethods() {
+        try {
+            return new Method[] { Process.class.getMethod("toHandle"),
+                                  Class.forName("java.lang.ProcessHandle").getMethod("info"),
+                                  Class.forName("java.lang.ProcessHandle$Info").getMethod("totalCpuDuration") };
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the metrics for the given stream.
+     */
+    public StreamMetrics getStreamMetrics(ProcessHelper.Stream stream) {
+        return (stream == ProcessHelper.Stream.STDOUT) ? stdout : stderr;
+    }
+
+    /**
+     * @return the stdout metrics.
+     */
+    public StreamMetrics getStdout() {
+        return stdout;
+    }
+
+    /**
+     * @return the stderr metrics.
+     */
+    public StreamMetrics getStderr() {
+        return stderr;
+    }
+
+    /**
+     * @return time taken to fork the process, or -1 if the process wasn't started by ProcessHelper.start.
+     */
+    public long getForkNanos() {
+        return forkNanos;
+    }
+
+    /**
+     * @return time until the first output (on either stream) was read, or -1 if none.
+     */
+    public long getTimeToFirstOutputNanos() {
+        long first = stdout.getFirstOutputNanos();
+        long errFirst = stderr.getFirstOutputNanos();
+        if (first < 0 || (errFirst >= 0 && errFirst < first)) {
+            first = errFirst;
+        }
+        return (first < 0) ? -1 : first - startNanos;
+    }
+
+    /**
+     * @return time until the process exit was detected, or -1 if not yet known.
+     */
+    public long getWallNanos() {
+        return (exitNanos < 0) ? -1 : exitNanos - startNanos;
+    }
+
+    /**
+     * @return time until the process exited and the stream readers finished, or -1 if not yet known.
+     */
+    public long getTotalNanos() {
+        return (doneNanos < 0) ? -1 : doneNanos - startNanos;
+    }
+
+    /**
+     * @return CPU time (user + system) of the process, or -1 if not available.
+     *         Best effort (see sampleCpuTime), and requires java 9+.
+     */
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ProcessMetrics[forkNanos=" + forkNanos
+                + ", timeToFirstOutputNanos=" + getTimeToFirstOutputNanos()
+                + ", wallNanos=" + getWallNanos()
+                + ", totalNanos=" + getTotalNanos()
+                + ", cpuNanos=" + cpuNanos
+                + ", stdout=" + stdout
+                + ", stderr=" + stderr + "]";
+    }
+}
@@ -0,0 +1,133 @@
+package com.rga78.utils.proc;
+
+/**
+ * Aggregates ProcessMetrics across many processes, as histograms (in nanos or bytes).
+ *
+ * Usage:
+ *      new ProcessHelper(process).recordMetricsTo( ProcessMetricsRegistry.getDefault() ).waitFor();
+ *      ...
+ *      System.out.println( ProcessMetricsRegistry.getDefault() );
+ *
+ * Thread-safe.
+ */
+public class ProcessMetricsRegistry {
+
+    /**
+     * JVM-wide registry.
+     */
+    private static final ProcessMetricsRegistry DEFAULT = new ProcessMetricsRegistry();
+
+    private final Histogram forkNanos = new Histogram();
+    private final Histogram timeToFirstOutputNanos = new Histogram();
+    private final Histogram wallNanos = new Histogram();
+    private final Histogram cpuNanos = new Histogram();
+    private final Histogram stdoutBytes = new Histogram();
+    private final Histogram stderrBytes = new Histogram();
+    private final Histogram readWaitNanos = new Histogram();
+    private final Histogram dispatchNanos = new Histogram();
+
+    /**
+     * @return the JVM-wide registry.
+     */
+    public static ProcessMetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Add the metrics of a finished process to the histograms.  Values that weren't
+     * measured (-1) are skipped.
+     */
+    public void record(ProcessMetrics metrics) {
+        forkNanos.record( metrics.getForkNanos() );
+        timeToFirstOutputNanos.record( metrics.getTimeToFirstOutputNanos() );
+        wallNanos.record( metrics.getWallNanos() );
+        cpuNanos.record( metrics.getCpuNanos() );
+        stdoutBytes.record( metrics.getStdout().getBytes() );
+        stderrBytes.record( metrics.getStderr().getBytes() );
+        readWaitNanos.record( metrics.getStdout().getReadWaitNanos() + metrics.getStderr().getReadWaitNanos() );
+        dispatchNanos.record( metrics.getStdout().getDispatchNanos() + metrics.getStderr().getDispatchNanos() );
+    }
+
+    /**
+     * @return fork latency (processes started by ProcessHelper.start only).
+     */
+    public Histogram getForkNanos() {
+        return forkNanos;
+    }
+
+    /**
+     * @return time to first output (processes that wrote any output only).
+     */
+    public Histogram getTimeToFirstOutputNanos() {
+        return timeToFirstOutputNanos;
+    }
+
+    /**
+     * @return wall time, until the process exited.
+     */
+    public Histogram getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     * @return CPU time (java 9+ only; see ProcessMetrics.getCpuNanos).
+     */
+    public Histogram getCpuNanos() {
+        return cpuNanos;
+    }
+
+    /**
+     * @return bytes of stdout per process.
+     */
+    public Histogram getStdoutBytes() {
+        return stdoutBytes;
+    }
+
+    /**
+     * @return bytes of stderr per process.
+     */
+    public Histogram getStderrBytes() {
+        return stderrBytes;
+    }
+
+    /**
+     * @return time the stream readers spent blocked waiting for output, per process.
+     */
+    public Histogram getReadWaitNanos() {
+        return readWaitNanos;
+    }
+
+    /**
+     * @return time the stream readers spent in handlers/listeners (during which the
+     *         process may stall on a full pipe), per process.
+     */
+    public Histogram getDispatchNanos() {
+        return dispatchNanos;
+    }
+
+    /**
+     * Reset all histograms.
+     */
+    public void reset() {
+        forkNanos.reset();
+        timeToFirstOutputNanos.reset();
+        wallNanos.reset();
+        cpuNanos.reset();
+        stdoutBytes.reset();
+        stderrBytes.reset();
+        readWaitNanos.reset();
+        dispatchNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "ProcessMetricsRegistry[forkNanos=" + forkNanos
+                + ", timeToFirstOutputNanos=" + timeToFirstOutputNanos
+                + ", wallNanos=" + wallNanos
+                + ", cpuNanos=" + cpuNanos
+                + ", stdoutBytes=" + stdoutBytes
+                + ", stderrBytes=" + stderrBytes
+                + ", readWaitNanos=" + readWaitNanos
+                + ", dispatchNanos=" + dispatchNanos + "]";
+    }
+}
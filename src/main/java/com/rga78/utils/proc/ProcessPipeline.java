@@ -0,0 +1,322 @@
+package com.rga78.utils.proc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+/**
+ * Runs a pipeline of processes, like "a | b | c" in the shell: the stdout of each
+ * stage is connected to the stdin of the next, without buffering the output in memory.
+ *
+ * Where available (Java 9+), the stages are started with ProcessBuilder.startPipeline,
+ * which connects them with OS pipes.  Otherwise each stage's stdout is copied to the
+ * next stage's stdin as it arrives, by that stage's stdout reader.
+ *
+ * Each stage is wrapped in a ProcessHelper, so the tail of each stage's stderr is
+ * captured (and the tail of the last stage's stdout).
+ *
+ * Usage:
+ *      List<ProcessResult> results = new ProcessPipeline( new ProcessBuilder("sort", "file.txt"),
+ *                                                         new ProcessBuilder("uniq", "-c") )
+ *                                          .start()
+ *                                          .waitFor();
+ *      List<String> stdout = results.get(results.size() - 1).getStdout();
+ *
+ * Note: the first stage's stdin (see getStdin) should be closed when the caller is done
+ * writing to it, unless its ProcessBuilder redirects it.
+ */
+public class ProcessPipeline {
+
+    /**
+     * The stages.
+     */
+    private final List<ProcessBuilder> processBuilders;
+
+    /**
+     * The ProcessHelpers for the started stages.
+     */
+    private final List<ProcessHelper<?>> stages = new ArrayList<ProcessHelper<?>>();
+
+    /**
+     * For reading each stage's stdout/stderr.
+     */
+    private ExecutorService executorService = ReaderExecutors.shared();
+
+    /**
+     * Use ProcessBuilder.startPipeline, if available.
+     */
+    private boolean useNativePipeline = true;
+
+    /**
+     * Aggregated result.
+     */
+    private CompletableFuture<List<ProcessResult>> result;
+
+    /**
+     * CTOR.
+     */
+    public ProcessPipeline(ProcessBuilder... processBuilders) {
+        this( Arrays.asList(processBuilders) );
+    }
+
+    /**
+     * CTOR.
+     */
+    public ProcessPipeline(List<ProcessBuilder> processBuilders) {
+        if (processBuilders.isEmpty()) {
+            throw new IllegalArgumentException("A pipeline needs at least one stage");
+        }
+        this.processBuilders = new ArrayList<ProcessBuilder>(processBuilders);
+    }
+
+    /**
+     * Set the ExecutorService for reading each stage's stdout/stderr.  Default is
+     * ReaderExecutors.shared().  Note: each stage needs two threads.
+     *
+     * @return this
+     */
+    public ProcessPipeline setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+        return this;
+    }
+
+    /**
+     * Set whether to start the stages with ProcessBuilder.startPipeline when it's
+     * available (Java 9+).  Default is true.  If false, or if startPipeline is not
+     * available, each stage's stdout is copied to the next stage's stdin.
+     *
+     * @return this
+     */
+    public ProcessPipeline setUseNativePipeline(boolean useNativePipeline) {
+        this.useNativePipeline = useNativePipeline;
+        return this;
+    }
+
+    /**
+     * Start the stages and their stream readers.
+     *
+     * @return this
+     */
+    public synchronized ProcessPipeline start() throws IOException {
+        if (!stages.isEmpty()) {
+            throw new IllegalStateException("The pipeline was already started");
+        }
+
+        List<Process> processes = (useNativePipeline && NativePipeline.isSupported())
+                                    ? NativePipeline.start(processBuilders)
+                                    : startEach(processBuilders);
+
+        for (int i = 0; i < processes.size(); ++i) {
+            ProcessHelper<?> stage = new ProcessHelper( processes.get(i), executorService )
+                                            .setDescription("Pipeline stage " + i + ": " + processBuilders.get(i).command());
+            stages.add(stage);
+        }
+
+        if (!(useNativePipeline && NativePipeline.isSupported())) {
+            for (int i = 0; i < stages.size() - 1; ++i) {
+                stages.get(i).addStreamHandler( ProcessHelper.Stream.STDOUT,
+                                                new StagePipe( processes.get(i + 1).getOutputStream() ) );
+            }
+        }
+
+        for (ProcessHelper<?> stage : stages) {
+            stage.spawnStreamReaders();
+        }
+
+        return this;
+    }
+
+    /**
+     * Start each stage separately.  If a stage fails to start, the stages already
+     * started are destroyed.
+     *
+     * @return the processes.
+     */
+    private List<Process> startEach(List<ProcessBuilder> processBuilders) throws IOException {
+        List<Process> retMe = new ArrayList<Process>();
+        try {
+            for (ProcessBuilder processBuilder : processBuilders) {
+                retMe.add( processBuilder.start() );
+            }
+        } catch (IOException ioe) {
+            for (Process process : retMe) {
+                process.destroyForcibly();
+            }
+            throw ioe;
+        }
+        return retMe;
+    }
+
+    /**
+     * @return the stages, in pipeline order.
+     */
+    public List<ProcessHelper<?>> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * @return the stdin of the first stage.
+     */
+    public OutputStream getStdin() {
+        checkStarted();
+        return stages.get(0).getProcess().getOutputStream();
+    }
+
+    /**
+     * @return a future that completes when every stage has exited and all output is read.
+     *         The results are in pipeline order.
+     */
+    public synchronized CompletableFuture<List<ProcessResult>> onExit() {
+        checkStarted();
+
+        if (result != null) {
+            return result;
+        }
+
+        final List<CompletableFuture<ProcessResult>> futures = new ArrayList<CompletableFuture<ProcessResult>>();
+        for (ProcessHelper<?> stage : stages) {
+            futures.add( stage.onExit() );
+        }
+
+        result = CompletableFuture.allOf( futures.toArray(new CompletableFuture[futures.size()]) )
+                                  .thenApply( new Function<Void, List<ProcessResult>>() {
+            public List<ProcessResult> apply(Void v) {
+                List<ProcessResult> retMe = new ArrayList<ProcessResult>();
+                for (CompletableFuture<ProcessResult> future : futures) {
+                    retMe.add( future.join() );
+                }
+                return retMe;
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Wait for every stage to exit.
+     *
+     * @return the results, in pipeline order.
+     *
+     * @throws PipelineException if any stage exited with a non-zero exit value.
+     */
+    public List<ProcessResult> waitFor() throws InterruptedException, ExecutionException, PipelineException {
+        List<ProcessResult> results = onExit().get();
+        for (ProcessResult processResult : results) {
+            if (processResult.getExitValue() != 0) {
+                throw new PipelineException(results);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Destroy all stages.
+     *
+     * @return this
+     */
+    public ProcessPipeline destroy() {
+        for (ProcessHelper<?> stage : stages) {
+            stage.getProcess().destroy();
+        }
+        return this;
+    }
+
+    /**
+     * @throws IllegalStateException if the pipeline hasn't been started.
+     */
+    private void checkStarted() {
+        if (stages.isEmpty()) {
+            throw new IllegalStateException("The pipeline hasn't been started");
+        }
+    }
+
+    /**
+     * Copies a stage's stdout to the next stage's stdin, closing it at end-of-stream
+     * so the next stage sees EOF.
+     *
+     * If the next stage stops reading (e.g. "head"), the rest of the output is discarded
+     * rather than failing the reader, so this stage isn't left blocked on a full pipe.
+     */
+    private static class StagePipe implements StreamHandler {
+
+        private final OutputStream next;
+
+        private boolean broken = false;
+
+        StagePipe(OutputStream next) {
+            this.next = next;
+        }
+
+        @Override
+        public void onData(byte[] buf, int off, int len) {
+            if (broken) {
+                return;
+            }
+            try {
+                next.write(buf, off, len);
+                next.flush();
+            } catch (IOException ioe) {
+                broken = true;
+                closeQuietly();
+            }
+        }
+
+        @Override
+        public void onEnd() {
+            closeQuietly();
+        }
+
+        private void closeQuietly() {
+            try {
+                next.close();
+            } catch (IOException ioe) {
+                // The next stage is gone.
+            }
+        }
+    }
+
+    /**
+     * Reflective access to ProcessBuilder.startPipeline (Java 9+).
+     */
+    private static class NativePipeline {
+
+        private static final Method startPipeline = findStartPipeline();
+
+        private static Method findStartPipeline() {
+            try {
+                return ProcessBuilder.class.getMethod("startPipeline", List.class);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        static boolean isSupported() {
+            return startPipeline != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        static List<Process> start(List<ProcessBuilder> processBuilders) throws IOException {
+            try {
+                return (List<Process>) startPipeline.invoke(null, processBuilders);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,560 @@
+package com.rga78.utils.proc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * A pool of long-lived ("warm") worker processes, all started from the same
+ * ProcessBuilder.  Requests are written to a worker's stdin and the response
+ * is read from its stdout, using the given Framing (e.g. one line per request/response).
+ * This amortizes the cost of forking the worker over many short requests.
+ *
+ * Each worker process is driven by its own (daemon) thread and handles one request
+ * at a time.  Requests wait in a bounded queue; when the queue is full, submit()
+ * blocks (backpressure) and trySubmit() gives up.
+ *
+ * If a worker process dies (or sends a malformed response), the request it was handling
+ * fails with a ProcessException and the process is restarted for the next request.  A worker's stderr is drained
+ * into a TailBuffer, which is included in that exception.
+ *
+ * If a request timeout is set (see setRequestTimeout), a request that isn't answered
+ * in time fails with a TimeoutException, and its (presumably wedged) worker process
+ * is killed and restarted.
+ *
+ * Usage:
+ *      ProcessPool pool = new ProcessPool( new ProcessBuilder("my-helper", "--serve"), 4, 100, ProcessPool.LINES );
+ *      String response = pool.submit("some request").get();
+ *      ...
+ *      pool.close();
+ */
+public class ProcessPool {
+
+    /**
+     * Frames requests and responses on a worker's stdin/stdout.
+     */
+    public interface Framing {
+
+        /**
+         * Write the request to the worker's stdin (no need to flush).
+         */
+        void writeRequest(OutputStream os, byte[] request) throws IOException;
+
+        /**
+         * @return the next response read from the worker's stdout, or null at end-of-stream.
+         */
+        byte[] readResponse(InputStream is) throws IOException;
+    }
+
+    /**
+     * Line-delimited framing: each request is written followed by '\n', and each
+     * response is the next line of output ('\n' or "\r\n" terminated).
+     * Requests must not contain line terminators.
+     */
+    public static final Framing LINES = new Framing() {
+
+        public void writeRequest(OutputStream os, byte[] request) throws IOException {
+            os.write(request);
+            os.write('\n');
+        }
+
+        public byte[] readResponse(InputStream is) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = is.read()) != '\n') {
+                if (b < 0) {
+                    return (line.size() > 0) ? line.toByteArray() : null;
+                }
+                line.write(b);
+            }
+            byte[] retMe = line.toByteArray();
+            return (retMe.length > 0 && retMe[retMe.length - 1] == '\r')
+                    ? Arrays.copyOf(retMe, retMe.length - 1)
+                    : retMe;
+        }
+    };
+
+    /**
+     * Length-prefixed framing: each request/response is a 4-byte big-endian length, followed by that many bytes.
+     * Responses larger than 64MB are rejected.  See lengthPrefixed(int).
+     */
+    public static final Framing LENGTH_PREFIXED = lengthPrefixed(64 * 1024 * 1024);
+
+    /**
+     * Length-prefixed framing (see LENGTH_PREFIXED), with the given max response length.
+     * A response with a negative or larger length fails the request with an IOException 
+     * (before anything is allocated for it), and the worker is restarted.
+     *
+     * @param maxLength max response length, in bytes
+     *
+     * @return the framing
+     */
+    public static Framing lengthPrefixed(final int maxLength) {
+        return new Framing() {
+
+            public void writeRequest(OutputStream os, byte[] request) throws IOException {
+                DataOutputStream dos = new DataOutputStream(os);
+                dos.writeInt(request.length);
+                dos.write(request);
+            }
+
+            public byte[] readResponse(InputStream is) throws IOException {
+                DataInputStream dis = new DataInputStream(is);
+                int len;
+                try {
+                    len = dis.readInt();
+                } catch (EOFException eof) {
+                    return null;
+                }
+                if (len < 0 || len > maxLength) {
+                    throw new IOException("Invalid response length " + len + " (max " + maxLength + ")");
+                }
+                byte[] retMe = new byte[len];
+                dis.readFully(retMe);
+                return retMe;
+            }
+        };
+    }
+
+    /**
+     * Lazy holder for the timer that enforces request timeouts.
+     */
+    private static class TimerHolder {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor( new ReaderExecutors.DaemonThreadFactory("ProcessPool-timer") );
+    }
+
+    /**
+     * Starts the worker processes.
+     */
+    private final ProcessBuilder processBuilder;
+
+    /**
+     * Frames the requests/responses.
+     */
+    private final Framing framing;
+
+    /**
+     * Requests waiting for a worker.
+     */
+    private final BlockingQueue<Request> pending;
+
+    /**
+     * The worker threads.
+     */
+    private final Worker[] workers;
+
+    /**
+     * For String requests/responses.
+     */
+    private volatile Charset charset = Charset.defaultCharset();
+
+    /**
+     * Max time for a worker to respond to a request.  0 means no limit.
+     */
+    private volatile long requestTimeoutNanos = 0;
+
+    /**
+     * Max time, on close, for a worker process to exit after its stdin is closed
+     * (and again after it's destroyed).
+     */
+    private volatile long gracePeriodNanos = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * Set by close().
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * CTOR.  Starts the worker processes.
+     *
+     * @param processBuilder starts each worker process
+     * @param size number of worker processes
+     * @param queueCapacity max number of requests waiting for a worker
+     * @param framing frames the requests/responses
+     */
+    public ProcessPool(ProcessBuilder processBuilder, int size, int queueCapacity, Framing framing) {
+        if (size < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("size and queueCapacity must be >= 1");
+        }
+
+        this.processBuilder = processBuilder;
+        this.framing = framing;
+        this.pending = new ArrayBlockingQueue<Request>(queueCapacity);
+
+        ReaderExecutors.DaemonThreadFactory threadFactory = new ReaderExecutors.DaemonThreadFactory("ProcessPool-worker");
+        workers = new Worker[size];
+        for (int i = 0; i < size; ++i) {
+            workers[i] = new Worker();
+            workers[i].thread = threadFactory.newThread(workers[i]);
+            workers[i].thread.start();
+        }
+    }
+
+    /**
+     * Set the charset for String requests/responses.  Default is the platform default charset.
+     *
+     * @return this
+     */
+    public ProcessPool setCharset(Charset charset) {
+        this.charset = charset;
+        return this;
+    }
+
+    /**
+     * Set the max time for a worker to respond to a request, measured from when the 
+     * worker picks it up.  If the time elapses, the request fails with a TimeoutException
+     * and the worker process is killed (it's restarted for the next request).
+     * Default is no limit.
+     *
+     * @return this
+     */
+    public ProcessPool setRequestTimeout(long timeout, TimeUnit unit) {
+        this.requestTimeoutNanos = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * Set the max time, on close, for each worker process to exit on its own after
+     * its stdin is closed, before it's destroyed.  Default is 5 seconds.
+     *
+     * @return this
+     */
+    public ProcessPool setShutdownGracePeriod(long gracePeriod, TimeUnit unit) {
+        this.gracePeriodNanos = unit.toNanos(gracePeriod);
+        return this;
+    }
+
+    /**
+     * Submit a request, blocking while the request queue is full.
+     *
+     * @return a future for the response.
+     */
+    public CompletableFuture<byte[]> submit(byte[] request) throws InterruptedException {
+        Request r = new Request(request);
+        checkNotClosed();
+        pending.put(r);
+        failIfClosed(r);
+        return r.future;
+    }
+
+    /**
+     * Submit a request, waiting at most the given time for room in the request queue.
+     *
+     * @return a future for the response, or null if the queue stayed full.
+     */
+    public CompletableFuture<byte[]> trySubmit(byte[] request, long timeout, TimeUnit unit) throws InterruptedException {
+        Request r = new Request(request);
+        checkNotClosed();
+        if (!pending.offer(r, timeout, unit)) {
+            return null;
+        }
+        failIfClosed(r);
+        return r.future;
+    }
+
+    /**
+     * Submit a String request (encoded with the pool's charset), blocking while the request queue is full.
+     *
+     * @return a future for the response, decoded with the pool's charset.
+     */
+    public CompletableFuture<String> submit(String request) throws InterruptedException {
+        final Charset cs = charset;
+        return submit( request.getBytes(cs) ).thenApply( new Function<byte[], String>() {
+            public String apply(byte[] response) {
+                return new String(response, cs);
+            }
+        });
+    }
+
+    /**
+     * @return the number of requests waiting for a worker.
+     */
+    public int getQueueSize() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of worker processes.
+     */
+    public int getSize() {
+        return workers.length;
+    }
+
+    /**
+     * Stop the workers.  Waiting requests are cancelled; requests already being handled
+     * are allowed to finish (see setRequestTimeout).  Each worker process's stdin is then 
+     * closed, and the process is given the grace period to exit on its own before it's 
+     * destroyed (see setShutdownGracePeriod).  Returns without waiting for the workers.
+     */
+    public void close() {
+        closed = true;
+
+        for (Worker worker : workers) {
+            worker.thread.interrupt();
+        }
+
+        Request r;
+        while ((r = pending.poll()) != null) {
+            r.future.completeExceptionally( new CancellationException("ProcessPool closed") );
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if the pool is closed.
+     */
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("ProcessPool closed");
+        }
+    }
+
+    /**
+     * Handles the race with close(): if the pool was closed while the request was being
+     * queued, make sure the request doesn't sit in the queue forever.
+     */
+    private void failIfClosed(Request r) {
+        if (closed && pending.remove(r)) {
+            r.future.completeExceptionally( new CancellationException("ProcessPool closed") );
+        }
+    }
+
+    /**
+     * A queued request.
+     */
+    private static class Request {
+
+        final byte[] payload;
+
+        final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+
+        /**
+         * Set if the request timed out (see setRequestTimeout).
+         */
+        volatile boolean timedOut = false;
+
+        Request(byte[] payload) {
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Drives a single worker process.
+     */
+    private class Worker implements Runnable {
+
+        Thread thread;
+
+        private Process process;
+        private OutputStream stdin;
+        private InputStream stdout;
+        private TailBuffer stderr;
+        private CompletableFuture<Void> stderrReader;
+
+        @Override
+        public void run() {
+            try {
+                // Warm up.  If the process can't be started now, it's retried on the first request.
+                startProcess();
+            } catch (Exception e) {
+                process = null;
+            }
+
+            try {
+                while (!closed) {
+                    Request r = pending.take();
+                    if (!r.future.isDone()) {
+                        handle(r);
+                    }
+                }
+            } catch (InterruptedException ie) {
+                // closed.
+            } finally {
+                stopProcess(gracePeriodNanos);
+            }
+        }
+
+        /**
+         * Send the request to the worker process and read the response.
+         *
+         * Any failure (not just an IOException, e.g. a RuntimeException or OutOfMemoryError 
+         * from a Framing that was handed garbage) fails the request and restarts the process,
+         * so the worker thread survives and the caller isn't left waiting forever.
+         */
+        private void handle(Request r) {
+            ScheduledFuture<?> timer = null;
+            try {
+                if (process == null) {
+                    startProcess();
+                }
+                timer = startTimer(r);
+
+                framing.writeRequest(stdin, r.payload);
+                stdin.flush();
+
+                byte[] response = framing.readResponse(stdout);
+                if (response == null) {
+                    throw new EOFException("The worker process closed its stdout");
+                }
+                if (!r.future.complete(response) && r.timedOut) {
+                    // Answered just as it timed out.  The process is being killed.
+                    stopProcess(0);
+                }
+
+            } catch (Throwable t) {
+                r.future.completeExceptionally( processFailed(t) );
+            } finally {
+                if (timer != null) {
+                    timer.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * If there's a request timeout, schedule a task that fails the request with a
+         * TimeoutException and kills the worker process (so the blocked read fails too)
+         * if the request isn't answered in time.
+         *
+         * @return the scheduled task, or null if there's no request timeout.
+         */
+        private ScheduledFuture<?> startTimer(final Request r) {
+            final long timeoutNanos = requestTimeoutNanos;
+            if (timeoutNanos <= 0) {
+                return null;
+            }
+            final Process p = process;
+            return TimerHolder.INSTANCE.schedule( new Runnable() {
+                public void run() {
+                    r.timedOut = true;
+                    TimeoutException te = new TimeoutException("No response from ProcessPool worker " + processBuilder.command() 
+                                                               + " within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+                    if (r.future.completeExceptionally(te)) {
+                        p.destroyForcibly();
+                    }
+                }
+            }, timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Stop the failed worker process.  It's restarted on the next request.
+         *
+         * @return a ProcessException describing the failed process, with the given cause.
+         */
+        private Throwable processFailed(Throwable cause) {
+            if (process == null) {
+                return cause;   // it never started.
+            }
+
+            Process failed = process;
+            stopProcess(0);
+
+            // Give the stderr reader a moment to catch up.
+            try {
+                stderrReader.get(1, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                // go with what we have.
+            }
+
+            ProcessException retMe;
+            synchronized (stderr) {
+                retMe = new ProcessException( failed,
+                                              "ProcessPool worker " + processBuilder.command(),
+                                              Collections.<String>emptyList(),
+                                              new ArrayList<String>(stderr) );
+            }
+            retMe.initCause(cause);
+            return retMe;
+        }
+
+        /**
+         * Start the worker process, and drain its stderr into a TailBuffer.
+         */
+        private void startProcess() throws IOException {
+            process = processBuilder.start();
+            stdin = new BufferedOutputStream( process.getOutputStream() );
+            stdout = new BufferedInputStream( process.getInputStream() );
+            stderr = new TailBuffer(100);
+
+            final InputStream errorStream = process.getErrorStream();
+            final TailBuffer tail = stderr;
+            final Charset cs = charset;
+            stderrReader = CompletableFuture.runAsync( new Runnable() {
+                public void run() {
+                    LineSplitter lineSplitter = new LineSplitter( new LineSplitter.LineHandler() {
+                        public void onLine(byte[] buf, int off, int len) {
+                            synchronized (tail) {
+                                tail.add( new String(buf, off, len, cs), len );
+                            }
+                        }
+                    });
+                    byte[] buf = new byte[4096];
+                    int len;
+                    try {
+                        while ((len = errorStream.read(buf)) >= 0) {
+                            lineSplitter.write(buf, 0, len);
+                        }
+                        lineSplitter.flush();
+                    } catch (IOException ioe) {
+                        // The process is gone.
+                    }
+                }
+            }, ReaderExecutors.shared());
+        }
+
+        /**
+         * Close stdin and give the process the given time to exit on its own, then 
+         * destroy it, escalating to destroyForcibly if it doesn't exit within the grace period.
+         *
+         * Note: the worker may have been interrupted by close().  The interrupt is
+         * set aside while waiting, so it doesn't cut the waits short.
+         *
+         * @param exitNanos max time to wait for the process to exit on its own.
+         */
+        private void stopProcess(long exitNanos) {
+            if (process == null) {
+                return;
+            }
+            boolean interrupted = Thread.interrupted();
+            try {
+                stdin.close();
+            } catch (IOException ioe) {
+                // ignore
+            }
+            try {
+                if (!process.waitFor(exitNanos, TimeUnit.NANOSECONDS)) {
+                    process.destroy();
+                    if (!process.waitFor(gracePeriodNanos, TimeUnit.NANOSECONDS)) {
+                        process.destroyForcibly().waitFor(gracePeriodNanos, TimeUnit.NANOSECONDS);
+                    }
+                }
+            } catch (InterruptedException ie) {
+                process.destroyForcibly();
+                interrupted = true;
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            process = null;
+        }
+    }
+}
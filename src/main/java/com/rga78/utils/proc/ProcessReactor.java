@@ -0,0 +1,373 @@
+package com.rga78.utils.proc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drains the stdout/stderr streams of many processes from a small, fixed number
+ * of poller threads, rather than one blocked reader thread per stream.
+ *
+ * Java doesn't expose process pipes as selectable channels, so each poller thread
+ * makes non-blocking passes over its registered streams, reading only what
+ * InputStream.available() says can be read without blocking.  When a pass makes
+ * no progress the poller backs off (up to maxIdleMillis) before the next pass.
+ *
+ * available() can't distinguish between an empty pipe and end-of-stream, so:
+ *  - once a process has exited, the remainder of its stream is drained by blocking
+ *    reads on the fallback executor.
+ *  - optionally (see setProbeAfter), a stream that's been idle for a while is handed
+ *    to the fallback executor for a single blocking read.  That detects end-of-stream
+ *    while the process is still alive (e.g. it closed its stdout).  If the read returns
+ *    data, the stream goes back to a poller.  Off by default, since each quiet stream
+ *    then ties up a fallback thread.
+ * The fallback is also used for any streams still registered when the reactor is closed.
+ *
+ * A poller with no registered streams parks until one is registered.
+ *
+ * Handlers are called on the poller threads, so they must not block.  A slow
+ * handler delays every other stream on the same poller.
+ *
+ * Usage:
+ *      ProcessReactor reactor = new ProcessReactor();   // share across processes
+ *      new ProcessHelper(process).setReactor(reactor).waitFor();
+ */
+public class ProcessReactor {
+
+    /**
+     * Read buffer size, per poller thread.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The poller threads.
+     */
+    private final Poller[] pollers;
+
+    /**
+     * For round-robin assignment of streams to pollers.
+     */
+    private final AtomicInteger nextPoller = new AtomicInteger();
+
+    /**
+     * For blocking reads at end-of-process (and after close).
+     */
+    private final ExecutorService fallbackExecutor;
+
+    /**
+     * Max time a poller sleeps between passes when there's nothing to read.
+     */
+    private final long maxIdleNanos;
+
+    /**
+     * Idle time after which a stream is probed with a blocking read on the fallback executor.
+     * 0 means never.
+     */
+    private volatile long probeAfterNanos = 0;
+
+    /**
+     * Set by close().
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * CTOR. Uses a single poller thread and the ReaderExecutors.shared() pool as the fallback.
+     */
+    public ProcessReactor() {
+        this(1, 10, ReaderExecutors.shared());
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param pollerCount - number of poller threads
+     * @param maxIdleMillis - max time a poller sleeps between passes when there's nothing to read
+     * @param fallbackExecutor - for draining streams with blocking reads after the process exits.
+     */
+    public ProcessReactor(int pollerCount, long maxIdleMillis, ExecutorService fallbackExecutor) {
+        if (pollerCount < 1) {
+            throw new IllegalArgumentException("pollerCount must be >= 1");
+        }
+
+        this.maxIdleNanos = TimeUnit.MILLISECONDS.toNanos( Math.max(1, maxIdleMillis) );
+        this.fallbackExecutor = fallbackExecutor;
+
+        ReaderExecutors.DaemonThreadFactory threadFactory = new ReaderExecutors.DaemonThreadFactory("ProcessReactor-poller");
+        pollers = new Poller[pollerCount];
+        for (int i = 0; i < pollerCount; ++i) {
+            pollers[i] = new Poller();
+            threadFactory.newThread(pollers[i]).start();
+        }
+    }
+
+    /**
+     * Register a stream to be drained by this reactor.
+     *
+     * @param process the process that owns the stream
+     * @param inputStream the process's stdout or stderr
+     * @param handler receives the data
+     *
+     * @return a future that completes after handler.onEnd() has been called.
+     *         If reading the stream or calling the handler fails, the future completes exceptionally.
+     */
+    public CompletableFuture<Void> register(Process process, InputStream inputStream, StreamHandler handler) {
+        Registration registration = new Registration(process, inputStream, handler);
+        addToPoller(registration);
+        return registration.future;
+    }
+
+    /**
+     * Hand the registration to the next poller (or to the fallback executor, if closed).
+     */
+    private void addToPoller(Registration registration) {
+        if (closed) {
+            registration.drainOnFallback();
+        } else {
+            pollers[ Math.abs( nextPoller.getAndIncrement() % pollers.length ) ].add(registration);
+        }
+    }
+
+    /**
+     * Set how long a stream may go without data before it's probed with a blocking
+     * read on the fallback executor (which detects end-of-stream while the process is
+     * still alive).  While a probe is blocked it ties up a fallback thread, so only
+     * enable it if processes are expected to close their output well before exiting.
+     *
+     * By default streams aren't probed: end-of-stream is detected once the process exits.
+     *
+     * @param time the idle time; 0 to disable probing
+     *
+     * @return this
+     */
+    public ProcessReactor setProbeAfter(long time, TimeUnit unit) {
+        this.probeAfterNanos = unit.toNanos(time);
+        return this;
+    }
+
+    /**
+     * Stop the poller threads.  Streams that are still registered are handed off
+     * to the fallback executor.
+     */
+    public void close() {
+        closed = true;
+        for (Poller poller : pollers) {
+            LockSupport.unpark(poller.thread);
+        }
+    }
+
+    /**
+     * A registered stream.
+     */
+    private class Registration {
+
+        /**
+         * Results of poll.
+         */
+        static final int IDLE = 0;
+        static final int PROGRESS = 1;
+        static final int HANDED_OFF = 2;
+
+        private final Process process;
+        private final InputStream inputStream;
+        private final StreamHandler handler;
+        private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        /**
+         * Set while the stream is handed off to the fallback executor.
+         */
+        private volatile boolean onFallback = false;
+
+        /**
+         * When data was last read (or the registration was created).
+         */
+        private volatile long lastDataNanos = System.nanoTime();
+
+        /**
+         * CTOR.
+         */
+        Registration(Process process, InputStream inputStream, StreamHandler handler) {
+            this.process = process;
+            this.inputStream = inputStream;
+            this.handler = handler;
+        }
+
+        /**
+         * Read whatever can be read without blocking.
+         *
+         * @return IDLE if nothing was read; PROGRESS if data was read; or HANDED_OFF if the
+         *         stream is done with this poller (ended, failed, or handed to the fallback
+         *         executor), in which case the poller must drop it right away, since the
+         *         fallback may already have handed it to another poller.
+         */
+        int poll(byte[] buf) {
+            try {
+                int avail = inputStream.available();
+                if (avail > 0) {
+                    int len = inputStream.read(buf, 0, Math.min(avail, buf.length));
+                    if (len < 0) {
+                        end();
+                        return HANDED_OFF;
+                    }
+                    handler.onData(buf, 0, len);
+                    lastDataNanos = System.nanoTime();
+                    return PROGRESS;
+
+                } else if (!process.isAlive()) {
+                    drainOnFallback();
+                    return HANDED_OFF;
+
+                } else if (probeAfterNanos > 0 && System.nanoTime() - lastDataNanos >= probeAfterNanos) {
+                    probeOnFallback();
+                    return HANDED_OFF;
+                }
+                return IDLE;
+
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+                return HANDED_OFF;
+            }
+        }
+
+        /**
+         * @return true if this registration no longer needs polling (see close).
+         */
+        boolean isDone() {
+            return future.isDone() || onFallback;
+        }
+
+        /**
+         * Drain the rest of the stream with blocking reads on the fallback executor.
+         */
+        void drainOnFallback() {
+            onFallback = true;
+            fallbackExecutor.execute( new Runnable() {
+                public void run() {
+                    try {
+                        byte[] buf = new byte[BUFFER_SIZE];
+                        int len;
+                        while ((len = inputStream.read(buf)) >= 0) {
+                            handler.onData(buf, 0, len);
+                        }
+                        end();
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Do a single blocking read on the fallback executor.  At end-of-stream the
+         * registration is done; otherwise it goes back to a poller.
+         */
+        void probeOnFallback() {
+            onFallback = true;
+            fallbackExecutor.execute( new Runnable() {
+                public void run() {
+                    try {
+                        byte[] buf = new byte[BUFFER_SIZE];
+                        int len = inputStream.read(buf);
+                        if (len < 0) {
+                            end();
+                            return;
+                        }
+                        handler.onData(buf, 0, len);
+                        lastDataNanos = System.nanoTime();
+                        onFallback = false;
+                        addToPoller(Registration.this);
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+            });
+        }
+
+        /**
+         * End-of-stream.
+         */
+        private void end() throws IOException {
+            handler.onEnd();
+            future.complete(null);
+        }
+    }
+
+    /**
+     * Polls a subset of the registered streams.
+     */
+    private class Poller implements Runnable {
+
+        /**
+         * Registrations are added by any thread and polled by the poller thread.
+         */
+        private final ConcurrentLinkedQueue<Registration> registrations = new ConcurrentLinkedQueue<Registration>();
+
+        /**
+         * Shared by all the registrations on this poller.
+         */
+        private final byte[] buf = new byte[BUFFER_SIZE];
+
+        private volatile Thread thread;
+
+        /**
+         * Add a registration and wake up the poller.
+         */
+        void add(Registration registration) {
+            registrations.add(registration);
+            LockSupport.unpark(thread);
+
+            // If the reactor was closed concurrently, the poller may already be gone.
+            if (closed && registrations.remove(registration)) {
+                registration.drainOnFallback();
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            long idleNanos = 0;
+
+            while (!closed) {
+                if (registrations.isEmpty()) {
+                    // Nothing to poll.  add() and close() unpark.
+                    LockSupport.park(this);
+                    idleNanos = 0;
+                    continue;
+                }
+
+                boolean progress = false;
+
+                for (Iterator<Registration> iter = registrations.iterator(); iter.hasNext(); ) {
+                    int result = iter.next().poll(buf);
+                    if (result == Registration.HANDED_OFF) {
+                        // Unconditionally: a probe may already have re-added it as a new
+                        // entry (here or on another poller).  This removes just this entry.
+                        iter.remove();
+                    }
+                    progress |= (result != Registration.IDLE);
+                }
+
+                if (progress) {
+                    idleNanos = 0;
+                } else {
+                    // Back off: 100us, 200us, 400us, ... up to maxIdleNanos.
+                    idleNanos = Math.min( Math.max(idleNanos * 2, TimeUnit.MICROSECONDS.toNanos(100)), maxIdleNanos );
+                    LockSupport.parkNanos(this, idleNanos);
+                }
+            }
+
+            // Closed. Hand off whatever's left.
+            Registration registration;
+            while ((registration = registrations.poll()) != null) {
+                if (!registration.isDone()) {
+                    registration.drainOnFallback();
+                }
+            }
+        }
+    }
+}
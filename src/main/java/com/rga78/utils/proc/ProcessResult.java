@@ -0,0 +1,119 @@
+package com.rga78.utils.proc;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of a process run by a ProcessHelper: exit value, the captured
+ * tails of stdout/stderr, and timings.
+ *
+ * Timings are measured with System.nanoTime, from when the ProcessHelper was created.
+ */
+public class ProcessResult {
+
+    private final String description;
+    private final int exitValue;
+    private final List<String> stdout;
+    private final List<String> stderr;
+    private final long startNanos;
+    private final long exitNanos;
+    private final long doneNanos;
+
+    /**
+     * CTOR.
+     *
+     * @param description the process description
+     * @param exitValue the process exit value
+     * @param stdout the tail of stdout
+     * @param stderr the tail of stderr
+     * @param startNanos when the ProcessHelper was created
+     * @param exitNanos when the process exit was detected
+     * @param doneNanos when the process had exited and both stream readers were finished
+     */
+    public ProcessResult(String description,
+                         int exitValue,
+                         List<String> stdout,
+                         List<String> stderr,
+                         long startNanos,
+                         long exitNanos,
+                         long doneNanos) {
+        this.description = description;
+        this.exitValue = exitValue;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.startNanos = startNanos;
+        this.exitNanos = exitNanos;
+        this.doneNanos = doneNanos;
+    }
+
+    /**
+     * @return the process description
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return the process exit value
+     */
+    public int getExitValue() {
+        return exitValue;
+    }
+
+    /**
+     * @return the last lines of stdout
+     */
+    public List<String> getStdout() {
+        return stdout;
+    }
+
+    /**
+     * @return the last lines of stderr
+     */
+    public List<String> getStderr() {
+        return stderr;
+    }
+
+    /**
+     * @return time from start until the process exited, in millis.
+     */
+    public long getRunTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(exitNanos - startNanos);
+    }
+
+    /**
+     * @return time from start until the process exited and the stream readers finished, in millis.
+     */
+    public long getTotalTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(doneNanos - startNanos);
+    }
+
+    /**
+     * @return System.nanoTime when the ProcessHelper was created.
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * @return System.nanoTime when the process exit was detected.
+     */
+    public long getExitNanos() {
+        return exitNanos;
+    }
+
+    /**
+     * @return System.nanoTime when the process had exited and both stream readers were finished.
+     */
+    public long getDoneNanos() {
+        return doneNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ProcessResult[description=" + description
+                + ", exitValue=" + exitValue
+                + ", runTimeMillis=" + getRunTimeMillis()
+                + ", totalTimeMillis=" + getTotalTimeMillis() + "]";
+    }
+}
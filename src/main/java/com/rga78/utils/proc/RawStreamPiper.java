@@ -0,0 +1,159 @@
+package com.rga78.utils.proc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * StreamHandler for ProcessHelper that copies the raw bytes of the output to an
+ * OutputStream or channel, without decoding it into lines.
+ *
+ * When it's the only consumer of a stream, the ProcessHelper hands it the whole
+ * InputStream (see transferFrom), so the bytes skip the line splitting and the
+ * per-chunk dispatch.  Note it's still an ordinary copy through a user-space buffer:
+ * a process's output is a pipe, not a file or socket, so there's no zero-copy path
+ * from it.
+ */
+public class RawStreamPiper implements StreamHandler {
+
+    /**
+     * Copy buffer size.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The target, if it's an OutputStream.
+     */
+    private final OutputStream outputStream;
+
+    /**
+     * The target, if it's a channel.  For the File CTOR, opened on first use.
+     */
+    private WritableByteChannel channel;
+
+    /**
+     * The target, if it's a file that hasn't been opened yet.
+     */
+    private final File file;
+
+    /**
+     * True if the target should be closed at end-of-stream (i.e. we opened it).
+     */
+    private final boolean closeOnEnd;
+
+    /**
+     * CTOR.  The outputStream is flushed, but not closed, at end-of-stream.
+     */
+    public RawStreamPiper(OutputStream outputStream) {
+        this.outputStream = outputStream;
+        this.channel = null;
+        this.file = null;
+        this.closeOnEnd = false;
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param channel the target
+     * @param closeOnEnd whether to close the channel at end-of-stream
+     */
+    public RawStreamPiper(WritableByteChannel channel, boolean closeOnEnd) {
+        this.outputStream = null;
+        this.channel = channel;
+        this.file = null;
+        this.closeOnEnd = closeOnEnd;
+    }
+
+    /**
+     * CTOR.  The file isn't opened until the stream is read, so nothing is leaked
+     * if the process is never started.  It's created (or truncated) then, and
+     * closed at end-of-stream.
+     */
+    public RawStreamPiper(File file) {
+        this.outputStream = null;
+        this.channel = null;
+        this.file = file;
+        this.closeOnEnd = true;
+    }
+
+    /**
+     * @return the target channel, opening the file if necessary.
+     */
+    private WritableByteChannel getChannel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open( file.toPath(),
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.TRUNCATE_EXISTING,
+                                        StandardOpenOption.WRITE );
+        }
+        return channel;
+    }
+
+    /**
+     * Write the chunk to the target.
+     */
+    @Override
+    public void onData(byte[] buf, int off, int len) throws IOException {
+        if (outputStream != null) {
+            outputStream.write(buf, off, len);
+        } else {
+            WritableByteChannel target = getChannel();
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buf, off, len);
+            while (byteBuffer.hasRemaining()) {
+                target.write(byteBuffer);
+            }
+        }
+    }
+
+    /**
+     * Flush (or close) the target.  A file is created even if there was no output.
+     */
+    @Override
+    public void onEnd() throws IOException {
+        if (outputStream != null) {
+            outputStream.flush();
+        } else if (closeOnEnd) {
+            getChannel().close();
+        }
+    }
+
+    /**
+     * Copy the entire InputStream to the target, then call onEnd.
+     *
+     * If the target is a file, the copy is done by FileChannel.transferFrom.  From a
+     * stream, that's an ordinary buffered copy, not a zero-copy transfer.
+     * Otherwise the bytes are copied through a single reusable buffer.
+     *
+     * @return the number of bytes copied.
+     */
+    public long transferFrom(InputStream is) throws IOException {
+        long total = 0;
+
+        if (outputStream == null && getChannel() instanceof FileChannel) {
+            FileChannel fileChannel = (FileChannel) channel;
+            ReadableByteChannel source = Channels.newChannel(is);
+            long count;
+            while ((count = fileChannel.transferFrom(source, fileChannel.position(), Long.MAX_VALUE)) > 0) {
+                fileChannel.position( fileChannel.position() + count );
+                total += count;
+            }
+        } else {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = is.read(buf)) >= 0) {
+                onData(buf, 0, len);
+                total += len;
+            }
+        }
+
+        onEnd();
+        return total;
+    }
+}
@@ -0,0 +1,97 @@
+package com.rga78.utils.proc;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ExecutorServices for running ProcessHelper stream readers.
+ *
+ * A stream reader spends nearly all its life blocked on a pipe read, so there's
+ * no need to create (and tear down) a new thread pool for every forked process.
+ * The executors returned here are shared JVM-wide and are never shut down.
+ *
+ * Usage: new ProcessHelper(process, ReaderExecutors.shared())
+ *
+ * Usage: new ProcessHelper(process).setExecutorService( ReaderExecutors.virtualThreads() )
+ */
+public class ReaderExecutors {
+
+    /**
+     * Lazy holder for the shared reader pool.
+     */
+    private static class SharedHolder {
+        static final ExecutorService INSTANCE = Executors.newCachedThreadPool( new DaemonThreadFactory("ProcessHelper-reader") );
+    }
+
+    /**
+     * Lazy holder for the virtual-thread executor.  INSTANCE is null if the JVM
+     * doesn't support virtual threads.
+     */
+    private static class VirtualHolder {
+        static final ExecutorService INSTANCE = newVirtualThreadPerTaskExecutor();
+    }
+
+    /**
+     * @return a JVM-wide cached pool of daemon threads.  Idle threads are reused
+     *         across processes and time out on their own; the pool is never shut down.
+     */
+    public static ExecutorService shared() {
+        return SharedHolder.INSTANCE;
+    }
+
+    /**
+     * @return a JVM-wide virtual-thread-per-task executor, if the JVM supports
+     *         virtual threads (java 21+); otherwise the shared() pool.
+     */
+    public static ExecutorService virtualThreads() {
+        return isVirtualThreadSupported() ? VirtualHolder.INSTANCE : shared();
+    }
+
+    /**
+     * @return true if the running JVM supports virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VirtualHolder.INSTANCE != null;
+    }
+
+    /**
+     * Note: looked up reflectively so this class still compiles and runs on older JVMs.
+     *
+     * @return Executors.newVirtualThreadPerTaskExecutor(), or null if it's not available.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates named daemon threads, so that idle reader threads don't hold up JVM exit.
+     */
+    static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String namePrefix;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * CTOR.
+         */
+        DaemonThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, namePrefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package com.rga78.utils.proc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+
+/**
+ * StreamHandler that captures the full output of a stream to an append-only file,
+ * so it can be read back (iterated, searched, tailed, or accessed by line number)
+ * without holding it all in memory.
+ *
+ * As the bytes are written, a sparse index of line offsets is kept (one entry every
+ * INDEX_INTERVAL lines), so random access to a line only reads the file from the
+ * nearest indexed line.  Lines are terminated by "\n", "\r", or "\r\n", the same as
+ * LineSplitter.
+ *
+ * The captured output can be read while it's still being written; each read sees
+ * the output written up to that point.
+ *
+ * Usage:
+ *      SpillFile spill = new SpillFile();
+ *      processHelper.spillTo( Stream.STDOUT, spill ).waitFor();
+ *      for (String line : spill) { ... }
+ *      List<String> errors = spill.grep( Pattern.compile("ERROR"), 100 );
+ *      spill.close();  // deletes the temp file
+ *
+ * Note: only works for charsets supported by LineSplitter (e.g. ASCII, ISO-8859-1, UTF-8).
+ */
+public class SpillFile implements StreamHandler, Iterable<String>, Closeable {
+
+    /**
+     * Write buffer size.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Read buffer size.
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * The offset of every INDEX_INTERVAL'th line is indexed.
+     */
+    static final int INDEX_INTERVAL = 64;
+
+    /**
+     * The file.
+     */
+    private final Path path;
+
+    /**
+     * True if the file should be deleted by close() (i.e. it's a temp file we created).
+     */
+    private final boolean deleteOnClose;
+
+    /**
+     * For decoding the lines.
+     */
+    private final Charset charset;
+
+    /**
+     * For writing (appending) to and reading from the file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Bytes not yet written to the file.
+     */
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Total number of bytes received (written to the file plus the writeBuffer).
+     */
+    private long size = 0;
+
+    /**
+     * Number of complete lines received.
+     */
+    private long lineCount = 0;
+
+    /**
+     * Offset of the start of the current (not yet terminated) line.
+     */
+    private long lineStart = 0;
+
+    /**
+     * True if the last byte received was a '\r', in which case a following '\n'
+     * is part of the same line terminator.
+     */
+    private boolean skipLF = false;
+
+    /**
+     * index[k] is the offset of line k * INDEX_INTERVAL.
+     */
+    private long[] index = new long[16];
+
+    /**
+     * Number of entries in the index.
+     */
+    private int indexSize = 1;
+
+    /**
+     * CTOR.  The output is captured to a new temp file, which is deleted by close().
+     * Lines are decoded with the platform default charset.
+     */
+    public SpillFile() throws IOException {
+        this( Files.createTempFile("spill", ".out"), true, Charset.defaultCharset() );
+    }
+
+    /**
+     * CTOR.  The output is captured to a new temp file, which is deleted by close().
+     */
+    public SpillFile(Charset charset) throws IOException {
+        this( Files.createTempFile("spill", ".out"), true, charset );
+    }
+
+    /**
+     * CTOR.  The file is created (or truncated).
+     *
+     * @param path the file
+     * @param deleteOnClose whether to delete the file when the SpillFile is closed
+     * @param charset for decoding the lines
+     */
+    public SpillFile(Path path, boolean deleteOnClose, Charset charset) throws IOException {
+        if (!LineSplitter.supports(charset)) {
+            throw new IllegalArgumentException("Output in charset " + charset + " can't be split into lines by a SpillFile");
+        }
+        this.path = path;
+        this.deleteOnClose = deleteOnClose;
+        this.charset = charset;
+        this.channel = FileChannel.open( path,
+                                         StandardOpenOption.CREATE,
+                                         StandardOpenOption.TRUNCATE_EXISTING,
+                                         StandardOpenOption.WRITE,
+                                         StandardOpenOption.READ );
+    }
+
+    /**
+     * Index the lines in the chunk and append it to the file.
+     */
+    @Override
+    public synchronized void onData(byte[] buf, int off, int len) throws IOException {
+        indexLines(buf, off, len);
+
+        if (len > writeBuffer.remaining()) {
+            flush();
+        }
+        if (len > writeBuffer.capacity()) {
+            write( ByteBuffer.wrap(buf, off, len) );
+        } else {
+            writeBuffer.put(buf, off, len);
+        }
+        size += len;
+    }
+
+    /**
+     * Write out any buffered bytes.  The file is left open for reading.
+     */
+    @Override
+    public synchronized void onEnd() throws IOException {
+        flush();
+    }
+
+    /**
+     * Record the offsets of the lines that start in the given chunk.
+     */
+    private void indexLines(byte[] buf, int off, int len) {
+        for (int i = 0; i < len; ++i) {
+            byte b = buf[off + i];
+
+            if (b == '\n' && skipLF) {
+                // The "\n" of a "\r\n".  The next line starts after it.
+                skipLF = false;
+                lineStart = size + i + 1;
+                if (lineCount % INDEX_INTERVAL == 0) {
+                    index[indexSize - 1] = lineStart;
+                }
+                continue;
+            }
+
+            skipLF = false;
+            if (b == '\n' || b == '\r') {
+                ++lineCount;
+                lineStart = size + i + 1;
+                skipLF = (b == '\r');
+                if (lineCount % INDEX_INTERVAL == 0) {
+                    if (indexSize == index.length) {
+                        index = Arrays.copyOf(index, index.length * 2);
+                    }
+                    index[indexSize++] = lineStart;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the writeBuffer to the file.
+     */
+    private void flush() throws IOException {
+        // Called via Buffer: ByteBuffer's covariant overrides are Java 9+.
+        ((Buffer) writeBuffer).flip();
+        write(writeBuffer);
+        ((Buffer) writeBuffer).clear();
+    }
+
+    /**
+     * Write the bytes to the end of the file.
+     */
+    private void write(ByteBuffer byteBuffer) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
+        }
+    }
+
+    /**
+     * @return the file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return the number of bytes captured.
+     */
+    public synchronized long getByteCount() {
+        return size;
+    }
+
+    /**
+     * @return the number of lines captured (including the last line, even if it's not terminated).
+     */
+    public synchronized long getLineCount() {
+        return lineCount + ((size > lineStart) ? 1 : 0);
+    }
+
+    /**
+     * @return an iterator over all lines captured so far.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        try {
+            return iterator(0);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    /**
+     * Note: the iterator throws UncheckedIOException if the file can't be read.
+     *
+     * @return an iterator over the lines captured so far, starting with the given line.
+     */
+    public Iterator<String> iterator(long fromLine) throws IOException {
+        if (fromLine < 0) {
+            throw new IndexOutOfBoundsException("Line: " + fromLine);
+        }
+
+        long start;
+        long end;
+        synchronized (this) {
+            flush();
+            int k = (int) Math.min( fromLine / INDEX_INTERVAL, indexSize - 1 );
+            start = index[k];
+            end = size;
+            fromLine -= (long) k * INDEX_INTERVAL;
+        }
+
+        LineReader retMe = new LineReader(start, end);
+        while (fromLine-- > 0 && retMe.readLine()) {
+            // skip
+        }
+        return retMe;
+    }
+
+    /**
+     * @return the given line.
+     *
+     * @throws IndexOutOfBoundsException if there's no such line.
+     */
+    public String getLine(long lineNumber) throws IOException {
+        Iterator<String> iter = iterator(lineNumber);
+        if (!iter.hasNext()) {
+            throw new IndexOutOfBoundsException("Line: " + lineNumber + ", Line count: " + getLineCount());
+        }
+        return iter.next();
+    }
+
+    /**
+     * @return up to count lines, starting with the given line.
+     */
+    public List<String> getLines(long fromLine, int count) throws IOException {
+        List<String> retMe = new ArrayList<String>();
+        Iterator<String> iter = iterator(fromLine);
+        while (retMe.size() < count && iter.hasNext()) {
+            retMe.add( iter.next() );
+        }
+        return retMe;
+    }
+
+    /**
+     * @return the last count lines captured so far.
+     */
+    public List<String> tail(int count) throws IOException {
+        return getLines( Math.max(0, getLineCount() - count), count );
+    }
+
+    /**
+     * @return the lines that contain a match for the given pattern, up to maxMatches.
+     */
+    public List<String> grep(Pattern pattern, int maxMatches) throws IOException {
+        List<String> retMe = new ArrayList<String>();
+        Iterator<String> iter = iterator(0);
+        while (retMe.size() < maxMatches && iter.hasNext()) {
+            String line = iter.next();
+            if (pattern.matcher(line).find()) {
+                retMe.add(line);
+            }
+        }
+        return retMe;
+    }
+
+    /**
+     * Close the file (and delete it, if it's a temp file).
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (deleteOnClose) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Reads lines from a range of the file.  The file is read with positional reads,
+     * so readers don't interfere with each other or with the writer.
+     */
+    private class LineReader implements Iterator<String> {
+
+        private final byte[] chunk = new byte[READ_BUFFER_SIZE];
+        private int chunkPos = 0;
+        private int chunkLen = 0;
+
+        /**
+         * File offset of the next chunk.
+         */
+        private long position;
+
+        /**
+         * Don't read past here.
+         */
+        private final long end;
+
+        /**
+         * The line read by readLine.
+         */
+        private byte[] line = new byte[128];
+        private int lineLen = 0;
+
+        /**
+         * The next line, if hasNext has already read it.
+         */
+        private String next;
+
+        LineReader(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    if (readLine()) {
+                        next = new String(line, 0, lineLen, charset);
+                    }
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String retMe = next;
+            next = null;
+            return retMe;
+        }
+
+        /**
+         * Read the next line into the line buffer.
+         *
+         * @return false at the end of the range.
+         */
+        boolean readLine() throws IOException {
+            lineLen = 0;
+            int b = read();
+            if (b < 0) {
+                return false;
+            }
+            while (b >= 0 && b != '\n' && b != '\r') {
+                if (lineLen == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLen++] = (byte) b;
+                b = read();
+            }
+            if (b == '\r' && peek() == '\n') {
+                read();
+            }
+            return true;
+        }
+
+        private int read() throws IOException {
+            int retMe = peek();
+            if (retMe >= 0) {
+                ++chunkPos;
+            }
+            return retMe;
+        }
+
+        private int peek() throws IOException {
+            if (chunkPos == chunkLen && !fill()) {
+                return -1;
+            }
+            return chunk[chunkPos] & 0xff;
+        }
+
+        /**
+         * @return false if there's nothing left to read.
+         */
+        private boolean fill() throws IOException {
+            int len = (int) Math.min( chunk.length, end - position );
+            if (len <= 0) {
+                return false;
+            }
+            ByteBuffer byteBuffer = ByteBuffer.wrap(chunk, 0, len);
+            while (byteBuffer.hasRemaining()) {
+                if (channel.read(byteBuffer, position + byteBuffer.position()) < 0) {
+                    break;
+                }
+            }
+            chunkPos = 0;
+            chunkLen = byteBuffer.position();
+            position += chunkLen;
+            return chunkLen > 0;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.rga78.utils.proc;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes a source of input to a process's stdin, on a dedicated (daemon) thread, then
+ * closes stdin.  See ProcessHelper.feedStdin.
+ *
+ * The writes block while the pipe is full, so the source is only read as fast as the
+ * process consumes it (backpressure) and is never buffered in memory.  
+ * 
+ * The feeder doesn't run on the reader ExecutorService: if that executor is bounded
+ * (e.g. a fixed pool), a feeder blocked on a full stdin pipe could hold the thread a 
+ * stdout/stderr reader is queued for, while the process blocks writing its output.
+ * On its own thread, the feeder can't deadlock with the readers.
+ */
+class StdinFeeder {
+
+    /**
+     * For the feeder threads.
+     */
+    private static final ReaderExecutors.DaemonThreadFactory threadFactory = new ReaderExecutors.DaemonThreadFactory("ProcessHelper-stdin");
+
+    /**
+     * Copy buffer size.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A source of input.
+     */
+    interface Source {
+
+        /**
+         * Write the entire source to the given stream.
+         */
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    /**
+     * Start writing the source to the process's stdin.  Stdin is closed when the
+     * source is exhausted (or the write fails).
+     *
+     * @return a future for the number of bytes written.  Completes exceptionally if
+     *         the write fails (e.g. the process exited without reading all its input).
+     */
+    static CompletableFuture<Long> start(final Process process, final Source source) {
+        final CompletableFuture<Long> retMe = new CompletableFuture<Long>();
+
+        threadFactory.newThread( new Runnable() {
+            public void run() {
+                CountingOutputStream stdin = new CountingOutputStream( process.getOutputStream() );
+                try {
+                    source.writeTo(stdin);
+                    stdin.close();
+                    retMe.complete( stdin.count );
+                } catch (Throwable t) {
+                    try {
+                        stdin.close();
+                    } catch (IOException ioe) {
+                        // The process is gone.
+                    }
+                    retMe.completeExceptionally(t);
+                }
+            }
+        }).start();
+
+        return retMe;
+    }
+
+    /**
+     * @return a source that copies the given InputStream (and then closes it).
+     */
+    static Source fromInputStream(final InputStream is) {
+        return new Source() {
+            public void writeTo(OutputStream os) throws IOException {
+                try {
+                    byte[] buf = new byte[BUFFER_SIZE];
+                    int len;
+                    while ((len = is.read(buf)) >= 0) {
+                        os.write(buf, 0, len);
+                    }
+                } finally {
+                    is.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return a source that copies the given file, via FileChannel.transferTo.
+     */
+    static Source fromPath(final Path path) {
+        return new Source() {
+            public void writeTo(OutputStream os) throws IOException {
+                FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+                try {
+                    WritableByteChannel target = Channels.newChannel(os);
+                    long position = 0;
+                    long size = fileChannel.size();
+                    while (position < size) {
+                        position += fileChannel.transferTo(position, size - position, target);
+                    }
+                } finally {
+                    fileChannel.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return a source that writes each line (encoded in the given charset), followed by '\n'.
+     *         The lines are pulled from the iterator as the process consumes them.
+     */
+    static Source fromLines(final Iterator<String> lines, final Charset charset) {
+        return new Source() {
+            public void writeTo(OutputStream os) throws IOException {
+                Writer writer = new OutputStreamWriter( new BufferedOutputStream(os, BUFFER_SIZE), charset );
+                while (lines.hasNext()) {
+                    writer.write( lines.next() );
+                    writer.write('\n');
+                }
+                writer.flush();
+            }
+        };
+    }
+
+    /**
+     * Counts the bytes written.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        long count = 0;
+
+        CountingOutputStream(OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -7,8 +7,11 @@ import java.util.Observer;
 
 /**
  * OutputObserver for ProcessHelper that collects all output into a List<String>
+ *
+ * Can also be registered as a LineListener, in which case lines are collected
+ * a block at a time.
  */
-public class StreamCollector implements Observer {
+public class StreamCollector implements Observer, LineListener {
     
     /**
      * The output stream.
@@ -23,6 +26,14 @@ public class StreamCollector implements Observer {
         output.add((String)line);
     }
 
+    /**
+     * Collect the block of lines.
+     */
+    @Override
+    public void onLines(ProcessHelper.Stream stream, LineBlock lines) {
+        output.addAll(lines);
+    }
+
     /**
      * @return the collected output.
      */
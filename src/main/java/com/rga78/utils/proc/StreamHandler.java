@@ -0,0 +1,20 @@
+package com.rga78.utils.proc;
+
+import java.io.IOException;
+
+/**
+ * Receives the raw bytes read from a process's stdout or stderr stream.
+ */
+public interface StreamHandler {
+
+    /**
+     * Called with each chunk of data read from the stream.  The buffer is reused
+     * and is only valid for the duration of the call.
+     */
+    void onData(byte[] buf, int off, int len) throws IOException;
+
+    /**
+     * Called once, at end-of-stream.
+     */
+    void onEnd() throws IOException;
+}
@@ -0,0 +1,203 @@
+package com.rga78.utils.proc;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity circular buffer that keeps the last N lines of a stream.
+ *
+ * The lines are held in an array that grows (up to maxLines) as needed and is
+ * then reused, so steady-state adds don't allocate.  Optionally the buffer can
+ * also be bounded by the total size of the lines it holds (maxBytes), in which
+ * case the oldest lines are evicted to stay under the budget.  The most recent
+ * line is always kept, even if it alone exceeds the budget.
+ *
+ * The buffer is itself a List, in order from oldest to newest, so no copy is
+ * made when the tail is retrieved.
+ *
+ * Not thread-safe.  Lines are added by a single reader thread; the list should be
+ * read only after the reader is done.
+ */
+public class TailBuffer extends AbstractList<String> {
+
+    /**
+     * Initial array size (the array grows as needed, up to maxLines).
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Max number of lines held.
+     */
+    private final int maxLines;
+
+    /**
+     * Max total size of the lines held.
+     */
+    private final long maxBytes;
+
+    /**
+     * The ring.
+     */
+    private String[] lines;
+
+    /**
+     * The size of each line in the ring (as given to add).  Only tracked if there's a byte budget.
+     */
+    private int[] sizes;
+
+    /**
+     * Index of the oldest line.
+     */
+    private int head = 0;
+
+    /**
+     * Number of lines held.
+     */
+    private int count = 0;
+
+    /**
+     * Total size of the lines held.
+     */
+    private long bytes = 0;
+
+    /**
+     * CTOR.
+     *
+     * @param maxLines max number of lines to keep
+     */
+    public TailBuffer(int maxLines) {
+        this(maxLines, Long.MAX_VALUE);
+    }
+
+    /**
+     * CTOR.
+     *
+     * @param maxLines max number of lines to keep
+     * @param maxBytes max total size of the lines to keep
+     */
+    public TailBuffer(int maxLines, long maxBytes) {
+        if (maxLines < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("maxLines and maxBytes must be >= 0");
+        }
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+        this.lines = new String[ Math.min(maxLines, INITIAL_CAPACITY) ];
+        this.sizes = (maxBytes == Long.MAX_VALUE) ? null : new int[ lines.length ];
+    }
+
+    /**
+     * Add the line to the tail, evicting the oldest line(s) if the buffer is full.
+     *
+     * @return true
+     */
+    @Override
+    public boolean add(String line) {
+        return add(line, line.length());
+    }
+
+    /**
+     * Add the line to the tail, evicting the oldest line(s) if the buffer is full.
+     *
+     * @param line the line
+     * @param size the size of the line, in bytes, counted against maxBytes
+     *
+     * @return true
+     */
+    public boolean add(String line, int size) {
+        if (maxLines == 0) {
+            return true;
+        }
+
+        if (count == lines.length) {
+            if (lines.length < maxLines) {
+                grow();
+            } else {
+                evictOldest();
+            }
+        }
+
+        int index = (head + count) % lines.length;
+        lines[index] = line;
+        if (sizes != null) {
+            sizes[index] = size;
+        }
+        ++count;
+        bytes += size;
+
+        while (bytes > maxBytes && count > 1) {
+            evictOldest();
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove the oldest line.
+     */
+    private void evictOldest() {
+        if (sizes != null) {
+            bytes -= sizes[head];
+        }
+        lines[head] = null;
+        head = (head + 1) % lines.length;
+        --count;
+    }
+
+    /**
+     * Double the size of the ring (up to maxLines), unwrapping it so the oldest line is at index 0.
+     */
+    private void grow() {
+        int newLength = (int) Math.min( (long) lines.length * 2, maxLines );
+
+        String[] newLines = new String[newLength];
+        int[] newSizes = (sizes != null) ? new int[newLength] : null;
+        for (int i = 0; i < count; ++i) {
+            int index = (head + i) % lines.length;
+            newLines[i] = lines[index];
+            if (sizes != null) {
+                newSizes[i] = sizes[index];
+            }
+        }
+
+        lines = newLines;
+        sizes = newSizes;
+        head = 0;
+    }
+
+    /**
+     * @return the i'th line, where 0 is the oldest.
+     */
+    @Override
+    public String get(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count);
+        }
+        return lines[ (head + i) % lines.length ];
+    }
+
+    /**
+     * @return the number of lines held.
+     */
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the total size of the lines held.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Remove all lines.
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(lines, null);
+        head = 0;
+        count = 0;
+        bytes = 0;
+    }
+}
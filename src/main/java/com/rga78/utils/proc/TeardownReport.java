@@ -0,0 +1,101 @@
+package com.rga78.utils.proc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes how a ProcessHelper tore down a process that didn't finish in time:
+ * which escalation steps were needed and how long each phase took.
+ *
+ * Phases:
+ *   1. destroy - process.destroy(), then wait up to the grace period for the process to exit.
+ *   2. destroyForcibly - process.destroyForcibly(), then wait up to the grace period.
+ *      Only if the process didn't exit after destroy.
+ *   3. reader join - wait up to the grace period for the stdout/stderr readers to 
+ *      finish; if they don't (e.g. a grandchild process still holds the pipes open),
+ *      the streams are closed and the readers' futures are cancelled.
+ */
+public class TeardownReport {
+
+    private final boolean exited;
+    private final boolean forcibly;
+    private final boolean readersCancelled;
+    private final long destroyNanos;
+    private final long destroyForciblyNanos;
+    private final long readerJoinNanos;
+
+    /**
+     * CTOR.
+     */
+    public TeardownReport(boolean exited,
+                          boolean forcibly,
+                          boolean readersCancelled,
+                          long destroyNanos,
+                          long destroyForciblyNanos,
+                          long readerJoinNanos) {
+        this.exited = exited;
+        this.forcibly = forcibly;
+        this.readersCancelled = readersCancelled;
+        this.destroyNanos = destroyNanos;
+        this.destroyForciblyNanos = destroyForciblyNanos;
+        this.readerJoinNanos = readerJoinNanos;
+    }
+
+    /**
+     * @return true if the process exited by the end of the teardown.
+     */
+    public boolean isExited() {
+        return exited;
+    }
+
+    /**
+     * @return true if the process had to be destroyed forcibly.
+     */
+    public boolean isForcibly() {
+        return forcibly;
+    }
+
+    /**
+     * @return true if the stream readers didn't finish within the grace period and were cancelled.
+     */
+    public boolean isReadersCancelled() {
+        return readersCancelled;
+    }
+
+    /**
+     * @return time spent in the destroy phase, in millis.
+     */
+    public long getDestroyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(destroyNanos);
+    }
+
+    /**
+     * @return time spent in the destroyForcibly phase, in millis (0 if not needed).
+     */
+    public long getDestroyForciblyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(destroyForciblyNanos);
+    }
+
+    /**
+     * @return time spent waiting for (or cancelling) the stream readers, in millis.
+     */
+    public long getReaderJoinMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(readerJoinNanos);
+    }
+
+    /**
+     * @return total teardown time, in millis.
+     */
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(destroyNanos + destroyForciblyNanos + readerJoinNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "TeardownReport[exited=" + exited
+                + ", forcibly=" + forcibly
+                + ", readersCancelled=" + readersCancelled
+                + ", destroyMillis=" + getDestroyMillis()
+                + ", destroyForciblyMillis=" + getDestroyForciblyMillis()
+                + ", readerJoinMillis=" + getReaderJoinMillis() + "]";
+    }
+}
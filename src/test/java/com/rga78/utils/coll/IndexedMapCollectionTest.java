@@ -0,0 +1,108 @@
+package com.rga78.utils.coll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class IndexedMapCollectionTest {
+
+    /**
+     * @return random documents, some missing fields, some with Map-valued fields, some
+     *         with a null field.
+     */
+    protected List<Map> buildDocuments(int count) {
+        Random random = new Random(42);
+        List<Map> retMe = new ArrayList<Map>();
+        for (int i = 0; i < count; ++i) {
+            Map<String, Object> doc = new HashMap<String, Object>();
+            doc.put("id", i);
+            doc.put("group", "group-" + random.nextInt(20));
+            if (random.nextBoolean()) {
+                doc.put("type", random.nextBoolean() ? "a" : "b");
+            }
+            if (random.nextInt(4) == 0) {
+                doc.put(null, "no-key");
+            }
+            if (random.nextInt(3) == 0) {
+                doc.put("status", new MapBuilder<String, Object>().append("state", random.nextBoolean() ? "running" : "stopped"));
+            }
+            retMe.add(doc);
+        }
+        return retMe;
+    }
+
+    /**
+     * @return filters covering: single/multiple indexable fields, a null value (matches
+     *         documents without the field), no matches, a Map value, a null field, an empty filter.
+     */
+    protected List<Map> buildFilters() {
+        return Arrays.<Map>asList( new MapBuilder<String, Object>().append("group", "group-3"),
+                                   new MapBuilder<String, Object>().append("group", "group-3").append("type", "a"),
+                                   new MapBuilder<String, Object>().append("type", null),
+                                   new MapBuilder<String, Object>().append("type", "c"),
+                                   new MapBuilder<String, Object>().append("id", 17),
+                                   new MapBuilder<String, Object>().append("status", new MapBuilder<String, Object>().append("state", "running")),
+                                   new MapBuilder<String, Object>().append("status", new MapBuilder<String, Object>().append("state", "running"))
+                                                                   .append("type", "b"),
+                                   new MapBuilder<String, Object>().append(null, "no-key"),
+                                   new MapBuilder<String, Object>().append(null, "no-key").append("group", "group-3"),
+                                   new MapBuilder<String, Object>() );
+    }
+
+    /**
+     * Same results, in the same order, as Cawls.findAll/findFirst.
+     */
+    @Test
+    public void testSameAsCawls() {
+        List<Map> docs = buildDocuments(2000);
+        IndexedMapCollection indexed = new IndexedMapCollection(docs);
+
+        for (Map filter : buildFilters()) {
+            assertEquals(filter.toString(), Cawls.findAll(docs, filter), indexed.findAll(filter));
+            assertSame(filter.toString(), Cawls.findFirst(docs, filter), indexed.findFirst(filter));
+        }
+
+        // Indexes built on demand, for the non-Map filter fields only.
+        assertEquals(new HashSet<Object>(Arrays.asList("group", "type", "id")), indexed.getIndexedFields());
+    }
+
+    /**
+     * Documents added after the indexes are built are added to them.
+     */
+    @Test
+    public void testAdd() {
+        List<Map> docs = buildDocuments(500);
+        IndexedMapCollection indexed = new IndexedMapCollection(docs.subList(0, 250));
+        for (Map filter : buildFilters()) {
+            indexed.findAll(filter);
+        }
+
+        for (Map doc : docs.subList(250, 500)) {
+            indexed.add(doc);
+        }
+        assertEquals(500, indexed.size());
+
+        for (Map filter : buildFilters()) {
+            assertEquals(filter.toString(), Cawls.findAll(docs, filter), indexed.findAll(filter));
+        }
+
+        indexed.dropIndexes();
+        assertTrue(indexed.getIndexedFields().isEmpty());
+        assertNull(indexed.findFirst( new MapBuilder<String, Object>().append("id", 500) ));
+        assertEquals(docs, new ArrayList<Map>(indexed));
+    }
+}
@@ -0,0 +1,185 @@
+package com.rga78.utils.coll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class OffHeapRotatingQueueTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * @return the records as strings.
+     */
+    protected List<String> asStrings(List<byte[]> records) {
+        List<String> retMe = new ArrayList<String>();
+        for (byte[] record : records) {
+            retMe.add( new String(record, UTF8) );
+        }
+        return retMe;
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testAddAndWrap() {
+        // 10 records of 16 + 16 bytes fit in 320 bytes.
+        OffHeapRotatingQueue q = OffHeapRotatingQueue.allocateDirect(320);
+        assertEquals(0, q.toList().size());
+
+        q.add( "record-00".getBytes(UTF8) );
+        q.add( "record-01".getBytes(UTF8) );
+        assertEquals(Arrays.asList("record-00", "record-01"), asStrings(q.toList()));
+
+        for (int i = 2; i < 25; ++i) {
+            q.add( String.format("record-%02d", i).getBytes(UTF8) );
+        }
+        List<String> expected = new ArrayList<String>();
+        for (int i = 15; i < 25; ++i) {
+            expected.add( String.format("record-%02d", i) );
+        }
+        assertEquals(expected, asStrings(q.toList()));
+    }
+
+    /**
+     * Variable-length records that don't fit at the end of the region are
+     * preceded by padding.
+     */
+    @Test
+    public void testPadding() {
+        OffHeapRotatingQueue q = OffHeapRotatingQueue.allocateDirect(256);
+
+        List<String> added = new ArrayList<String>();
+        for (int i = 0; i < 50; ++i) {
+            char[] chars = new char[ (i * 7) % 60 ];
+            Arrays.fill(chars, (char) ('a' + i % 26));
+            String record = i + ":" + new String(chars);
+            added.add(record);
+            q.add( record.getBytes(UTF8) );
+
+            // The snapshot is always the newest records.
+            List<String> snapshot = asStrings(q.toList());
+            assertEquals(added.subList(added.size() - snapshot.size(), added.size()), snapshot);
+            assertTrue(snapshot.contains(record));
+        }
+    }
+
+    /**
+     *
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecordTooLarge() {
+        OffHeapRotatingQueue q = OffHeapRotatingQueue.allocateDirect(256);
+        q.add( new byte[q.getMaxRecordLength() + 1] );
+    }
+
+    /**
+     * The records are recovered from a memory-mapped queue's file, without closing it.
+     */
+    @Test
+    public void testMapAndRecover() throws Exception {
+        Path path = Files.createTempFile("ring", ".dat");
+        try {
+            OffHeapRotatingQueue q = OffHeapRotatingQueue.map(path, 1024);
+            for (int i = 0; i < 100; ++i) {
+                q.add( ByteBuffer.wrap( ("event " + i).getBytes(UTF8) ) );
+            }
+            List<String> recovered = asStrings( OffHeapRotatingQueue.recover(path) );
+            assertEquals(asStrings(q.toList()), recovered);
+            assertEquals("event 99", recovered.get(recovered.size() - 1));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * A corrupt record is left out of the recovered records.
+     */
+    @Test
+    public void testDumpAndRecoverCorrupt() throws Exception {
+        OffHeapRotatingQueue q = OffHeapRotatingQueue.allocateDirect(1024);
+        for (int i = 0; i < 5; ++i) {
+            q.add( ("event " + i).getBytes(UTF8) );
+        }
+
+        Path path = Files.createTempFile("ring", ".dump");
+        try {
+            q.dumpTo(path);
+            assertEquals(Arrays.asList("event 0", "event 1", "event 2", "event 3", "event 4"),
+                         asStrings( OffHeapRotatingQueue.recover(path) ));
+
+            // Flip a byte in the payload of the 3rd record.
+            byte[] image = Files.readAllBytes(path);
+            image[OffHeapRotatingQueue.FILE_HEADER_SIZE + 2 * 32 + OffHeapRotatingQueue.HEADER_SIZE] ^= 1;
+            Files.write(path, image);
+            assertEquals(Arrays.asList("event 0", "event 1", "event 3", "event 4"),
+                         asStrings( OffHeapRotatingQueue.recover(path) ));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Concurrent appenders and readers: every snapshot must hold each appender's
+     * records in the order they were added, with no duplicates or corrupt records.
+     */
+    @Test
+    public void testConcurrentAppenders() throws Exception {
+        final OffHeapRotatingQueue q = OffHeapRotatingQueue.allocateDirect(4096);
+        final int writerCount = 4;
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int w = 0; w < writerCount; ++w) {
+            final int writer = w;
+            writers.add(new Thread() {
+                public void run() {
+                    ByteBuffer record = ByteBuffer.allocate(16 + writer * 8);
+                    for (long i = 0; !done.get(); ++i) {
+                        record.clear();
+                        record.putLong(writer).putLong(i);
+                        record.clear();
+                        q.add(record);
+                    }
+                }
+            });
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+
+        try {
+            for (int i = 0; i < 2000; ++i) {
+                long[] last = new long[writerCount];
+                Arrays.fill(last, -1);
+                for (byte[] record : q.toList()) {
+                    ByteBuffer buffer = ByteBuffer.wrap(record);
+                    int writer = (int) buffer.getLong();
+                    long seq = buffer.getLong();
+                    assertEquals(16 + writer * 8, record.length);
+                    assertTrue(seq > last[writer]);
+                    last[writer] = seq;
+                }
+            }
+        } finally {
+            done.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.rga78.utils.coll;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class PrimitiveRotatingQueueTest {
+
+    /**
+     *
+     */
+    @Test
+    public void testLong() {
+        LongRotatingQueue q = new LongRotatingQueue(4);
+        long[] arr = new long[4];
+
+        assertEquals(0, q.toArray(arr));
+
+        q.add(1);
+        q.add(2);
+        q.add(3);
+        assertEquals(3, q.toArray(arr));
+        assertArrayEquals(new long[] { 1, 2, 3 }, Arrays.copyOf(arr, 3));
+
+        q.add(4);
+        q.add(5);
+        q.add(Long.MIN_VALUE);
+        assertEquals(4, q.toArray(arr));
+        assertArrayEquals(new long[] { 3, 4, 5, Long.MIN_VALUE }, arr);
+        assertEquals(6, q.getAddCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testInt() {
+        IntRotatingQueue q = new IntRotatingQueue(3);
+        int[] arr = new int[5];
+        for (int i = 1; i <= 7; ++i) {
+            q.add(i);
+        }
+        assertEquals(3, q.toArray(arr));
+        assertArrayEquals(new int[] { 5, 6, 7 }, Arrays.copyOf(arr, 3));
+        assertEquals(3, q.getCapacity());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testDouble() {
+        DoubleRotatingQueue q = new DoubleRotatingQueue(2);
+        double[] arr = new double[2];
+        q.add(1.5);
+        q.add(-0.0);
+        q.add(Double.NaN);
+        assertEquals(2, q.toArray(arr));
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(arr[0]));
+        assertEquals(Double.NaN, arr[1], 0);
+    }
+
+    /**
+     *
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testArrayTooSmall() {
+        new LongRotatingQueue(4).toArray(new long[3]);
+    }
+}
@@ -13,7 +13,21 @@ package com.rga78.utils.coll;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 
@@ -73,4 +87,372 @@ public class SimpleRotatingQueueTest {
 
         assertArrayEquals(new String[] { "str7", "str8", null }, strs);
     }
+
+    /**
+     * Writers lapped while writing: the newer writes to the slot are dropped, and the
+     * slot is marked lost rather than holding the older (stale) element.
+     */
+    @Test
+    public void testLappedWriter() {
+
+        SlotSequencer sequencer = new SlotSequencer(2);
+
+        long seq0 = sequencer.claim();
+        assertTrue(sequencer.beginWrite(seq0, sequencer.slot(seq0)));
+
+        sequencer.claim();
+        long seq2 = sequencer.claim();  // same slot as seq0, which is still being written.
+        assertFalse(sequencer.beginWrite(seq2, sequencer.slot(seq2)));
+
+        sequencer.endWrite(seq0, sequencer.slot(seq0));
+        assertEquals(SlotSequencer.encode(seq2, SlotSequencer.LOST), sequencer.stamp(sequencer.slot(seq0)));
+
+        long seq3 = sequencer.claim();
+        long seq4 = sequencer.claim();
+        assertTrue(sequencer.beginWrite(seq4, sequencer.slot(seq4)));
+        sequencer.endWrite(seq4, sequencer.slot(seq4));
+        assertEquals(SlotSequencer.encode(seq4, SlotSequencer.PUBLISHED), sequencer.stamp(sequencer.slot(seq4)));
+        assertEquals(3, seq3);
+    }
+
+    /**
+     * Writers that lap every attempt at a snapshot: it narrows to the newest elements,
+     * and finishes (empty, at worst) instead of retrying forever.
+     */
+    @Test
+    public void testSnapshotWhenAlwaysLapped() {
+
+        final SlotSequencer sequencer = new SlotSequencer(8);
+        for (int i = 0; i < 8; ++i) {
+            publish(sequencer);
+        }
+
+        // Laps the ring on every copy for the first lappedAttempts attempts.
+        final int[] attempts = new int[1];
+        final int[] copied = new int[1];
+        final int[] lappedAttempts = { Integer.MAX_VALUE };
+        SlotSequencer.SlotCopier copier = new SlotSequencer.SlotCopier() {
+            public void begin() {
+                ++attempts[0];
+                copied[0] = 0;
+            }
+            public void copy(int slot, int index) {
+                ++copied[0];
+                if (attempts[0] <= lappedAttempts[0]) {
+                    for (int i = 0; i < 8; ++i) {
+                        publish(sequencer);
+                    }
+                }
+            }
+            public void clear(int index) {
+            }
+        };
+
+        long tail = sequencer.snapshot(copier);
+        assertTrue(tail > 8);
+        assertEquals(SlotSequencer.FULL_SNAPSHOT_ATTEMPTS + 4, attempts[0]);    // windows 8 (x8), 4, 2, 1, 0.
+
+        // Lapped for the full-window attempts and the first narrowed one: the window is down to 2.
+        attempts[0] = 0;
+        lappedAttempts[0] = SlotSequencer.FULL_SNAPSHOT_ATTEMPTS + 1;
+        sequencer.snapshot(copier);
+        assertEquals(SlotSequencer.FULL_SNAPSHOT_ATTEMPTS + 2, attempts[0]);
+        assertEquals(2, copied[0]);
+    }
+
+    private static void publish(SlotSequencer sequencer) {
+        long seq = sequencer.claim();
+        int slot = sequencer.slot(seq);
+        if (sequencer.beginWrite(seq, slot)) {
+            sequencer.endWrite(seq, slot);
+        }
+    }
+
+    /**
+     * Concurrent writers and readers: every snapshot must hold each writer's 
+     * elements in the order they were added, with no duplicates.
+     */
+    @Test
+    public void testConcurrentSnapshots() throws Exception {
+
+        final SimpleRotatingQueue<long[]> srq = new SimpleRotatingQueue<long[]>(new long[5][]);
+        final int writerCount = 4;
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int w = 0; w < writerCount; ++w) {
+            final int writer = w;
+            writers.add(new Thread() {
+                public void run() {
+                    for (long i = 0; !done.get(); ++i) {
+                        srq.add(new long[] { writer, i });
+                    }
+                }
+            });
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+
+        try {
+            long[][] snapshot = new long[5][];
+            for (int i = 0; i < 20000; ++i) {
+                srq.toArray(snapshot);
+                long[] last = new long[writerCount];
+                Arrays.fill(last, -1);
+                for (long[] element : snapshot) {
+                    if (element != null) {
+                        int writer = (int) element[0];
+                        assertTrue(element[1] > last[writer]);
+                        last[writer] = element[1];
+                    }
+                }
+            }
+        } finally {
+            done.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+
+        // Quiesced: writes dropped by lapped writers may have left empty slots,
+        // until they're written again.  Once a full window is added, the snapshot is full.
+        for (int i = 0; i < 5; ++i) {
+            srq.add(new long[] { 0, Long.MAX_VALUE });
+        }
+        for (long[] element : srq.toArray(new long[0][])) {
+            assertNotNull(element);
+        }
+    }
+
+    /**
+     * With a single writer no writes are dropped, so every snapshot must be exactly
+     * a run of consecutive elements, with no holes (however long the writer keeps lapping it).
+     */
+    @Test
+    public void testSnapshotIsExactWindow() throws Exception {
+
+        final SimpleRotatingQueue<Long> srq = new SimpleRotatingQueue<Long>(8);
+        for (long i = 0; i < 8; ++i) {
+            srq.add(i);
+        }
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        Thread writer = new Thread() {
+            public void run() {
+                for (long i = 8; !done.get(); ++i) {
+                    srq.add(i);
+                }
+            }
+        };
+        writer.start();
+
+        try {
+            Long[] snapshot = new Long[8];
+            for (int i = 0; i < 20000; ++i) {
+                srq.toArray(snapshot);
+                for (int j = 1; j < snapshot.length; ++j) {
+                    assertEquals(snapshot[0] + j, snapshot[j].longValue());
+                }
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
+    /**
+     * offer/poll/peek: FIFO, and size counts the unconsumed elements.
+     */
+    @Test
+    public void testPoll() {
+
+        SimpleRotatingQueue<String> srq = new SimpleRotatingQueue<String>(new String[4]);
+        assertTrue(srq.isEmpty());
+        assertNull(srq.poll());
+        assertNull(srq.peek());
+
+        srq.offer("str1");
+        srq.offer("str2");
+        srq.offer("str3");
+        assertEquals(3, srq.size());
+        assertEquals("str1", srq.peek());
+        assertEquals("str1", srq.poll());
+        assertEquals(2, srq.size());
+
+        // Polled elements are null in the history view.
+        assertArrayEquals(new String[] { null, null, "str2", "str3" }, srq.toArray(new String[0]));
+
+        assertEquals("str2", srq.poll());
+        assertEquals("str3", srq.poll());
+        assertNull(srq.poll());
+        assertTrue(srq.isEmpty());
+        assertEquals(4, srq.getCapacity());
+    }
+
+    /**
+     * Elements overwritten before they're polled are skipped.
+     */
+    @Test
+    public void testOverwriteOldest() {
+
+        SimpleRotatingQueue<String> srq = new SimpleRotatingQueue<String>(new String[3]);
+        for (int i = 1; i <= 7; ++i) {
+            assertTrue(srq.offer("str" + i));
+        }
+        assertEquals(3, srq.size());
+
+        List<String> drained = new ArrayList<String>();
+        assertEquals(2, srq.drainTo(drained, 2));
+        assertEquals(1, srq.drainTo(drained));
+        assertEquals(Arrays.asList("str5", "str6", "str7"), drained);
+        assertEquals(0, srq.size());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testReject() {
+
+        SimpleRotatingQueue<String> srq = new SimpleRotatingQueue<String>(new String[2], SimpleRotatingQueue.WhenFull.REJECT);
+        assertTrue(srq.offer("str1"));
+        assertTrue(srq.offer("str2"));
+        assertFalse(srq.offer("str3"));
+
+        try {
+            srq.add("str3");
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals("str1", srq.poll());
+        assertTrue(srq.offer("str3"));
+        assertEquals(Arrays.asList("str2", "str3"), new ArrayList<String>(srq));
+    }
+
+    /**
+     * The iterator (and toArray()) see the unconsumed elements, oldest first.
+     */
+    @Test
+    public void testIterator() {
+
+        SimpleRotatingQueue<String> srq = new SimpleRotatingQueue<String>(new String[4]);
+        srq.add("str1");
+        srq.add("str2");
+        srq.add("str3");
+        srq.poll();
+
+        Iterator<String> iter = srq.iterator();
+        assertEquals("str2", iter.next());
+
+        // Weakly consistent: elements polled meanwhile are skipped,
+        // and elements added after the iterator was created aren't seen.
+        assertEquals("str2", srq.poll());
+        assertEquals("str3", srq.poll());
+        srq.add("str4");
+        assertFalse(iter.hasNext());
+
+        assertArrayEquals(new Object[] { "str4" }, srq.toArray());
+        assertTrue(srq.contains("str4"));
+
+        srq.clear();
+        assertTrue(srq.isEmpty());
+        assertFalse(srq.iterator().hasNext());
+    }
+
+    /**
+     * Concurrent producers and consumers, rejecting when full (so nothing is lost):
+     * every element is consumed exactly once.
+     */
+    @Test
+    public void testConcurrentHandoff() throws Exception {
+
+        final SimpleRotatingQueue<Long> srq = new SimpleRotatingQueue<Long>(new Long[16], SimpleRotatingQueue.WhenFull.REJECT);
+        final int producerCount = 4;
+        final int addCount = 20000;
+        final Set<Long> consumed = ConcurrentHashMap.newKeySet();
+        final AtomicBoolean duplicate = new AtomicBoolean(false);
+        final CountDownLatch produced = new CountDownLatch(producerCount);
+
+        for (int p = 0; p < producerCount; ++p) {
+            final long base = (long) p * addCount;
+            new Thread() {
+                public void run() {
+                    for (long i = 0; i < addCount; ++i) {
+                        while (!srq.offer(base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                    produced.countDown();
+                }
+            }.start();
+        }
+
+        List<Thread> consumers = new ArrayList<Thread>();
+        for (int c = 0; c < 2; ++c) {
+            consumers.add(new Thread() {
+                public void run() {
+                    while (produced.getCount() > 0 || !srq.isEmpty()) {
+                        Long element = srq.poll();
+                        if (element == null) {
+                            Thread.yield();
+                        } else if (!consumed.add(element)) {
+                            duplicate.set(true);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread consumer : consumers) {
+            consumer.start();
+        }
+        for (Thread consumer : consumers) {
+            consumer.join();
+        }
+
+        assertFalse(duplicate.get());
+        assertEquals(producerCount * addCount, consumed.size());
+    }
+
+    /**
+     * A cursor reads only the elements added since its last read, and counts
+     * the ones it missed.
+     */
+    @Test
+    public void testCursor() {
+
+        SimpleRotatingQueue<String> srq = new SimpleRotatingQueue<String>(new String[4]);
+        srq.add("str1");
+        srq.add("str2");
+
+        SimpleRotatingQueue<String>.Cursor cursor = srq.cursor();
+        String[] batch = new String[3];
+        assertEquals(2, cursor.read(batch));
+        assertEquals("str1", batch[0]);
+        assertEquals("str2", batch[1]);
+        assertEquals(0, cursor.read(batch));
+
+        // Up to the array length per read.
+        for (int i = 3; i <= 6; ++i) {
+            srq.add("str" + i);
+        }
+        assertEquals(4, cursor.getBacklog());
+        assertEquals(3, cursor.read(batch));
+        assertArrayEquals(new String[] { "str3", "str4", "str5" }, batch);
+
+        // Reading doesn't consume.
+        assertEquals(4, srq.size());
+
+        // Lapped: the overwritten elements (str6 .. str8) are counted as lost.
+        for (int i = 7; i <= 12; ++i) {
+            srq.add("str" + i);
+        }
+        List<String> read = new ArrayList<String>();
+        assertEquals(4, cursor.read(read, 10));
+        assertEquals(Arrays.asList("str9", "str10", "str11", "str12"), read);
+        assertEquals(3, cursor.getLostCount());
+        assertEquals(12, cursor.getPosition());
+    }
 }
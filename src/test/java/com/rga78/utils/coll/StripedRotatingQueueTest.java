@@ -0,0 +1,133 @@
+package com.rga78.utils.coll;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class StripedRotatingQueueTest {
+
+    /**
+     *
+     */
+    @Test
+    public void testStripeCount() {
+        StripedRotatingQueue<String> q = new StripedRotatingQueue<String>(3, 4);
+        assertEquals(4, q.getStripeCount());
+        assertEquals(16, q.getCapacity());
+
+        assertEquals(1, new StripedRotatingQueue<String>(1, 4).getStripeCount());
+    }
+
+    /**
+     * A single thread writes a single stripe: same as SimpleRotatingQueue.
+     */
+    @Test
+    public void testSingleWriter() {
+        StripedRotatingQueue<String> q = new StripedRotatingQueue<String>(1, 3);
+
+        q.add("a");
+        q.add("b");
+        assertArrayEquals(new String[] { null, "a", "b" }, q.toArray(new String[0]));
+
+        q.add("c");
+        q.add("d");
+        assertArrayEquals(new String[] { "b", "c", "d" }, q.toArray(new String[3]));
+    }
+
+    /**
+     * The elements of all writers are merged in the order they were added.
+     */
+    @Test
+    public void testMerge() throws Exception {
+        final StripedRotatingQueue<String> q = new StripedRotatingQueue<String>(4, 10);
+
+        // Writers take turns, so the order they add in is known.
+        List<String> added = new ArrayList<String>();
+        for (int i = 0; i < 4; ++i) {
+            final String element = "element-" + i;
+            Thread writer = new Thread() {
+                public void run() {
+                    q.add(element);
+                }
+            };
+            writer.start();
+            writer.join();
+            added.add(element);
+        }
+
+        String[] snapshot = q.toArray(new String[0]);
+        assertEquals(40, snapshot.length);
+        assertNull(snapshot[35]);
+        assertEquals(added, Arrays.asList(snapshot).subList(36, 40));
+    }
+
+    /**
+     * Snapshots taken while writers on several stripes are adding: the merge must
+     * keep each writer's elements in the order that writer added them, with no duplicates.
+     */
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final StripedRotatingQueue<long[]> q = new StripedRotatingQueue<long[]>(4, 8);
+        final int writerCount = 8;
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int w = 0; w < writerCount; ++w) {
+            final int writer = w;
+            writers.add(new Thread() {
+                public void run() {
+                    for (long i = 0; !done.get(); ++i) {
+                        q.add(new long[] { writer, i });
+                    }
+                }
+            });
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+
+        // The writers only stop once the snapshots are done, so every snapshot runs against live writers.
+        int mergedCount = 0;
+        try {
+            long[][] snapshot = new long[q.getCapacity()][];
+            for (int i = 0; i < 20000; ++i) {
+                q.toArray(snapshot);
+                long[] last = new long[writerCount];
+                Arrays.fill(last, -1);
+                int writersSeen = 0;
+                for (long[] element : snapshot) {
+                    if (element != null) {
+                        int writer = (int) element[0];
+                        assertTrue(element[1] > last[writer]);
+                        if (last[writer] < 0) {
+                            ++writersSeen;
+                        }
+                        last[writer] = element[1];
+                    }
+                }
+                if (writersSeen > 1) {
+                    ++mergedCount;
+                }
+            }
+        } finally {
+            done.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+
+        // The snapshots actually merged several writers' elements.
+        assertTrue(mergedCount > 0);
+    }
+}
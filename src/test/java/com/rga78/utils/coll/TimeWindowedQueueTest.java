@@ -0,0 +1,154 @@
+package com.rga78.utils.coll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class TimeWindowedQueueTest {
+
+    /**
+     * Manually advanced clock, in seconds.
+     */
+    private final AtomicLong seconds = new AtomicLong(1000);
+
+    private final LongSupplier clock = new LongSupplier() {
+        public long getAsLong() {
+            return TimeUnit.SECONDS.toNanos( seconds.get() );
+        }
+    };
+
+    /**
+     *
+     */
+    @Test
+    public void testSnapshotAndExpiry() {
+        // 10s window, 1s buckets.
+        TimeWindowedQueue<String> q = new TimeWindowedQueue<String>(10, TimeUnit.SECONDS, 10, 100, clock);
+
+        q.add("a");
+        seconds.addAndGet(3);
+        q.add("b");
+        q.add("c");
+        seconds.addAndGet(5);
+        q.add("d");
+
+        assertEquals(Arrays.asList("a", "b", "c", "d"), q.snapshot());
+        assertEquals(Arrays.asList("b", "c", "d"), q.snapshot(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("d"), q.snapshot(1, TimeUnit.SECONDS));
+
+        // "a" expires.
+        seconds.addAndGet(4);
+        assertEquals(Arrays.asList("b", "c", "d"), q.snapshot());
+        assertEquals(3, q.getCount());
+
+        // Everything expires; the buckets are rolled over as time moves into them.
+        seconds.addAndGet(20);
+        assertEquals(0, q.snapshot().size());
+        assertEquals(0, q.getCount());
+        q.add("e");
+        assertEquals(Arrays.asList("e"), q.snapshot());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCountAndRate() {
+        TimeWindowedQueue<Integer> q = new TimeWindowedQueue<Integer>(60, TimeUnit.SECONDS, 60, 10, clock);
+
+        // 20 elements per second for 30 seconds (more than the bucket capacity).
+        for (int s = 0; s < 30; ++s) {
+            for (int i = 0; i < 20; ++i) {
+                q.add(i);
+            }
+            seconds.incrementAndGet();
+        }
+
+        assertEquals(600, q.getCount());
+        assertEquals(200, q.getCount(10, TimeUnit.SECONDS));
+        assertEquals(20.0, q.getRate(10, TimeUnit.SECONDS), 0.001);
+        assertEquals(10.0, q.getRate(60, TimeUnit.SECONDS), 0.001);
+
+        // Only the last bucketCapacity elements are kept per bucket.
+        assertEquals(100, q.snapshot(10, TimeUnit.SECONDS).size());
+    }
+
+    /**
+     * A full bucket keeps its last bucketCapacity elements.  A slot's storage is reused
+     * by later buckets, without the expired elements leaking into snapshots.
+     */
+    @Test
+    public void testBucketKeepsLastAndIsReused() {
+        // 4s window, 1s buckets (5 slots), 3 elements per bucket.
+        TimeWindowedQueue<Integer> q = new TimeWindowedQueue<Integer>(4, TimeUnit.SECONDS, 4, 3, clock);
+
+        for (int i = 0; i < 5; ++i) {
+            q.add(i);
+        }
+        assertEquals(Arrays.asList(2, 3, 4), q.snapshot());
+        assertEquals(5, q.getCount());
+
+        // 5 seconds later: same slot, next time around.
+        seconds.addAndGet(5);
+        q.add(10);
+        assertEquals(Arrays.asList(10), q.snapshot());
+        assertEquals(1, q.getCount());
+
+        for (int i = 11; i < 20; ++i) {
+            q.add(i);
+        }
+        assertEquals(Arrays.asList(17, 18, 19), q.snapshot());
+        assertEquals(10, q.getCount());
+
+        // Zero capacity: counted only.
+        TimeWindowedQueue<Integer> counter = new TimeWindowedQueue<Integer>(4, TimeUnit.SECONDS, 4, 0, clock);
+        counter.add(1);
+        counter.add(2);
+        assertEquals(2, counter.getCount());
+        assertEquals(0, counter.snapshot().size());
+    }
+
+    /**
+     * A span that starts mid-bucket: the oldest bucket's count is interpolated.
+     */
+    @Test
+    public void testInterpolation() {
+        TimeWindowedQueue<String> q = new TimeWindowedQueue<String>(40, TimeUnit.SECONDS, 4, 100, clock);
+
+        // seconds = 1000: bucket [1000, 1010).
+        for (int i = 0; i < 10; ++i) {
+            q.add("x");
+        }
+        seconds.set(1015);
+        q.add("y");
+
+        // Span [1005, 1015]: half of the first bucket's 10, plus 1.
+        assertEquals(6, q.getCount(10, TimeUnit.SECONDS));
+        assertEquals(11, q.getCount(15, TimeUnit.SECONDS));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCoarseClock() throws Exception {
+        CoarseClock coarse = new CoarseClock(1, TimeUnit.MILLISECONDS);
+        try {
+            long start = coarse.nanoTime();
+            Thread.sleep(50);
+            assertTrue(coarse.nanoTime() > start);
+            assertTrue(coarse.nanoTime() <= System.nanoTime());
+        } finally {
+            coarse.stop();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.rga78.utils.proc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class AsyncLineListenerTest {
+
+    /**
+     *
+     */
+    @Test
+    public void testSlowListenerDoesNotStallReader() throws Exception {
+        final List<String> received = new ArrayList<String>();
+        LineListener slow = new LineListener() {
+            public void onLines(ProcessHelper.Stream stream, LineBlock lines) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (received) {
+                    received.addAll(lines);
+                }
+            }
+        };
+        AsyncLineListener async = new AsyncLineListener(slow, 100000);
+
+        ProcessHelper<?> processHelper = new ProcessHelper( ProcessHelperTest.sh("i=0; while [ $i -lt 2000 ]; do echo $i; i=$((i+1)); done") )
+                                                .addLineListener(ProcessHelper.Stream.STDOUT, async)
+                                                .waitFor();
+        processHelper.getStdout();
+
+        assertTrue(async.awaitDrained(30, TimeUnit.SECONDS));
+        assertEquals(0, async.getDroppedLines());
+        synchronized (received) {
+            assertEquals(2000, received.size());
+            for (int i = 0; i < 2000; ++i) {
+                assertEquals(Integer.toString(i), received.get(i));
+            }
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testDropWhenFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        LineListener blocked = new LineListener() {
+            public void onLines(ProcessHelper.Stream stream, LineBlock lines) {
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        AsyncLineListener async = new AsyncLineListener(blocked, 2);
+
+        LineBlock lines = new LineBlock( Charset.forName("UTF-8") );
+        lines.append("line");
+        for (int i = 0; i < 10; ++i) {
+            async.onLines(ProcessHelper.Stream.STDOUT, lines);
+        }
+        // One block is being delivered, two are queued.
+        assertTrue(async.getDroppedLines() >= 7);
+
+        release.countDown();
+        assertTrue(async.awaitDrained(10, TimeUnit.SECONDS));
+        assertEquals(0, async.getQueueSize());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testAddAndRemoveListenerWhileReading() throws Exception {
+        ProcessHelper<?> processHelper = new ProcessHelper( ProcessHelperTest.sh("echo 1; read x; echo 2; read y; echo 3") );
+        processHelper.spawnStreamReaders();
+
+        // Added after the readers were spawned.
+        LinePatternMatcher matcher = new LinePatternMatcher();
+        StreamCollector collector = new StreamCollector();
+        CompletableFuture<String> two = matcher.awaitLiteral("2");
+        // The collector is notified before the matcher (listeners are called in order),
+        // so it has seen "2" by the time the future completes.
+        processHelper.addObserver(ProcessHelper.Stream.STDOUT, collector)
+                     .addLineListener(ProcessHelper.Stream.STDOUT, matcher);
+
+        processHelper.getProcess().getOutputStream().write("x\n".getBytes());
+        processHelper.getProcess().getOutputStream().flush();
+        assertEquals("2", two.get(10, TimeUnit.SECONDS));
+
+        processHelper.removeObserver(ProcessHelper.Stream.STDOUT, collector);
+        processHelper.getProcess().getOutputStream().write("y\n".getBytes());
+        processHelper.getProcess().getOutputStream().close();
+        processHelper.waitFor();
+        processHelper.getStdout();
+
+        assertTrue(collector.getOutput().contains("2"));
+        assertTrue(!collector.getOutput().contains("3"));
+    }
+}
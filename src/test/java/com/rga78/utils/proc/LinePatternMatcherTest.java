@@ -0,0 +1,151 @@
+package com.rga78.utils.proc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class LinePatternMatcherTest {
+
+    /**
+     * Records the matching lines.
+     */
+    protected static class Recorder implements LinePatternMatcher.MatchListener {
+        final List<String> lines = new ArrayList<String>();
+
+        public void onMatch(ProcessHelper.Stream stream, String line) {
+            lines.add(line);
+        }
+    }
+
+    /**
+     * @return a LineBlock holding the given lines.
+     */
+    protected LineBlock block(Charset charset, String... lines) {
+        LineBlock retMe = new LineBlock(charset);
+        for (String line : lines) {
+            retMe.append(line);
+        }
+        return retMe;
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testLiterals() throws Exception {
+        for (Charset charset : new Charset[] { Charset.forName("UTF-8"), Charset.forName("UTF-16") }) {
+            Recorder he = new Recorder();
+            Recorder she = new Recorder();
+            Recorder hers = new Recorder();
+            Recorder empty = new Recorder();
+
+            LinePatternMatcher matcher = new LinePatternMatcher()
+                                                .addLiteral("he", he)
+                                                .addLiteral("she", she)
+                                                .addLiteral("hers", hers);
+            matcher.onLines(ProcessHelper.Stream.STDOUT, block(charset, "ushers", "nothing", "he he", "café she"));
+            matcher.addLiteral("", empty);
+            matcher.onLines(ProcessHelper.Stream.STDOUT, block(charset, "x", ""));
+
+            assertEquals(Arrays.asList("ushers", "he he", "café she"), he.lines);
+            assertEquals(Arrays.asList("ushers", "café she"), she.lines);
+            assertEquals(Arrays.asList("ushers"), hers.lines);
+            assertEquals(Arrays.asList("x", ""), empty.lines);
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testPatterns() throws Exception {
+        Recorder err = new Recorder();
+        Recorder warn = new Recorder();
+        Recorder backref = new Recorder();
+
+        LinePatternMatcher matcher = new LinePatternMatcher()
+                                            .addPattern(Pattern.compile("ERR-\\d+"), err)
+                                            .addPattern(Pattern.compile("WARN(ING)?"), warn);
+        matcher.onLines(ProcessHelper.Stream.STDERR, block(Charset.forName("UTF-8"), "ERR-12 WARNING", "ERR-x", "WARN"));
+
+        assertEquals(Arrays.asList("ERR-12 WARNING"), err.lines);
+        assertEquals(Arrays.asList("ERR-12 WARNING", "WARN"), warn.lines);
+
+        // Backreferences can't be combined.
+        matcher.addPattern(Pattern.compile("(a)\\1"), backref);
+        matcher.onLines(ProcessHelper.Stream.STDERR, block(Charset.forName("UTF-8"), "aa", "ab"));
+        assertEquals(Arrays.asList("aa"), backref.lines);
+    }
+
+    /**
+     * A listener added for several literals/regexes is notified once per line.
+     */
+    @Test
+    public void testListenerNotifiedOncePerLine() throws Exception {
+        for (Charset charset : new Charset[] { Charset.forName("UTF-8"), Charset.forName("UTF-16") }) {
+            Recorder recorder = new Recorder();
+            LinePatternMatcher matcher = new LinePatternMatcher()
+                                                .addLiteral("foo", recorder)
+                                                .addLiteral("bar", recorder)
+                                                .addPattern(Pattern.compile("ba[rz]"), recorder);
+            matcher.onLines(ProcessHelper.Stream.STDOUT, block(charset, "foo bar", "baz", "none"));
+
+            assertEquals(Arrays.asList("foo bar", "baz"), recorder.lines);
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testAwait() throws Exception {
+        LinePatternMatcher matcher = new LinePatternMatcher();
+        CompletableFuture<String> ready = matcher.awaitLiteral("ready");
+        CompletableFuture<String> port = matcher.awaitPattern(Pattern.compile("port \\d+"));
+        CompletableFuture<String> never = matcher.awaitLiteral("never");
+
+        new ProcessHelper( ProcessHelperTest.sh("echo starting; echo listening on port 8080; echo ready") )
+                .addLineListener(matcher)
+                .waitFor();
+
+        assertEquals("ready", ready.get(10, TimeUnit.SECONDS));
+        assertEquals("listening on port 8080", port.get(10, TimeUnit.SECONDS));
+        assertFalse(never.isDone());
+    }
+
+    /**
+     * Completed (or cancelled) awaits are removed, so they don't pile up.
+     */
+    @Test
+    public void testAwaitIsRemoved() throws Exception {
+        Recorder recorder = new Recorder();
+        LinePatternMatcher matcher = new LinePatternMatcher().addLiteral("a", recorder);
+
+        for (int i = 0; i < 100; ++i) {
+            CompletableFuture<String> literal = matcher.awaitLiteral("a");
+            CompletableFuture<String> pattern = matcher.awaitPattern(Pattern.compile("a"));
+            matcher.onLines(ProcessHelper.Stream.STDOUT, block(Charset.forName("UTF-8"), "a"));
+            assertEquals("a", literal.get());
+            assertEquals("a", pattern.get());
+        }
+        matcher.awaitLiteral("never").cancel(false);
+
+        assertEquals(1, matcher.getPatternCount());
+        assertEquals(100, recorder.lines.size());
+
+        matcher.removeListener(recorder);
+        assertEquals(0, matcher.getPatternCount());
+    }
+}
@@ -0,0 +1,60 @@
+package com.rga78.utils.proc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class LineSplitterTest {
+
+    /**
+     * @return the lines from splitting the given chunks.
+     */
+    protected List<String> split(String... chunks) throws Exception {
+        final List<String> lines = new ArrayList<String>();
+
+        LineSplitter lineSplitter = new LineSplitter( new LineSplitter.LineHandler() {
+            public void onLine(byte[] buf, int off, int len) {
+                lines.add( new String(buf, off, len) );
+            }
+        });
+
+        for (String chunk : chunks) {
+            byte[] bytes = ("xx" + chunk + "yy").getBytes();
+            lineSplitter.write(bytes, 2, bytes.length - 4);
+        }
+        lineSplitter.flush();
+
+        return lines;
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testSplit() throws Exception {
+        assertEquals(Arrays.asList(), split());
+        assertEquals(Arrays.asList(), split(""));
+        assertEquals(Arrays.asList("a"), split("a"));
+        assertEquals(Arrays.asList("a"), split("a\n"));
+        assertEquals(Arrays.asList("a", "", "b"), split("a\n\nb"));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), split("a\r\nb\rc\nd\r\n"));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testSplitAcrossChunks() throws Exception {
+        assertEquals(Arrays.asList("abc", "def"), split("a", "b", "c\nd", "ef"));
+        assertEquals(Arrays.asList("a", "b"), split("a\r", "\nb"));
+        assertEquals(Arrays.asList("a", "", "b"), split("a\r", "\r", "\nb"));
+        assertEquals(Arrays.asList("a", "b"), split("a\r", "", "b"));
+    }
+}
@@ -0,0 +1,105 @@
+package com.rga78.utils.proc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ProcessExceptionTest {
+
+    /**
+     *
+     */
+    @Test
+    public void testMessage() throws Exception {
+        ProcessException pe = new ProcessException(2, "my process", Arrays.asList("out1", "out2"), Arrays.asList("err1"));
+
+        assertEquals(2, pe.getExitValue());
+        assertEquals("my process", pe.getDescription());
+        assertEquals(Arrays.asList("out1", "out2"), pe.getStdout());
+        assertEquals(Arrays.asList("err1"), pe.getStderr());
+
+        assertEquals("Process failed with exitValue 2; Description: my process"
+                     + "; =====stdout================================================\nout1\nout2"
+                     + "; =====stderr================================================\nerr1",
+                     pe.getMessage());
+        assertSame(pe.getMessage(), pe.getMessage());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testMessageIsCapped() throws Exception {
+        List<String> stdout = new ArrayList<String>();
+        for (int i = 0; i < 10000; ++i) {
+            stdout.add("stdout line " + i);
+        }
+        char[] longLine = new char[ProcessException.MAX_MESSAGE_BYTES * 2];
+        Arrays.fill(longLine, 'x');
+        List<String> stderr = Arrays.asList("err1", new String(longLine) + "END");
+
+        String message = new ProcessException(1, "big", stdout, stderr).getMessage();
+
+        assertTrue(message.getBytes("UTF-8").length <= ProcessException.MAX_MESSAGE_BYTES);
+        assertTrue(message.contains("lines omitted)\nstdout line"));
+        assertTrue(message.contains("stdout line 9999; =====stderr"));
+        assertTrue(message.contains("(1 lines omitted)\n...xxx"));
+        assertTrue(message.endsWith("xxxEND"));
+    }
+
+    /**
+     * The cap is in bytes: multi-byte characters count for their encoded size.
+     */
+    @Test
+    public void testMessageIsCappedInBytes() throws Exception {
+        List<String> stdout = new ArrayList<String>();
+        for (int i = 0; i < 10000; ++i) {
+            stdout.add("\u00e9\u4e2d\ud83d\ude00 " + i);
+        }
+        char[] longLine = new char[ProcessException.MAX_MESSAGE_BYTES];
+        Arrays.fill(longLine, '\u4e2d');
+        List<String> stderr = Arrays.asList(new String(longLine));
+
+        String message = new ProcessException(1, "wide", stdout, stderr).getMessage();
+
+        assertTrue(message.getBytes("UTF-8").length <= ProcessException.MAX_MESSAGE_BYTES);
+        assertTrue(message.getBytes("UTF-8").length > ProcessException.MAX_MESSAGE_BYTES - 100);
+        assertTrue(message.contains("\u00e9\u4e2d\ud83d\ude00 9999; =====stderr"));
+    }
+
+    /**
+     * The captured tails needn't be Serializable.
+     */
+    @Test
+    public void testSerializable() throws Exception {
+        TailBuffer stderr = new TailBuffer(10);
+        stderr.add("err1", 4);
+
+        ProcessException pe = new ProcessException(3, "tails", Arrays.asList("out1"), stderr);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(pe);
+        oos.close();
+        ProcessException copy = (ProcessException) new ObjectInputStream( new ByteArrayInputStream(bytes.toByteArray()) ).readObject();
+
+        assertEquals(3, copy.getExitValue());
+        assertEquals("tails", copy.getDescription());
+        assertEquals(Arrays.asList("out1"), copy.getStdout());
+        assertEquals(Arrays.asList("err1"), copy.getStderr());
+        assertEquals(pe.getMessage(), copy.getMessage());
+    }
+}
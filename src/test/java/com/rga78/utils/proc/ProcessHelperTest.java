@@ -0,0 +1,496 @@
+package com.rga78.utils.proc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ProcessHelperTest {
+
+    /**
+     * @return a started process running the given shell script.
+     */
+    protected static Process sh(String script) throws Exception {
+        return new ProcessBuilder("sh", "-c", script).start();
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testWaitFor() throws Exception {
+
+        ProcessHelper<?> processHelper = new ProcessHelper(sh("echo line1; echo line2; echo err1 1>&2")).waitFor();
+
+        assertEquals(0, processHelper.exitValue());
+        assertEquals(Arrays.asList("line1", "line2"), processHelper.getStdout());
+        assertEquals(Arrays.asList("err1"), processHelper.getStderr());
+        assertEquals(Arrays.asList("line1", "line2", "err1"), processHelper.getOutput());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testInjectedExecutorIsNotShutdown() throws Exception {
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            new ProcessHelper(sh("echo 1"), executorService).waitFor();
+
+            ProcessHelper<?> processHelper = new ProcessHelper(sh("echo 2"), executorService).waitFor();
+
+            assertFalse(executorService.isShutdown());
+            assertEquals(Arrays.asList("2"), processHelper.getStdout());
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testSharedExecutor() throws Exception {
+
+        ProcessHelper<?> processHelper = new ProcessHelper(sh("echo shared")).useSharedExecutor().waitFor();
+
+        assertFalse(ReaderExecutors.shared().isShutdown());
+        assertEquals(Arrays.asList("shared"), processHelper.getStdout());
+
+        processHelper = new ProcessHelper(sh("echo virtual")).useVirtualThreads().waitFor();
+        assertEquals(Arrays.asList("virtual"), processHelper.getStdout());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testReactor() throws Exception {
+
+        ProcessReactor reactor = new ProcessReactor();
+        try {
+            List<ProcessHelper<?>> processHelpers = new ArrayList<ProcessHelper<?>>();
+            for (int i = 0; i < 20; ++i) {
+                processHelpers.add( new ProcessHelper(sh("for i in 1 2 3; do echo out" + i + "-$i; done; echo err" + i + " 1>&2"))
+                                            .setReactor(reactor)
+                                            .spawnStreamReaders() );
+            }
+
+            for (int i = 0; i < processHelpers.size(); ++i) {
+                ProcessHelper<?> processHelper = processHelpers.get(i).waitFor();
+                assertEquals(Arrays.asList("out" + i + "-1", "out" + i + "-2", "out" + i + "-3"), processHelper.getStdout());
+                assertEquals(Arrays.asList("err" + i), processHelper.getStderr());
+            }
+        } finally {
+            reactor.close();
+        }
+    }
+
+    /**
+     * End-of-stream is detected while the process is still alive (it closed its stdout),
+     * and a stream that's quiet for a while still gets its later output.
+     */
+    @Test
+    public void testReactorEofWhileAlive() throws Exception {
+
+        ProcessReactor reactor = new ProcessReactor(1, 10, ReaderExecutors.shared())
+                                        .setProbeAfter(50, TimeUnit.MILLISECONDS);
+        Process process = sh("echo a; sleep 0.3; echo b; exec 1>&-; sleep 30");
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            CompletableFuture<Void> future = reactor.register( process,
+                                                               process.getInputStream(),
+                                                               new RawStreamPiper(output) );
+
+            future.get(10, TimeUnit.SECONDS);
+            assertTrue(process.isAlive());
+            assertEquals("a\nb\n", output.toString());
+        } finally {
+            process.destroyForcibly();
+            reactor.close();
+        }
+    }
+
+    /**
+     * A stream that's probed over and over (it's quiet for longer than the probe time
+     * between lines) is only ever read by one thread at a time, so nothing is reordered.
+     */
+    @Test
+    public void testReactorProbeKeepsOrder() throws Exception {
+
+        ProcessReactor reactor = new ProcessReactor(2, 1, ReaderExecutors.shared())
+                                        .setProbeAfter(1, TimeUnit.MILLISECONDS);
+        try {
+            StringBuilder expected = new StringBuilder();
+            for (int i = 1; i <= 100; ++i) {
+                expected.append(i).append('\n');
+            }
+
+            Process process = sh("i=1; while [ $i -le 100 ]; do echo $i; sleep 0.005; i=$((i+1)); done");
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            reactor.register( process, process.getInputStream(), new RawStreamPiper(output) )
+                   .get(30, TimeUnit.SECONDS);
+
+            assertEquals(expected.toString(), output.toString());
+        } finally {
+            reactor.close();
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testPipeRawTo() throws Exception {
+
+        File file = File.createTempFile("ProcessHelperTest", ".out");
+        file.deleteOnExit();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        StreamCollector stderrCollector = new StreamCollector();
+
+        ProcessHelper<?> processHelper = new ProcessHelper(sh("printf 'a\\r\\nb'; printf 'c\\nd' 1>&2"))
+                                                .pipeRawTo(ProcessHelper.Stream.STDOUT, file)
+                                                .pipeRawTo(ProcessHelper.Stream.STDERR, stderr)
+                                                .addObserver(ProcessHelper.Stream.STDERR, stderrCollector)
+                                                .waitFor();
+
+        // stdout has no observers so it isn't split into lines.
+        assertTrue(processHelper.getStdout().isEmpty());
+        assertEquals(Arrays.asList("c", "d"), processHelper.getStderr());
+
+        // Raw bytes are copied as-is.
+        assertEquals("a\r\nb", new String(Files.readAllBytes(file.toPath())));
+        assertEquals("c\nd", stderr.toString());
+        assertEquals(Arrays.asList("c", "d"), stderrCollector.getOutput());
+    }
+
+    /**
+     * The file isn't opened until the process is started, so nothing leaks if it never is.
+     */
+    @Test
+    public void testPipeRawToFileIsLazy() throws Exception {
+
+        File file = new File( System.getProperty("java.io.tmpdir"), "ProcessHelperTest-" + System.nanoTime() + ".out" );
+        file.deleteOnExit();
+
+        ProcessHelper<?> processHelper = new ProcessHelper(sh("true"))
+                                                .pipeRawTo(ProcessHelper.Stream.STDOUT, file);
+        assertFalse(file.exists());
+
+        // Created (empty) even though there's no output.
+        assertTrue( processHelper.waitFor(Duration.ofSeconds(30)) );
+        assertTrue(file.exists());
+        assertEquals(0, file.length());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCharset() throws Exception {
+
+        // "\303\251" is e-acute in UTF-8
+        ProcessHelper<?> processHelper = new ProcessHelper(sh("printf 'caf\\303\\251\\nx'"))
+                                                .setCharset(Charset.forName("UTF-8"))
+                                                .waitFor();
+        assertEquals(Arrays.asList("caf\u00e9", "x"), processHelper.getStdout());
+
+        processHelper = new ProcessHelper(sh("printf 'caf\\303\\251\\nx'"))
+                                .setCharset(Charset.forName("ISO-8859-1"))
+                                .waitFor();
+        assertEquals(Arrays.asList("caf\u00c3\u00a9", "x"), processHelper.getStdout());
+
+        // UTF-16 is read via BufferedReader.
+        processHelper = new ProcessHelper(sh("printf '\\000a\\000\\n\\000b'"))
+                                .setCharset(Charset.forName("UTF-16BE"))
+                                .waitFor();
+        assertEquals(Arrays.asList("a", "b"), processHelper.getStdout());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testLineListener() throws Exception {
+
+        final List<Integer> blockSizes = new ArrayList<Integer>();
+        StreamCollector collector = new StreamCollector();
+
+        ProcessHelper<?> processHelper = new ProcessHelper(sh("seq 1 10000"))
+                                                .addLineListener(ProcessHelper.Stream.STDOUT, collector)
+                                                .addLineListener(ProcessHelper.Stream.STDOUT, new LineListener() {
+                                                    public void onLines(ProcessHelper.Stream stream, LineBlock lines) {
+                                                        blockSizes.add(lines.size());
+                                                    }
+                                                })
+                                                .setTailCapacity(10)
+                                                .waitFor();
+
+        assertEquals(Arrays.asList("9991", "9992", "9993", "9994", "9995", "9996", "9997", "9998", "9999", "10000"), processHelper.getStdout());
+        assertEquals(10000, collector.getOutput().size());
+        assertEquals("1", collector.getOutput().get(0));
+        assertEquals("10000", collector.getOutput().get(9999));
+
+        // Lines are delivered in blocks, not one at a time.
+        int total = 0;
+        for (int blockSize : blockSizes) {
+            total += blockSize;
+        }
+        assertEquals(10000, total);
+        assertTrue(blockSizes.size() < 10000);
+    }
+
+    /**
+     * Under continuous output, the BufferedReader path (for charsets like UTF-16) 
+     * dispatches bounded blocks rather than waiting for the stream to go quiet.
+     */
+    @Test
+    public void testReaderBlocksAreBounded() throws Exception {
+
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < 5000; ++i) {
+            output.append("line").append(i).append('\n');
+        }
+
+        final List<Integer> blockSizes = new ArrayList<Integer>();
+        ProcessHelper<?> processHelper = new ProcessHelper(sh("true"))
+                                                .setCharset(Charset.forName("UTF-16BE"))
+                                                .addLineListener(ProcessHelper.Stream.STDOUT, new LineListener() {
+                                                    public void onLines(ProcessHelper.Stream stream, LineBlock lines) {
+                                                        blockSizes.add(lines.size());
+                                                    }
+                                                });
+
+        // Always ready(), like a process that never stops writing.
+        List<String> tail = processHelper.loadStream( ProcessHelper.Stream.STDOUT, 
+                                                      new ByteArrayInputStream( output.toString().getBytes("UTF-16BE") ) );
+
+        assertEquals("line4999", tail.get(tail.size() - 1));
+        int total = 0;
+        for (int blockSize : blockSizes) {
+            assertTrue(blockSize <= 1024);
+            total += blockSize;
+        }
+        assertEquals(5000, total);
+    }
+
+    /**
+     * Subclasses that override the old per-line notifyObservers hook still see every line.
+     */
+    @Test
+    public void testNotifyObserversOverride() throws Exception {
+
+        final List<String> lines = new ArrayList<String>();
+        StreamCollector collector = new StreamCollector();
+
+        new ProcessHelper(sh("echo a; echo b")) {
+                    protected void notifyObservers(ProcessHelper.Stream stream, String line) {
+                        lines.add(line);
+                        super.notifyObservers(stream, line);
+                    }
+                }
+                .addObserver(ProcessHelper.Stream.STDOUT, collector)
+                .waitFor()
+                .getStdout();
+
+        assertEquals(Arrays.asList("a", "b"), lines);
+        assertEquals(Arrays.asList("a", "b"), collector.getOutput());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testOnExit() throws Exception {
+
+        List<CompletableFuture<ProcessResult>> results = new ArrayList<CompletableFuture<ProcessResult>>();
+        for (int i = 0; i < 10; ++i) {
+            results.add( new ProcessHelper(sh("echo out" + i + "; echo err" + i + " 1>&2; exit " + i))
+                                .useSharedExecutor()
+                                .setDescription("process" + i)
+                                .onExit() );
+        }
+
+        for (int i = 0; i < results.size(); ++i) {
+            ProcessResult result = results.get(i).get();
+            assertEquals(i, result.getExitValue());
+            assertEquals("process" + i, result.getDescription());
+            assertEquals(Arrays.asList("out" + i), result.getStdout());
+            assertEquals(Arrays.asList("err" + i), result.getStderr());
+            assertTrue(result.getStartNanos() <= result.getExitNanos());
+            assertTrue(result.getExitNanos() <= result.getDoneNanos());
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testWaitForTimeout() throws Exception {
+
+        ProcessHelper<?> processHelper = new ProcessHelper(sh("echo hi; exit 3"));
+        assertTrue( processHelper.waitFor(Duration.ofSeconds(10)) );
+        assertEquals(3, processHelper.exitValue());
+        assertNull( processHelper.getTeardownReport() );
+
+        processHelper = new ProcessHelper(sh("sleep 10"));
+        assertFalse( processHelper.waitFor(Duration.ofMillis(100)) );
+
+        processHelper.waitFor(Duration.ofMillis(100), Duration.ofSeconds(5));
+        TeardownReport teardownReport = processHelper.getTeardownReport();
+        assertTrue( teardownReport.isExited() );
+        assertFalse( processHelper.getProcess().isAlive() );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testTeardownEscalation() throws Exception {
+
+        // Ignores SIGTERM, so it must be destroyed forcibly.
+        ProcessHelper<?> processHelper = new ProcessHelper(sh("trap '' TERM; echo started; while true; do sleep 0.05; done"))
+                                                .waitFor(Duration.ofMillis(300), Duration.ofMillis(300));
+
+        TeardownReport teardownReport = processHelper.getTeardownReport();
+        assertTrue( teardownReport.isExited() );
+        assertTrue( teardownReport.isForcibly() );
+        assertTrue( teardownReport.getDestroyMillis() >= 250 );
+        assertFalse( processHelper.getProcess().isAlive() );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testTeardownCancelsReaders() throws Exception {
+
+        // The background sleep keeps stdout open after the shell is destroyed.
+        ProcessHelper<?> processHelper = new ProcessHelper(sh("sleep 3 & wait"))
+                                                .waitFor(Duration.ofMillis(100), Duration.ofMillis(200));
+
+        TeardownReport teardownReport = processHelper.getTeardownReport();
+        assertTrue( teardownReport.isExited() );
+        assertTrue( teardownReport.isReadersCancelled() );
+        assertTrue( teardownReport.getTotalMillis() < 2000 );
+        assertEquals( "stdout could not be retrieved due to exception", processHelper.getStdoutNow().get(0) );
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testFeedStdinLines() throws Exception {
+
+        ProcessHelper<?> processHelper = new ProcessHelper( new ProcessBuilder("wc", "-l").start() )
+                                                .feedStdin( Arrays.asList("a", "b", "c").iterator() )
+                                                .waitFor();
+
+        assertEquals("3", processHelper.getStdout().get(0).trim());
+        assertEquals(Long.valueOf(6), processHelper.getStdinFeed().get());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testFeedStdinLarge() throws Exception {
+
+        // Bigger than the pipe buffers, in both directions.
+        byte[] input = new byte[8 * 1024 * 1024];
+        Arrays.fill(input, (byte) 'x');
+        File file = File.createTempFile("feed", ".in");
+        file.deleteOnExit();
+        Files.write(file.toPath(), input);
+
+        for (int i = 0; i < 2; ++i) {
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ProcessHelper<?> processHelper = new ProcessHelper( new ProcessBuilder("cat").start() )
+                                                    .useSharedExecutor()
+                                                    .pipeRawTo(ProcessHelper.Stream.STDOUT, stdout);
+            if (i == 0) {
+                processHelper.feedStdin( new ByteArrayInputStream(input) );
+            } else {
+                processHelper.feedStdin( file.toPath() );
+            }
+            processHelper.waitFor();
+            processHelper.getStdout();
+
+            assertEquals(Long.valueOf(input.length), processHelper.getStdinFeed().get());
+            assertEquals(input.length, stdout.size());
+        }
+    }
+
+    /**
+     * The feeder doesn't take a thread from a bounded reader executor, so it can't
+     * starve the stderr reader (which would deadlock: the process blocks writing stderr,
+     * and the feeder blocks writing stdin).
+     */
+    @Test
+    public void testFeedStdinBoundedExecutor() throws Exception {
+
+        byte[] input = new byte[4 * 1024 * 1024];
+        Arrays.fill(input, (byte) 'x');
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            ProcessHelper<?> processHelper = new ProcessHelper( sh("cat 1>&2"), executorService )
+                                                    .feedStdin( new ByteArrayInputStream(input) )
+                                                    .spawnStreamReaders();
+
+            assertTrue( processHelper.waitFor(Duration.ofSeconds(30)) );
+            assertEquals(Long.valueOf(input.length), processHelper.getStdinFeed().get());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testFeedStdinProcessExitsEarly() throws Exception {
+
+        Iterator<String> endless = new Iterator<String>() {
+            public boolean hasNext() { return true; }
+            public String next() { return "line"; }
+            public void remove() { throw new UnsupportedOperationException(); }
+        };
+
+        ProcessHelper<?> processHelper = new ProcessHelper( new ProcessBuilder("head", "-1").start() )
+                                                .feedStdin(endless)
+                                                .waitFor();
+
+        assertEquals(Arrays.asList("line"), processHelper.getStdout());
+        try {
+            processHelper.getStdinFeed().get();
+            fail("expected the feed to fail");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.rga78.utils.proc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ProcessMetricsTest {
+
+    /**
+     *
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        ProcessMetricsRegistry registry = new ProcessMetricsRegistry();
+
+        ProcessHelper<?> processHelper = ProcessHelper.start( new ProcessBuilder("sh", "-c", "echo line1; echo line2; echo err 1>&2") )
+                                                      .recordMetricsTo(registry);
+        processHelper.waitFor( Duration.ofSeconds(30) );
+
+        ProcessMetrics metrics = processHelper.getMetrics();
+        assertTrue(metrics.getForkNanos() > 0);
+        assertTrue(metrics.getTimeToFirstOutputNanos() > 0);
+        assertTrue(metrics.getWallNanos() >= metrics.getForkNanos());
+        assertTrue(metrics.getTotalNanos() >= metrics.getWallNanos());
+        assertEquals(12, metrics.getStdout().getBytes());
+        assertEquals(2, metrics.getStdout().getLines());
+        assertEquals(4, metrics.getStderr().getBytes());
+        assertEquals(1, metrics.getStderr().getLines());
+
+        assertEquals(1, registry.getForkNanos().getCount());
+        assertEquals(1, registry.getWallNanos().getCount());
+        assertEquals(12, registry.getStdoutBytes().getMax());
+    }
+
+    /**
+     * A stream that's only piped raw is copied in bulk, and still gets its
+     * time-to-first-output and read wait recorded.
+     */
+    @Test
+    public void testRawPipeMetrics() throws Exception {
+        File file = File.createTempFile("ProcessMetricsTest", ".out");
+        file.deleteOnExit();
+
+        ProcessHelper<?> processHelper = ProcessHelper.start( new ProcessBuilder("sh", "-c", "sleep 0.2; printf abc") )
+                                                      .pipeRawTo(ProcessHelper.Stream.STDOUT, file);
+        assertTrue( processHelper.waitFor( Duration.ofSeconds(30) ) );
+
+        ProcessMetrics metrics = processHelper.getMetrics();
+        assertEquals(3, metrics.getStdout().getBytes());
+        assertTrue(metrics.getTimeToFirstOutputNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(metrics.getStdout().getReadWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    /**
+     * A failed stream reader still shuts down the owned executor and records the metrics.
+     */
+    @Test
+    public void testMetricsRecordedWhenReaderFails() throws Exception {
+        ProcessMetricsRegistry registry = new ProcessMetricsRegistry();
+
+        ProcessHelper<?> processHelper = ProcessHelper.start( new ProcessBuilder("sh", "-c", "echo line1") )
+                                                      .addStreamHandler(ProcessHelper.Stream.STDOUT, new StreamHandler() {
+                                                          public void onData(byte[] buf, int off, int len) throws IOException {
+                                                              throw new IOException("handler failed");
+                                                          }
+                                                          public void onEnd() {}
+                                                      })
+                                                      .recordMetricsTo(registry);
+        try {
+            processHelper.onExit().get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException ee) {
+            assertTrue( ee.getCause().getCause() instanceof IOException );
+        }
+
+        assertTrue( processHelper.getExecutorService().isShutdown() );
+        assertTrue( processHelper.getMetrics().getWallNanos() > 0 );
+        assertEquals(1, registry.getWallNanos().getCount());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testHistogram() throws Exception {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(i);
+        }
+        histogram.record(-1);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getSum());
+        assertEquals(1000, histogram.getMax());
+
+        long p50 = histogram.getPercentile(50);
+        assertTrue("p50=" + p50, p50 >= 500 && p50 <= 500 * 1.125);
+        long p99 = histogram.getPercentile(99);
+        assertTrue("p99=" + p99, p99 >= 990 && p99 <= 1000);
+        assertEquals(1000, histogram.getPercentile(100));
+
+        for (long v : new long[] { 0, 7, 8, 15, 16, 1000, 123456789L, Long.MAX_VALUE }) {
+            int index = Histogram.bucketIndex(v);
+            assertTrue(v <= Histogram.bucketUpperBound(index));
+            assertTrue(index == 0 || v > Histogram.bucketUpperBound(index - 1));
+        }
+    }
+}
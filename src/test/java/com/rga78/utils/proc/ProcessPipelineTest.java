@@ -0,0 +1,110 @@
+package com.rga78.utils.proc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ProcessPipelineTest {
+
+    /**
+     * @return a ProcessBuilder for the given shell script.
+     */
+    protected static ProcessBuilder sh(String script) {
+        return new ProcessBuilder("sh", "-c", script);
+    }
+
+    /**
+     * @return the results of "printf | sort | uniq".
+     */
+    protected List<ProcessResult> sortUniq(boolean useNativePipeline) throws Exception {
+        return new ProcessPipeline( sh("printf 'b\\na\\nb\\nc\\n'"),
+                                    new ProcessBuilder("sort"),
+                                    new ProcessBuilder("uniq") )
+                        .setUseNativePipeline(useNativePipeline)
+                        .start()
+                        .waitFor();
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testNativePipeline() throws Exception {
+        List<ProcessResult> results = sortUniq(true);
+
+        assertEquals(3, results.size());
+        assertEquals(Arrays.asList("a", "b", "c"), results.get(2).getStdout());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testCopyingPipeline() throws Exception {
+        List<ProcessResult> results = sortUniq(false);
+
+        assertEquals(3, results.size());
+        assertEquals(Arrays.asList("a", "b", "c"), results.get(2).getStdout());
+        assertTrue(results.get(0).getStdout().isEmpty());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testStdin() throws Exception {
+        ProcessPipeline pipeline = new ProcessPipeline( new ProcessBuilder("cat"), new ProcessBuilder("wc", "-l") )
+                                        .setUseNativePipeline(false)
+                                        .start();
+        pipeline.getStdin().write("1\n2\n3\n".getBytes());
+        pipeline.getStdin().close();
+
+        List<ProcessResult> results = pipeline.waitFor();
+        assertEquals("3", results.get(1).getStdout().get(0).trim());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testDownstreamExitsEarly() throws Exception {
+        List<ProcessResult> results = new ProcessPipeline( sh("i=0; while [ $i -lt 100000 ]; do echo $i; i=$((i+1)); done; exit 0"),
+                                                           new ProcessBuilder("head", "-2") )
+                                            .setUseNativePipeline(false)
+                                            .start()
+                                            .onExit()
+                                            .get();
+
+        assertEquals(Arrays.asList("0", "1"), results.get(1).getStdout());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testStageFails() throws Exception {
+        for (boolean useNativePipeline : new boolean[] { true, false }) {
+            try {
+                new ProcessPipeline( sh("echo oops 1>&2; exit 3"), new ProcessBuilder("cat") )
+                        .setUseNativePipeline(useNativePipeline)
+                        .start()
+                        .waitFor();
+                fail("expected PipelineException");
+            } catch (PipelineException pe) {
+                assertEquals(3, pe.getResults().get(0).getExitValue());
+                assertEquals(Arrays.asList("oops"), pe.getResults().get(0).getStderr());
+                assertTrue(pe.getMessage().contains("stage 0 failed with exitValue 3"));
+                assertTrue(pe.getMessage().contains("oops"));
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.rga78.utils.proc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ProcessPoolTest {
+
+    /**
+     *
+     */
+    @Test
+    public void testLines() throws Exception {
+
+        ProcessPool pool = new ProcessPool(new ProcessBuilder("cat"), 3, 10, ProcessPool.LINES);
+        try {
+            List<CompletableFuture<String>> responses = new ArrayList<CompletableFuture<String>>();
+            for (int i = 0; i < 100; ++i) {
+                responses.add( pool.submit("request" + i) );
+            }
+
+            for (int i = 0; i < responses.size(); ++i) {
+                assertEquals("request" + i, responses.get(i).get());
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testLengthPrefixed() throws Exception {
+
+        ProcessPool pool = new ProcessPool(new ProcessBuilder("cat"), 1, 10, ProcessPool.LENGTH_PREFIXED);
+        try {
+            byte[] request = new byte[] { 0, 1, '\n', 3, '\r', 5 };
+            assertArrayEquals(request, pool.submit(request).get());
+            assertArrayEquals(new byte[0], pool.submit(new byte[0]).get());
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testBackpressure() throws Exception {
+
+        // The worker never responds, so the queue fills up.
+        ProcessPool pool = new ProcessPool(new ProcessBuilder("sleep", "10"), 1, 2, ProcessPool.LINES);
+        try {
+            pool.submit("1");
+            pool.submit("2");
+            pool.submit("3");
+
+            assertNull( pool.trySubmit("4".getBytes(), 100, TimeUnit.MILLISECONDS) );
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testWorkerDies() throws Exception {
+
+        // Each worker answers one request, then dies.
+        ProcessPool pool = new ProcessPool(new ProcessBuilder("sh", "-c", "read line; echo \"$line\"; echo bye 1>&2; exit 7"), 1, 10, ProcessPool.LINES);
+        try {
+            assertEquals("a", pool.submit("a").get());
+
+            try {
+                pool.submit("b").get();
+                fail("expected ExecutionException");
+            } catch (ExecutionException ee) {
+                assertTrue( ee.getCause() instanceof ProcessException );
+                assertTrue( ee.getCause().getMessage().contains("exitValue 7") );
+                assertTrue( ee.getCause().getMessage().contains("bye") );
+            }
+
+            // Restarted.
+            assertEquals("c", pool.submit("c").get());
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * A garbage length prefix fails the request rather than killing the worker thread.
+     */
+    @Test
+    public void testBadLengthPrefix() throws Exception {
+
+        // Each worker "responds" with a negative length.
+        ProcessPool pool = new ProcessPool(new ProcessBuilder("sh", "-c", "printf '\\377\\377\\377\\377'; cat > /dev/null"), 1, 10, ProcessPool.LENGTH_PREFIXED);
+        try {
+            for (int i = 0; i < 2; ++i) {
+                try {
+                    pool.submit(new byte[] { 1 }).get(10, TimeUnit.SECONDS);
+                    fail("expected ExecutionException");
+                } catch (ExecutionException ee) {
+                    assertTrue( ee.getCause() instanceof ProcessException );
+                    assertTrue( ee.getCause().getCause().getMessage().contains("Invalid response length -1") );
+                }
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testRequestTimeout() throws Exception {
+
+        // The worker never responds.
+        ProcessPool pool = new ProcessPool(new ProcessBuilder("sleep", "30"), 1, 10, ProcessPool.LINES)
+                                .setRequestTimeout(200, TimeUnit.MILLISECONDS);
+        try {
+            for (int i = 0; i < 2; ++i) {
+                try {
+                    pool.submit("a").get(10, TimeUnit.SECONDS);
+                    fail("expected ExecutionException");
+                } catch (ExecutionException ee) {
+                    assertTrue( ee.getCause() instanceof TimeoutException );
+                }
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * On close, the worker gets to exit on its own when its stdin is closed.
+     */
+    @Test
+    public void testGracefulClose() throws Exception {
+
+        File marker = File.createTempFile("ProcessPoolTest", ".marker");
+        marker.delete();
+        try {
+            ProcessPool pool = new ProcessPool(new ProcessBuilder("sh", "-c", "cat > /dev/null; sleep 1; touch " + marker.getPath()), 1, 10, ProcessPool.LINES);
+            pool.close();
+
+            for (int i = 0; i < 100 && !marker.exists(); ++i) {
+                Thread.sleep(100);
+            }
+            assertTrue( marker.exists() );
+        } finally {
+            marker.delete();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.rga78.utils.proc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class SpillFileTest {
+
+    /**
+     * Write the string to the SpillFile in chunks of the given size.
+     */
+    protected void write(SpillFile spill, String s, int chunkSize) throws Exception {
+        byte[] bytes = s.getBytes("UTF-8");
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            spill.onData(bytes, i, Math.min(chunkSize, bytes.length - i));
+        }
+        spill.onEnd();
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testLineTerminators() throws Exception {
+        for (int chunkSize : new int[] { 1, 2, 3, 1000 }) {
+            SpillFile spill = new SpillFile( Charset.forName("UTF-8") );
+            try {
+                write(spill, "a\r\nb\rc\n\nd", chunkSize);
+
+                List<String> lines = new ArrayList<String>();
+                for (String line : spill) {
+                    lines.add(line);
+                }
+                assertEquals(Arrays.asList("a", "b", "c", "", "d"), lines);
+                assertEquals(5, spill.getLineCount());
+                assertEquals("", spill.getLine(3));
+                assertEquals("d", spill.getLine(4));
+            } finally {
+                spill.close();
+            }
+        }
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testRandomAccess() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            sb.append("line ").append(i).append( (i % 2 == 0) ? "\r\n" : "\n" );
+        }
+
+        SpillFile spill = new SpillFile( Charset.forName("UTF-8") );
+        Path path = spill.getPath();
+        try {
+            write(spill, sb.toString(), 7);
+
+            assertEquals(1000, spill.getLineCount());
+            assertEquals(sb.length(), spill.getByteCount());
+            for (int i : new int[] { 0, 63, 64, 65, 128, 500, 999 }) {
+                assertEquals("line " + i, spill.getLine(i));
+            }
+            assertEquals(Arrays.asList("line 998", "line 999"), spill.tail(2));
+            assertEquals(Arrays.asList("line 64", "line 65"), spill.getLines(64, 2));
+            assertEquals(Arrays.asList("line 99", "line 199"), spill.grep(Pattern.compile("^line \\d?99$"), 2));
+            assertFalse(spill.iterator(1000).hasNext());
+        } finally {
+            spill.close();
+        }
+        assertFalse(Files.exists(path));
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testSpillTo() throws Exception {
+        SpillFile spill = new SpillFile();
+        try {
+            ProcessHelper<?> processHelper = new ProcessHelper( ProcessHelperTest.sh("i=0; while [ $i -lt 5000 ]; do echo $i; i=$((i+1)); done") )
+                                                    .setTailCapacity(10)
+                                                    .spillTo(ProcessHelper.Stream.STDOUT, spill)
+                                                    .waitFor();
+
+            List<String> stdout = processHelper.getStdout();
+            assertEquals(10, stdout.size());
+            assertEquals("4999", stdout.get(9));
+
+            assertEquals(5000, spill.getLineCount());
+            assertEquals("1234", spill.getLine(1234));
+            assertTrue(spill.tail(10).equals(stdout));
+        } finally {
+            spill.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.rga78.utils.proc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class TailBufferTest {
+
+    /**
+     *
+     */
+    @Test
+    public void testMaxLines() {
+        TailBuffer tail = new TailBuffer(40);
+
+        for (int i = 0; i < 100; ++i) {
+            tail.add("line" + i);
+        }
+
+        assertEquals(40, tail.size());
+        assertEquals("line60", tail.get(0));
+        assertEquals("line99", tail.get(39));
+
+        tail = new TailBuffer(0);
+        tail.add("line");
+        assertEquals(0, tail.size());
+    }
+
+    /**
+     *
+     */
+    @Test
+    public void testMaxBytes() {
+        TailBuffer tail = new TailBuffer(1000, 10);
+
+        tail.add("aaaa");
+        tail.add("bbbb");
+        assertEquals(Arrays.asList("aaaa", "bbbb"), tail);
+        assertEquals(8, tail.getBytes());
+
+        tail.add("cccc");
+        assertEquals(Arrays.asList("bbbb", "cccc"), tail);
+
+        tail.add("dddddddddddd");
+        assertEquals(Arrays.asList("dddddddddddd"), tail);
+        assertEquals(12, tail.getBytes());
+
+        tail.add("e", 1);
+        assertEquals(Arrays.asList("e"), tail);
+    }
+}